@@ -2,6 +2,7 @@ import org.sourcegrade.jagr.gradle.task.grader.GraderRunTask
 
 plugins {
     alias(libs.plugins.algomate)
+    alias(libs.plugins.jmh)
 }
 
 exercise {
@@ -16,6 +17,14 @@ dependencies{
     implementation(libs.algoutils.student)
 }
 
+jmh {
+    // benchmarks live in src/jmh/java; run with ./gradlew jmh, optionally -Pjmh.includes=<regex>
+    jmhVersion.set(libs.versions.jmh)
+    providers.gradleProperty("jmh.includes").orNull?.let { includes.add(it) }
+    profilers.add("gc")
+    resultFormat.set("JSON")
+}
+
 submission {
     // ACHTUNG!
     // Setzen Sie im folgenden Bereich Ihre TU-ID (NICHT Ihre Matrikelnummer!), Ihren Nachnamen und Ihren Vornamen
@@ -0,0 +1,66 @@
+package h08;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link Bank#getAccountIndex(long)} at different numbers of accounts, in random IBAN order.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountIndexBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Accounts {
+
+        @Param({"100", "10000", "1000000"})
+        public int accounts;
+
+        @Param({"false", "true"})
+        public boolean concurrent;
+
+        Bank bank;
+        long[] ibans;
+
+        @Setup
+        public void setUp() {
+            bank = Benchmarks.bank("bank", 1, accounts);
+            bank.setConcurrent(concurrent);
+            ibans = Benchmarks.ibans(bank);
+            Random random = new Random(42);
+            for (int i = ibans.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                long iban = ibans[i];
+                ibans[i] = ibans[j];
+                ibans[j] = iban;
+            }
+        }
+    }
+
+    @Benchmark
+    public int getAccountIndex(Accounts accounts, Benchmarks.Cursor cursor) {
+        return accounts.bank.getAccountIndex(accounts.ibans[cursor.next(accounts.accounts)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int getAccountIndexConcurrent(Accounts accounts, Benchmarks.Cursor cursor) {
+        return accounts.bank.getAccountIndex(accounts.ibans[cursor.next(accounts.accounts)]);
+    }
+}
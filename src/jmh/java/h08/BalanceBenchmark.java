@@ -0,0 +1,89 @@
+package h08;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link Bank#deposit(long, double)} and {@link Bank#withdraw(long, double)} in both balance modes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BalanceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Accounts {
+
+        @Param({"1000"})
+        public int accounts;
+
+        @Param({"FLOATING_POINT", "FIXED_POINT"})
+        public BalanceMode balanceMode;
+
+        Bank bank;
+        long[] ibans;
+
+        @Setup
+        public void setUp() {
+            bank = Benchmarks.bank("bank", 1, accounts);
+            bank.setBalanceMode(balanceMode);
+            bank.setConcurrent(concurrent());
+            ibans = Benchmarks.ibans(bank);
+            for (long iban : ibans) {
+                bank.deposit(iban, 1e12);
+            }
+        }
+
+        boolean concurrent() {
+            return false;
+        }
+    }
+
+    /**
+     * The same accounts in concurrent mode.
+     */
+    @State(Scope.Benchmark)
+    public static class ConcurrentAccounts extends Accounts {
+
+        @Override
+        boolean concurrent() {
+            return true;
+        }
+    }
+
+    @Benchmark
+    public void deposit(Accounts accounts, Benchmarks.Cursor cursor) {
+        accounts.bank.deposit(accounts.ibans[cursor.next(accounts.accounts)], 0.01);
+    }
+
+    @Benchmark
+    public void withdraw(Accounts accounts, Benchmarks.Cursor cursor) {
+        accounts.bank.withdraw(accounts.ibans[cursor.next(accounts.accounts)], 0.01);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void depositConcurrent(ConcurrentAccounts accounts, Benchmarks.Cursor cursor) {
+        accounts.bank.deposit(accounts.ibans[cursor.next(accounts.accounts)], 0.01);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void withdrawConcurrent(ConcurrentAccounts accounts, Benchmarks.Cursor cursor) {
+        accounts.bank.withdraw(accounts.ibans[cursor.next(accounts.accounts)], 0.01);
+    }
+}
@@ -0,0 +1,72 @@
+package h08;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.LocalDate;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Fixtures shared by the benchmarks.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Creates a bank with the specified number of accounts.
+     *
+     * @param name     the name of the bank
+     * @param bic      the BIC of the bank
+     * @param accounts the number of accounts
+     * @return the new bank
+     */
+    static Bank bank(String name, int bic, int accounts) {
+        Bank bank = new Bank(name, bic, accounts);
+        for (int i = 0; i < accounts; i++) {
+            bank.add(new Customer("First" + i, "Last" + i, "Street " + i, LocalDate.of(1970, 1, 1).plusDays(i % 10_000)));
+        }
+        return bank;
+    }
+
+    /**
+     * Returns the IBANs of all accounts of a bank in account order.
+     *
+     * @param bank the bank
+     * @return the IBANs
+     */
+    static long[] ibans(Bank bank) {
+        Account[] accounts = bank.getAccounts();
+        long[] ibans = new long[accounts.length];
+        for (int i = 0; i < accounts.length; i++) {
+            ibans[i] = accounts[i].getIban();
+        }
+        return ibans;
+    }
+
+    /**
+     * A position per benchmark thread, starting at a random account so that threads spread over the accounts.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int position = -1;
+
+        /**
+         * Returns the next position below the specified bound.
+         *
+         * @param bound the exclusive bound
+         * @return the next position
+         */
+        int next(int bound) {
+            if (position < 0) {
+                position = ThreadLocalRandom.current().nextInt(bound);
+            }
+            if (++position >= bound) {
+                position = 0;
+            }
+            return position;
+        }
+    }
+}
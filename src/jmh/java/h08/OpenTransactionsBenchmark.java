@@ -0,0 +1,89 @@
+package h08;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link Bank#checkOpenTransactions()} over large banks with one open transaction per account.
+ * <p>
+ * {@link #checkRecent} measures the common case where no open transaction is old enough to be re-triggered.
+ * {@link #checkDue} measures a check that re-triggers every open transaction; since that changes the bank, each
+ * invocation gets a fresh bank and runs once.
+ */
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OpenTransactionsBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Recent {
+
+        @Param({"10000", "100000"})
+        public int accounts;
+
+        Bank bank;
+
+        @Setup
+        public void setUp() {
+            bank = open(accounts, 5);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Due {
+
+        @Param({"10000", "100000"})
+        public int accounts;
+
+        Bank bank;
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            bank = open(accounts, 20);
+        }
+    }
+
+    /**
+     * Creates a bank where every account has sent one open transaction of the specified age to the next account.
+     */
+    static Bank open(int accounts, int age) {
+        Bank bank = Benchmarks.bank("bank", 1, accounts);
+        Account[] all = bank.getAccounts();
+        LocalDate date = LocalDate.now().minusDays(age);
+        for (int i = 0; i < all.length; i++) {
+            Account source = all[i];
+            Account target = all[(i + 1) % all.length];
+            Transaction transaction = new Transaction(source, target, 1, i, "open", date, Status.OPEN);
+            source.getHistory().add(transaction);
+            target.getHistory().add(transaction);
+        }
+        return bank;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Transaction[] checkRecent(Recent recent) throws TransactionException {
+        return recent.bank.checkOpenTransactions();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Transaction[] checkDue(Due due) throws TransactionException {
+        return due.bank.checkOpenTransactions();
+    }
+}
@@ -0,0 +1,105 @@
+package h08;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link TransactionHistory#add(Transaction)}, {@link TransactionHistory#update(Transaction)} and
+ * {@link TransactionHistory#getTransactions(Status)} on full histories of different capacities and storages. Every
+ * benchmark thread has its own history, so the multi-threaded variants measure allocation and memory bandwidth
+ * rather than contention.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionHistoryBenchmark {
+
+    @State(Scope.Thread)
+    public static class History {
+
+        @Param({"10", "1000", "100000"})
+        public int capacity;
+
+        @Param({"HEAP", "OFF_HEAP"})
+        public HistoryStorage storage;
+
+        TransactionHistory history;
+        Account source;
+        Account target;
+        LocalDate today;
+
+        /**
+         * The number of the next transaction to add; the history holds the numbers below it.
+         */
+        long next;
+
+        /**
+         * The offset of the next transaction to update within the history.
+         */
+        int updated;
+
+        @Setup
+        public void setUp() {
+            Bank bank = Benchmarks.bank("bank", 1, 2);
+            source = bank.getAccounts()[0];
+            target = bank.getAccounts()[1];
+            today = LocalDate.now();
+            history = new TransactionHistory(capacity, storage);
+            for (next = 0; next < capacity; next++) {
+                // every fourth transaction is open
+                history.add(transaction(next, next % 4 == 0 ? Status.OPEN : Status.CLOSED));
+            }
+        }
+
+        Transaction transaction(long number, Status status) {
+            return new Transaction(source, target, 1, number, "benchmark", today, status);
+        }
+    }
+
+    @Benchmark
+    public void add(History history) {
+        history.history.add(history.transaction(history.next++, Status.CLOSED));
+    }
+
+    @Benchmark
+    public void update(History history) throws TransactionException {
+        if (++history.updated == history.capacity) {
+            history.updated = 0;
+        }
+        long number = history.next - history.capacity + history.updated;
+        Status status = history.history.get(number).status() == Status.OPEN ? Status.CLOSED : Status.OPEN;
+        history.history.update(history.transaction(number, status));
+    }
+
+    @Benchmark
+    public Transaction[] getTransactions(History history) {
+        return history.history.getTransactions(Status.OPEN);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addConcurrent(History history) {
+        history.history.add(history.transaction(history.next++, Status.CLOSED));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Transaction[] getTransactionsConcurrent(History history) {
+        return history.history.getTransactions(Status.OPEN);
+    }
+}
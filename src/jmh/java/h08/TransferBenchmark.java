@@ -0,0 +1,102 @@
+package h08;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link Bank#transfer(long, long, int, double, String)} within one bank and between two linked banks,
+ * for transfers that close and transfers that are cancelled for lack of funds.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransferBenchmark {
+
+    /**
+     * A sender bank and a receiver bank, which is the sender bank itself unless {@link #crossBic} is set.
+     */
+    @State(Scope.Benchmark)
+    public static class Network {
+
+        @Param({"1000"})
+        public int accounts;
+
+        @Param({"false", "true"})
+        public boolean crossBic;
+
+        @Param({"CLOSED", "CANCELLED"})
+        public Status outcome;
+
+        Bank sender;
+        Bank receiver;
+        long[] senderIbans;
+        long[] receiverIbans;
+
+        @Setup
+        public void setUp() {
+            sender = Benchmarks.bank("sender", 1, accounts);
+            receiver = crossBic ? Benchmarks.bank("receiver", 2, accounts) : sender;
+            if (crossBic) {
+                sender.add(receiver);
+                receiver.add(sender);
+            }
+            sender.setConcurrent(concurrent());
+            receiver.setConcurrent(concurrent());
+            senderIbans = Benchmarks.ibans(sender);
+            receiverIbans = Benchmarks.ibans(receiver);
+            if (!crossBic) {
+                // pay the next account, never the sender itself
+                System.arraycopy(senderIbans, 1, receiverIbans, 0, accounts - 1);
+                receiverIbans[accounts - 1] = senderIbans[0];
+            }
+            if (outcome == Status.CLOSED) {
+                for (long iban : senderIbans) {
+                    sender.deposit(iban, 1e12);
+                }
+            }
+        }
+
+        boolean concurrent() {
+            return false;
+        }
+    }
+
+    /**
+     * The same network in concurrent mode.
+     */
+    @State(Scope.Benchmark)
+    public static class ConcurrentNetwork extends Network {
+
+        @Override
+        boolean concurrent() {
+            return true;
+        }
+    }
+
+    @Benchmark
+    public Status transfer(Network network, Benchmarks.Cursor cursor) {
+        int i = cursor.next(network.accounts);
+        return network.sender.transfer(network.senderIbans[i], network.receiverIbans[i], network.receiver.getBic(), 1, "benchmark");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Status transferConcurrent(ConcurrentNetwork network, Benchmarks.Cursor cursor) {
+        int i = cursor.next(network.accounts);
+        return network.sender.transfer(network.senderIbans[i], network.receiverIbans[i], network.receiver.getBic(), 1, "benchmark");
+    }
+}
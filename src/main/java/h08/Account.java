@@ -1,5 +1,8 @@
 package h08;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
 import static org.tudalgo.algoutils.student.Student.crash;
 
 /**
@@ -12,6 +15,24 @@ public class Account {
      */
     private static final int MIN_AGE = 18;
 
+    /**
+     * The number of minor units (cents) per unit of currency.
+     */
+    static final int MINOR_UNITS = 100;
+
+    /**
+     * The handle for compare-and-set updates of {@link #balanceMinorUnits}.
+     */
+    private static final VarHandle BALANCE_MINOR_UNITS;
+
+    static {
+        try {
+            BALANCE_MINOR_UNITS = MethodHandles.lookup().findVarHandle(Account.class, "balanceMinorUnits", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     /**
      * The customer that owns this account.
      */
@@ -23,20 +44,42 @@ public class Account {
     private final long iban;
 
     /**
-     * The balance of this account.
+     * The balance of this account. Volatile so that unlocked readers see balances written under account locks.
+     */
+    private volatile double balance;
+
+    /**
+     * The balance of this account in minor units, used in {@link BalanceMode#FIXED_POINT}.
      */
-    private double balance;
+    private long balanceMinorUnits;
+
+    /**
+     * The way this account stores its balance.
+     */
+    private volatile BalanceMode balanceMode = BalanceMode.FLOATING_POINT;
 
     /**
      * The transaction history of this account.
      */
-    private TransactionHistory history;
+    private volatile TransactionHistory history;
+
+    /**
+     * The capacity version of the bank {@link #history} was sized for; see
+     * {@link Bank#setTransactionHistoryCapacity(int)}.
+     */
+    private volatile int historyVersion;
 
     /**
      * The bank this account belongs to.
      */
     private final Bank bank;
 
+    /**
+     * The copy of this account taken for the latest {@link BankState} of its bank before a write, or the marker of
+     * that state once the account needs no copy for it; null if no state was taken yet. Guarded by the account lock.
+     */
+    private BankState.Copy stateCopy;
+
     /**
      * Constructs a new account with the specified customer, IBAN, balance, bank and transaction history.
      *
@@ -53,6 +96,8 @@ public class Account {
         this.balance = balance;
         this.history = history;
         this.bank = bank;
+        this.historyVersion = bank.historyVersion();
+        history.own(this);
     }
 
     /**
@@ -79,16 +124,131 @@ public class Account {
      * @return the balance of this account
      */
     public double getBalance() {
+        if (balanceMode == BalanceMode.FIXED_POINT) {
+            return (double) (long) BALANCE_MINOR_UNITS.getVolatile(this) / MINOR_UNITS;
+        }
         return balance;
     }
 
     /**
-     * Sets the balance of this account.
+     * Sets the balance of this account. In {@link BalanceMode#FIXED_POINT} the balance is rounded to minor units.
      *
      * @param balance the new balance of this account
      */
     public void setBalance(double balance) {
-        this.balance = balance;
+        if (balanceMode == BalanceMode.FIXED_POINT) {
+            BALANCE_MINOR_UNITS.setVolatile(this, toMinorUnits(balance));
+        } else {
+            this.balance = balance;
+        }
+    }
+
+    /**
+     * Returns the balance of this account in minor units, rounded if the account is in
+     * {@link BalanceMode#FLOATING_POINT}.
+     *
+     * @return the balance of this account in minor units
+     */
+    public long getBalanceMinorUnits() {
+        if (balanceMode == BalanceMode.FIXED_POINT) {
+            return (long) BALANCE_MINOR_UNITS.getVolatile(this);
+        }
+        return toMinorUnits(balance);
+    }
+
+    /**
+     * Sets the balance of this account in minor units. The account must be in {@link BalanceMode#FIXED_POINT}.
+     *
+     * @param balance the new balance in minor units
+     */
+    void setBalanceMinorUnits(long balance) {
+        assert balanceMode == BalanceMode.FIXED_POINT;
+        BALANCE_MINOR_UNITS.setVolatile(this, balance);
+    }
+
+    /**
+     * Returns the way this account stores its balance.
+     *
+     * @return the balance mode of this account
+     */
+    public BalanceMode getBalanceMode() {
+        return balanceMode;
+    }
+
+    /**
+     * Switches this account to the specified balance mode, converting the current balance. Must not run
+     * concurrently with other balance updates of this account.
+     *
+     * @param balanceMode the new balance mode
+     */
+    void setBalanceMode(BalanceMode balanceMode) {
+        if (balanceMode == this.balanceMode) {
+            return;
+        }
+        double current = getBalance();
+        this.balanceMode = balanceMode;
+        setBalance(current);
+    }
+
+    /**
+     * Adds the specified amount of minor units to the balance with a lock-free compare-and-set loop. The account
+     * must be in {@link BalanceMode#FIXED_POINT}.
+     *
+     * @param amount the amount in minor units
+     * @throws ArithmeticException if the balance would overflow
+     */
+    void credit(long amount) {
+        if (!tryCredit(amount)) {
+            throw new ArithmeticException("long overflow");
+        }
+    }
+
+    /**
+     * Adds the specified amount of minor units to the balance with a lock-free compare-and-set loop, unless the
+     * balance would overflow. The account must be in {@link BalanceMode#FIXED_POINT}.
+     *
+     * @param amount the amount in minor units
+     * @return {@code true} if the amount was added, {@code false} if the balance would overflow
+     */
+    boolean tryCredit(long amount) {
+        assert balanceMode == BalanceMode.FIXED_POINT;
+        long current;
+        do {
+            current = (long) BALANCE_MINOR_UNITS.getVolatile(this);
+            if (current > Long.MAX_VALUE - amount) {
+                return false;
+            }
+        } while (!BALANCE_MINOR_UNITS.compareAndSet(this, current, current + amount));
+        return true;
+    }
+
+    /**
+     * Subtracts the specified amount of minor units from the balance with a lock-free compare-and-set loop,
+     * unless the balance is too low. The account must be in {@link BalanceMode#FIXED_POINT}.
+     *
+     * @param amount the amount in minor units
+     * @return {@code true} if the amount was withdrawn, {@code false} if the balance was insufficient
+     */
+    boolean tryDebit(long amount) {
+        assert balanceMode == BalanceMode.FIXED_POINT;
+        long current;
+        do {
+            current = (long) BALANCE_MINOR_UNITS.getVolatile(this);
+            if (current < amount) {
+                return false;
+            }
+        } while (!BALANCE_MINOR_UNITS.compareAndSet(this, current, current - amount));
+        return true;
+    }
+
+    /**
+     * Converts the specified amount to minor units, rounding to the nearest minor unit.
+     *
+     * @param amount the amount
+     * @return the amount in minor units
+     */
+    static long toMinorUnits(double amount) {
+        return Math.round(amount * MINOR_UNITS);
     }
 
     /**
@@ -101,21 +261,75 @@ public class Account {
     }
 
     /**
-     * Returns the transaction history of this account.
+     * Returns the transaction history of this account. If the transaction history capacity of the bank has changed
+     * since the history was sized, the history is first resized to the new capacity.
      *
      * @return the transaction history of this account
      */
     public TransactionHistory getHistory() {
+        TransactionHistory history = this.history;
+        if (historyVersion != bank.historyVersion()) {
+            history = bank.resizeHistory(this);
+        }
         return history;
     }
 
     /**
-     * Sets the transaction history of this account.
+     * Sets the transaction history of this account. The history is kept until the transaction history capacity of
+     * the bank changes.
      *
      * @param history the new transaction history of this account
      */
     public void setHistory(TransactionHistory history) {
+        setHistory(history, bank.historyVersion());
+    }
+
+    /**
+     * Returns the transaction history of this account without resizing it.
+     *
+     * @return the transaction history of this account
+     */
+    TransactionHistory currentHistory() {
+        return history;
+    }
+
+    /**
+     * Returns the capacity version of the bank the transaction history was sized for.
+     *
+     * @return the capacity version
+     */
+    int historyVersion() {
+        return historyVersion;
+    }
+
+    /**
+     * Sets the transaction history of this account, sized for the specified capacity version of the bank.
+     *
+     * @param history the new transaction history of this account
+     * @param version the capacity version
+     */
+    void setHistory(TransactionHistory history, int version) {
+        history.own(this);
         this.history = history;
+        this.historyVersion = version;
+    }
+
+    /**
+     * Returns the copy of this account for the latest state of its bank; see {@link BankState}.
+     *
+     * @return the copy or marker, or null
+     */
+    BankState.Copy stateCopy() {
+        return stateCopy;
+    }
+
+    /**
+     * Sets the copy of this account for the latest state of its bank.
+     *
+     * @param stateCopy the copy or marker
+     */
+    void stateCopy(BankState.Copy stateCopy) {
+        this.stateCopy = stateCopy;
     }
 
     @Override
@@ -123,7 +337,7 @@ public class Account {
         return "Account{" +
             "customer=" + customer +
             ", iban=" + iban +
-            ", balance=" + balance +
+            ", balance=" + getBalance() +
             '}';
     }
 
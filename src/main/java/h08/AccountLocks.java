@@ -0,0 +1,92 @@
+package h08;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks guarding the balances and transaction histories of accounts in concurrent mode.
+ * <p>
+ * The stripes are shared by all banks, so a transfer between two banks locks the same stripes as any other
+ * operation on these accounts. Two accounts are always locked in ascending stripe order, which is a global order
+ * derived from their IBANs, so concurrent transfers cannot deadlock.
+ */
+final class AccountLocks {
+
+    /**
+     * The number of stripes, a power of two.
+     */
+    private static final int STRIPES = 1 << 12;
+
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    private AccountLocks() {
+    }
+
+    /**
+     * Returns the stripe guarding the account with the specified IBAN.
+     *
+     * @param iban the IBAN of the account
+     * @return the stripe guarding the account
+     */
+    static int stripe(long iban) {
+        long h = iban * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32) & (STRIPES - 1);
+    }
+
+    /**
+     * Locks the account with the specified IBAN.
+     *
+     * @param iban the IBAN of the account
+     */
+    static void lock(long iban) {
+        LOCKS[stripe(iban)].lock();
+    }
+
+    /**
+     * Unlocks the account with the specified IBAN.
+     *
+     * @param iban the IBAN of the account
+     */
+    static void unlock(long iban) {
+        LOCKS[stripe(iban)].unlock();
+    }
+
+    /**
+     * Locks the two accounts with the specified IBANs in global stripe order.
+     *
+     * @param first  the IBAN of the first account
+     * @param second the IBAN of the second account
+     */
+    static void lock(long first, long second) {
+        int a = stripe(first);
+        int b = stripe(second);
+        if (a == b) {
+            LOCKS[a].lock();
+        } else {
+            LOCKS[Math.min(a, b)].lock();
+            LOCKS[Math.max(a, b)].lock();
+        }
+    }
+
+    /**
+     * Unlocks the two accounts locked by {@link #lock(long, long)}.
+     *
+     * @param first  the IBAN of the first account
+     * @param second the IBAN of the second account
+     */
+    static void unlock(long first, long second) {
+        int a = stripe(first);
+        int b = stripe(second);
+        if (a == b) {
+            LOCKS[a].unlock();
+        } else {
+            LOCKS[Math.max(a, b)].unlock();
+            LOCKS[Math.min(a, b)].unlock();
+        }
+    }
+}
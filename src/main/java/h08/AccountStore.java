@@ -0,0 +1,322 @@
+package h08;
+
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A growable, segmented store for the accounts of a bank.
+ * <p>
+ * The accounts live in segments of doubling length. Growing only appends a new segment to a small segment
+ * directory, so existing accounts are never copied. The directory and the size are published through volatile
+ * fields, so readers always see a consistent store without locking while a single writer grows it.
+ */
+class AccountStore {
+
+    /**
+     * The length of the first segment, a power of two.
+     */
+    private final int base;
+
+    /**
+     * The base two logarithm of {@link #base}.
+     */
+    private final int baseShift;
+
+    /**
+     * The segments; segment {@code k} has length {@code base << k}.
+     */
+    private volatile Account[][] segments;
+
+    /**
+     * The number of slots in all allocated segments.
+     */
+    private int allocated;
+
+    /**
+     * The capacity reported to callers; the requested capacity until the store has to grow past it.
+     */
+    private volatile int capacity;
+
+    private volatile int size;
+
+    /**
+     * The number of modifications of this store, used to validate {@link #view}.
+     */
+    private volatile int modCount;
+
+    /**
+     * The cached result of {@link #toArray()}.
+     */
+    private volatile View view;
+
+    /**
+     * Constructs a new store with the specified initial capacity.
+     *
+     * @param initialCapacity the initial capacity of the store
+     */
+    AccountStore(int initialCapacity) {
+        if (initialCapacity < 0) throw new IllegalArgumentException(String.valueOf(initialCapacity));
+        this.baseShift = 32 - Integer.numberOfLeadingZeros(Math.max(initialCapacity, 1) - 1);
+        this.base = 1 << baseShift;
+        this.segments = new Account[][]{new Account[base]};
+        this.allocated = base;
+        this.capacity = initialCapacity;
+    }
+
+    /**
+     * Returns the number of accounts in this store.
+     *
+     * @return the number of accounts in this store
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of accounts this store can hold before it grows.
+     *
+     * @return the capacity of this store
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the account at the specified index.
+     *
+     * @param index the index, must be less than {@link #size()}
+     * @return the account at the specified index
+     */
+    Account get(int index) {
+        int j = index + base;
+        int segment = 31 - Integer.numberOfLeadingZeros(j) - baseShift;
+        return segments[segment][j - (base << segment)];
+    }
+
+    /**
+     * Replaces the account at the specified index.
+     *
+     * @param index   the index, must be less than {@link #size()}
+     * @param account the new account
+     */
+    void set(int index, Account account) {
+        store(index, account);
+        modCount++;
+    }
+
+    /**
+     * Appends an account, growing the store if necessary.
+     *
+     * @param account the account to append
+     * @return the index of the appended account
+     */
+    int add(Account account) {
+        int index = size;
+        if (index == capacity) {
+            if (index == allocated) {
+                grow();
+            }
+            capacity = allocated;
+        }
+        store(index, account);
+        size = index + 1;
+        modCount++;
+        return index;
+    }
+
+    /**
+     * Removes the last account.
+     *
+     * @return the removed account
+     */
+    Account removeLast() {
+        int last = size - 1;
+        Account account = get(last);
+        size = last;
+        store(last, null);
+        modCount++;
+        return account;
+    }
+
+    /**
+     * Returns the accounts of this store in index order. The array is cached until the store changes and must
+     * not be modified by callers.
+     *
+     * @return the accounts of this store
+     */
+    Account[] toArray() {
+        View cached = view;
+        int stamp = modCount;
+        if (cached != null && cached.stamp == stamp) {
+            return cached.accounts;
+        }
+        int n = size;
+        Account[] result = new Account[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = get(i);
+        }
+        if (modCount == stamp) {
+            view = new View(stamp, result);
+        }
+        return result;
+    }
+
+    /**
+     * Performs the action for every account in index order, walking the segments directly.
+     *
+     * @param action the action
+     */
+    void forEach(Consumer<? super Account> action) {
+        accounts().forEachRemaining(action);
+    }
+
+    /**
+     * Returns a spliterator over the accounts in index order. It covers the accounts at the time of the call and is
+     * weakly consistent: accounts replaced or removed during the traversal may or may not be seen, and removed slots
+     * are skipped, so the spliterator only estimates its size.
+     *
+     * @return a spliterator over the accounts
+     */
+    Spliterator<Account> spliterator() {
+        return accounts();
+    }
+
+    private Accounts accounts() {
+        // the size is read first: a writer publishes a grown directory before the size that needs it
+        int n = size;
+        return new Accounts(segments, base, baseShift, 0, n);
+    }
+
+    /**
+     * Returns whether this store holds equal accounts in the same order as the specified store.
+     *
+     * @param other the other store
+     * @return whether both stores hold equal accounts
+     */
+    boolean contentEquals(AccountStore other) {
+        int n = size;
+        if (other.size != n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (!Objects.equals(get(i), other.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a hash code of the accounts, equal to {@code Arrays.hashCode(toArray())}.
+     *
+     * @return a hash code of the accounts
+     */
+    int contentHashCode() {
+        int hash = 1;
+        for (int i = 0, n = size; i < n; i++) {
+            hash = 31 * hash + Objects.hashCode(get(i));
+        }
+        return hash;
+    }
+
+    private void store(int index, Account account) {
+        int j = index + base;
+        int segment = 31 - Integer.numberOfLeadingZeros(j) - baseShift;
+        segments[segment][j - (base << segment)] = account;
+    }
+
+    private void grow() {
+        Account[][] old = segments;
+        if (old.length + baseShift >= 31) {
+            throw new IllegalStateException("Bank is full");
+        }
+        Account[][] grown = new Account[old.length + 1][];
+        System.arraycopy(old, 0, grown, 0, old.length);
+        grown[old.length] = new Account[base << old.length];
+        allocated += grown[old.length].length;
+        segments = grown;
+    }
+
+    /**
+     * A spliterator over the slots {@code index} up to, excluding, {@code fence} of a segment directory. Splitting
+     * halves the range; traversal walks each segment as a plain array.
+     */
+    private static final class Accounts implements Spliterator<Account> {
+
+        private final Account[][] segments;
+        private final int base;
+        private final int baseShift;
+        private int index;
+        private final int fence;
+
+        Accounts(Account[][] segments, int base, int baseShift, int index, int fence) {
+            this.segments = segments;
+            this.base = base;
+            this.baseShift = baseShift;
+            this.index = index;
+            this.fence = fence;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Account> action) {
+            while (index < fence) {
+                int j = index++ + base;
+                int segment = 31 - Integer.numberOfLeadingZeros(j) - baseShift;
+                Account account = segments[segment][j - (base << segment)];
+                if (account != null) {
+                    action.accept(account);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Account> action) {
+            int i = index;
+            index = fence;
+            while (i < fence) {
+                int j = i + base;
+                int segment = 31 - Integer.numberOfLeadingZeros(j) - baseShift;
+                Account[] slots = segments[segment];
+                int offset = j - (base << segment);
+                int end = Math.min(slots.length, offset + fence - i);
+                for (int k = offset; k < end; k++) {
+                    Account account = slots[k];
+                    if (account != null) {
+                        action.accept(account);
+                    }
+                }
+                i += end - offset;
+            }
+        }
+
+        @Override
+        public Spliterator<Account> trySplit() {
+            int mid = (index + fence) >>> 1;
+            if (mid - index < 1024) {
+                return null;
+            }
+            Accounts prefix = new Accounts(segments, base, baseShift, index, mid);
+            index = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return fence - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+
+    /**
+     * A cached copy of the accounts together with the modification count it was taken at.
+     */
+    private record View(int stamp, Account[] accounts) {
+    }
+}
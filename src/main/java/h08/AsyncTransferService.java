@@ -0,0 +1,174 @@
+package h08;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs transfers of a bank asynchronously.
+ * <p>
+ * Every transfer runs as its own task, on a virtual thread when the runtime supports them and on a cached pool of
+ * daemon threads otherwise. At most {@link #maxInFlight()} transfers are in flight at a time; callers submitting
+ * more block until a transfer completes, which pushes back on producers instead of queueing without bound.
+ */
+public class AsyncTransferService implements AutoCloseable {
+
+    /**
+     * The default maximum number of transfers in flight.
+     */
+    private static final int DEFAULT_MAX_IN_FLIGHT = 10_000;
+
+    /**
+     * The bank whose transfers are run.
+     */
+    private final Bank bank;
+
+    /**
+     * The executor running one task per transfer.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The permits for transfers in flight.
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * The maximum number of transfers in flight.
+     */
+    private final int maxInFlight;
+
+    /**
+     * Constructs a new service for the specified bank.
+     *
+     * @param bank        the bank, must be in concurrent mode
+     * @param maxInFlight the maximum number of transfers in flight
+     * @throws IllegalArgumentException if the bank is not in concurrent mode or maxInFlight is not positive
+     */
+    public AsyncTransferService(Bank bank, int maxInFlight) {
+        if (!bank.isConcurrent()) {
+            throw new IllegalArgumentException("Bank must be in concurrent mode: " + bank.getName());
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException(String.valueOf(maxInFlight));
+        }
+        this.bank = bank;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = newTaskPerThreadExecutor();
+    }
+
+    /**
+     * Constructs a new service for the specified bank with the default limit of transfers in flight.
+     *
+     * @param bank the bank, must be in concurrent mode
+     */
+    public AsyncTransferService(Bank bank) {
+        this(bank, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Returns the bank whose transfers are run.
+     *
+     * @return the bank whose transfers are run
+     */
+    public Bank getBank() {
+        return bank;
+    }
+
+    /**
+     * Returns the maximum number of transfers in flight.
+     *
+     * @return the maximum number of transfers in flight
+     */
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Returns the number of transfers currently in flight.
+     *
+     * @return the number of transfers currently in flight
+     */
+    public int inFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Starts a transfer as with {@link Bank#transfer(long, long, int, double, String)}. Blocks while the maximum
+     * number of transfers is in flight.
+     *
+     * @param senderIBAN   the IBAN of the sender in this service's bank
+     * @param receiverIBAN the IBAN of the receiver
+     * @param receiverBIC  the BIC of the receiver's bank
+     * @param amount       the amount to transfer
+     * @param description  the description of the transfer
+     * @return a future completed with the status of the transfer, or exceptionally if the transfer threw, the
+     * service is closed or the caller was interrupted while waiting
+     */
+    public CompletableFuture<Status> transferAsync(long senderIBAN, long receiverIBAN, int receiverBIC, double amount, String description) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<Status> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(bank.transfer(senderIBAN, receiverIBAN, receiverBIC, amount, description));
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Stops accepting transfers and waits for the transfers in flight to complete.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep waiting for transfers in flight
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates a virtual-thread-per-task executor if the runtime has one, looked up dynamically so the code still
+     * runs on runtimes without virtual threads.
+     *
+     * @return the executor
+     */
+    private static ExecutorService newTaskPerThreadExecutor() {
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class))
+                .invokeExact();
+        } catch (Throwable unsupported) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "transfer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package h08;
+
+/**
+ * A balance mode describes how an account stores its balance.
+ */
+public enum BalanceMode {
+
+    /**
+     * The balance is stored as a {@code double}. Updates are read-modify-write and need the account lock in
+     * concurrent mode.
+     */
+    FLOATING_POINT,
+
+    /**
+     * The balance is stored in minor units (cents) as a {@code long}. Deposits and withdrawals are lock-free
+     * compare-and-set updates and amounts are rounded to whole cents.
+     */
+    FIXED_POINT,
+
+}
@@ -1,7 +1,12 @@
 package h08;
 
+import java.io.UncheckedIOException;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static org.tudalgo.algoutils.student.Student.crash;
 
@@ -15,17 +20,101 @@ public class Bank {
 
     private final String name;
     private final int bic;
-    private Bank[] transferableBanks;
-    private final Account[] accounts;
-    private final int capacity;
-    private int size = 0;
-    private int transactionHistoryCapacity = DEFAULT_TRANSACTION_CAPACITY;
+    private volatile Bank[] transferableBanks;
+    private final AccountStore accounts;
+    private final LongIntMap ibanIndex;
+
+    /**
+     * Indexes the accounts by customer, last name and date of birth. Guarded like the account store.
+     */
+    private final CustomerIndex customerIndex = new CustomerIndex();
+    private volatile int transactionHistoryCapacity = DEFAULT_TRANSACTION_CAPACITY;
+
+    /**
+     * Incremented on every capacity change; accounts whose history was sized for an older version resize it on
+     * their next access.
+     */
+    private volatile int historyVersion;
+
+    /**
+     * Whether operations may run concurrently; see {@link #setConcurrent(boolean)}.
+     */
+    private volatile boolean concurrent;
+
+    /**
+     * The balance mode of new accounts; see {@link #setBalanceMode(BalanceMode)}.
+     */
+    private volatile BalanceMode balanceMode = BalanceMode.FLOATING_POINT;
+
+    /**
+     * Where the transaction histories of this bank's accounts keep their entries; see
+     * {@link #setHistoryStorage(HistoryStorage)}.
+     */
+    private volatile HistoryStorage historyStorage = HistoryStorage.HEAP;
+
+    /**
+     * The memory and dictionaries the off-heap histories of this bank's accounts share.
+     */
+    private final OffHeapArena offHeapArena = new OffHeapArena();
+
+    /**
+     * The archive the histories evict their oldest entries into, or null; see
+     * {@link #setHistoryArchive(HistoryArchive)}.
+     */
+    private volatile HistoryArchive historyArchive;
+
+    /**
+     * Guards the account store, the IBAN index and the customer index in concurrent mode. It is always acquired
+     * after account locks.
+     */
+    private final StampedLock structureLock = new StampedLock();
+
+    /**
+     * The open transactions in the histories of this bank's accounts, by date.
+     */
+    private final OpenTransactions openTransactions = new OpenTransactions();
+
+    /**
+     * Whether cross-bank transfers are queued for settlement; see {@link #setClearing(boolean)}.
+     */
+    private volatile boolean clearing;
+
+    /**
+     * The cross-bank transfers waiting for settlement in clearing mode.
+     */
+    private final Clearing clearingQueues = new Clearing();
+
+    /**
+     * The journal mutations are appended to, or null; see {@link #setJournal(BankJournal)}.
+     */
+    private volatile BankJournal journal;
+
+    /**
+     * The metrics operations are recorded into, or null; see {@link #setMetrics(BankMetrics)}.
+     */
+    private volatile BankMetrics metrics;
+
+    /**
+     * Holds back mutations while {@link #snapshot()} fixes its point in time; also the monitor that serializes
+     * snapshots.
+     */
+    private final SnapshotGate gate = new SnapshotGate();
+
+    /**
+     * The state {@link #snapshot()} is copying, which writers preserve accounts for, or null.
+     */
+    private volatile BankState copying;
+
+    /**
+     * The number of states taken. Guarded by {@link #gate}.
+     */
+    private long epoch;
 
     public Bank(String name, int bic, int capacity) {
         this.name = name;
         this.bic = bic;
-        this.accounts = new Account[capacity];
-        this.capacity = capacity;
+        this.accounts = new AccountStore(capacity);
+        this.ibanIndex = new LongIntMap(capacity);
         this.transferableBanks = new Bank[0];
     }
 
@@ -35,37 +124,362 @@ public class Bank {
 
     public String getName() { return name; }
     public int getBic() { return bic; }
+    /**
+     * Returns the accounts of this bank.
+     * <p>
+     * The array belongs to the caller. It is a copy of the view cached by the account store, because a caller that
+     * wrote to the shared array would corrupt what every other reader sees until the next modification; code inside
+     * the package reads the view itself through {@link #accounts()}.
+     *
+     * @return a new array of the accounts
+     */
     public Account[] getAccounts() {
-        Account[] availableAccounts = new Account[size];
-        System.arraycopy(accounts, 0, availableAccounts, 0, size);
-        return availableAccounts;
+        return accounts.toArray().clone();
+    }
+
+    /**
+     * Returns the accounts of this bank without copying them. The array is shared until the next modification of
+     * the bank and must not be modified.
+     *
+     * @return the accounts
+     */
+    Account[] accounts() {
+        return accounts.toArray();
+    }
+
+    /**
+     * Performs the action for every account without copying the accounts. Like {@link #spliterator()} this is
+     * weakly consistent with concurrent changes.
+     */
+    public void forEachAccount(Consumer<? super Account> action) {
+        accounts.forEach(action);
+    }
+
+    /**
+     * Returns a sized, splittable spliterator over the live accounts in index order. It covers the accounts at the
+     * time of the call; accounts removed or moved by concurrent changes may be skipped or seen twice.
+     */
+    public Spliterator<Account> spliterator() {
+        return accounts.spliterator();
+    }
+
+    public Stream<Account> stream() {
+        return StreamSupport.stream(accounts.spliterator(), false);
+    }
+
+    /**
+     * Returns a parallel stream over the live accounts, split along the account store's segments and run on the
+     * common fork-join pool.
+     */
+    public Stream<Account> parallelStream() {
+        return StreamSupport.stream(accounts.spliterator(), true);
+    }
+
+    /**
+     * Computes a report over the accounts of this bank and their histories as a parallel reduction on the common
+     * fork-join pool. In concurrent mode each account is locked while it is added, so the figures of one account are
+     * consistent; the report as a whole is not a snapshot.
+     */
+    public BankReport report() {
+        return parallelStream().collect(BankReport::new, this::report, BankReport::merge);
+    }
+
+    /**
+     * Computes the report of this bank merged with the reports of all its transferable banks.
+     */
+    public BankReport networkReport() {
+        BankReport report = report();
+        for (Bank bank : transferableBanks) {
+            report.merge(bank.report());
+        }
+        return report;
+    }
+
+    /**
+     * Returns a consistent point-in-time state of the balances and histories of the accounts of this bank, see
+     * {@link BankState}. In concurrent mode transfers keep running while the state is copied; they only wait for
+     * the operations that are in flight when it starts.
+     */
+    public BankState snapshot() {
+        synchronized (gate) {
+            boolean concurrent = this.concurrent;
+            BankState state;
+            if (concurrent) gate.close();
+            try {
+                long stamp = concurrent ? structureLock.readLock() : 0L;
+                try {
+                    state = new BankState(this, ++epoch, accounts.toArray(), clearingQueues.pendingAmount());
+                    copying = state;
+                } finally {
+                    if (stamp != 0L) structureLock.unlockRead(stamp);
+                }
+            } finally {
+                if (concurrent) gate.open();
+            }
+            try {
+                state.copyAll();
+            } finally {
+                copying = null;
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Copies an account for the state being taken of its bank, if any, before it is written to. The caller holds
+     * the account lock.
+     */
+    private static void preserve(Account account) {
+        BankState state = account.getBank().copying;
+        if (state != null) state.preserve(account);
+    }
+
+    /**
+     * Enters the snapshot gate before a mutation in concurrent mode; returns the ticket for {@link #exit(int)}.
+     */
+    private int enter() {
+        checkJournal();
+        return concurrent ? gate.enter() : -1;
+    }
+
+    /**
+     * Throws IllegalStateException if the journal is closed. Mutations call this before they change anything; a
+     * journal closed later on drops their frames and fails the next commit instead.
+     */
+    private void checkJournal() {
+        BankJournal journal = this.journal;
+        if (journal != null) journal.checkOpen();
+    }
+
+    private void exit(int ticket) {
+        if (ticket >= 0) gate.exit(ticket);
+    }
+
+    private void report(BankReport report, Account account) {
+        lockAccount(account.getIban());
+        try {
+            report.add(account, account.getHistory());
+        } finally {
+            unlockAccount(account.getIban());
+        }
     }
     public Bank[] getTransferableBanks() { return transferableBanks; }
-    public int capacity() { return capacity; }
-    public int size() { return size; }
+    public int capacity() { return accounts.capacity(); }
+    public int size() { return accounts.size(); }
     public int transactionCapacity() { return transactionHistoryCapacity; }
+    public boolean isConcurrent() { return concurrent; }
+
+    /**
+     * Enables or disables concurrent mode. In concurrent mode all operations of this bank are thread-safe:
+     * deposits, withdrawals and transfers lock only the accounts involved (see {@link AccountLocks}), and a
+     * transfer updates both balances and both histories while holding the locks of both accounts. Banks that
+     * transfer money between each other should all be in concurrent mode. Must not be switched while other
+     * threads are using the bank.
+     */
+    public void setConcurrent(boolean concurrent) {
+        this.concurrent = concurrent;
+    }
+
+    public boolean isClearing() { return clearing; }
+
+    /**
+     * Enables or disables clearing mode. In clearing mode a transfer to another bank debits the sender, records the
+     * transaction as OPEN in the sender's history and queues it; it returns OPEN. {@link #settle()} later credits
+     * the receivers and closes or cancels the queued transactions. Disabling clearing mode does not settle
+     * transfers that are still queued.
+     */
+    public void setClearing(boolean clearing) {
+        this.clearing = clearing;
+    }
+
+    /**
+     * Returns the total amount of cross-bank transfers that are debited but not yet settled.
+     */
+    public double pendingClearingAmount() {
+        return clearingQueues.pendingAmount();
+    }
+
+    public BankJournal getJournal() { return journal; }
 
-    public void setTransactionHistoryCapacity(int transactionHistoryCapacity) {
+    /**
+     * Attaches a journal that records every mutation of this bank from now on, or detaches it if null. The journal
+     * starts with the bank's name, BIC, capacities, balance mode and links; accounts that already exist must be
+     * restored by other means, e.g. a snapshot, before the journal is replayed.
+     */
+    public synchronized void setJournal(BankJournal journal) {
+        BankJournal previous = this.journal;
+        HistoryArchive archive = historyArchive;
+        if (archive != null && journal != null) journal.addArchive(archive);
+        this.journal = journal;
+        if (archive != null && previous != null && previous != journal) previous.removeArchive(archive);
+        if (journal != null) {
+            journal.bank(this);
+            for (Bank bank : transferableBanks) {
+                journal.link(bic, bank.getBic(), true);
+            }
+            journal.commit();
+        }
+    }
+
+    /**
+     * Waits for the journal frames of the calling mutation if the journal commits synchronously.
+     */
+    private void commitJournal() {
+        BankJournal journal = this.journal;
+        if (journal != null) journal.commit();
+    }
+
+    public BankMetrics getMetrics() { return metrics; }
+
+    /**
+     * Starts recording transfer outcomes and operation latencies into the given metrics, or stops recording if null.
+     * Metrics may be shared by several banks.
+     */
+    public void setMetrics(BankMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public BalanceMode getBalanceMode() { return balanceMode; }
+
+    /**
+     * Sets the balance mode of all accounts of this bank and converts their balances. In
+     * {@link BalanceMode#FIXED_POINT} deposits and withdrawals do not take account locks even in concurrent mode;
+     * the overdraft check is part of the compare-and-set loop in {@link Account#tryDebit(long)}. Must not be
+     * switched while other threads are using the bank.
+     */
+    public void setBalanceMode(BalanceMode balanceMode) {
+        this.balanceMode = balanceMode;
+        for (Account account : accounts()) {
+            lockAccount(account.getIban());
+            try {
+                account.setBalanceMode(balanceMode);
+            } finally {
+                unlockAccount(account.getIban());
+            }
+        }
+        BankJournal journal = this.journal;
+        if (journal != null) {
+            journal.balanceMode(bic, balanceMode);
+            journal.commit();
+        }
+    }
+
+    public HistoryStorage getHistoryStorage() { return historyStorage; }
+
+    /**
+     * Returns the arena the off-heap histories of this bank's accounts allocate from.
+     */
+    OffHeapArena offHeapArena() { return offHeapArena; }
+
+    /**
+     * Sets where the transaction histories of this bank's accounts keep their entries and moves the existing
+     * entries. {@link HistoryStorage#OFF_HEAP} keeps large histories out of the garbage collector's way at the cost of
+     * building a transaction object on every read. Must not be switched while other threads are using the bank.
+     */
+    public void setHistoryStorage(HistoryStorage historyStorage) {
+        this.historyStorage = historyStorage;
+        for (Account account : accounts()) {
+            lockAccount(account.getIban());
+            try {
+                TransactionHistory history = account.getHistory();
+                if (history.storage() != historyStorage) {
+                    account.setHistory(new TransactionHistory(history, historyStorage));
+                }
+            } finally {
+                unlockAccount(account.getIban());
+            }
+        }
+    }
+
+    public HistoryArchive getHistoryArchive() { return historyArchive; }
+
+    /**
+     * Sets the archive the transaction histories of this bank's accounts append their evicted entries to, or null
+     * to stop archiving. Lookups by transaction number and date then fall through to the archive. An archive
+     * belongs to one bank. Must not be switched while other threads are using the bank. While the bank has a
+     * journal, the journal flushes the archive before each commit.
+     */
+    public void setHistoryArchive(HistoryArchive historyArchive) {
+        if (historyArchive != null) historyArchive.attach(this);
+        HistoryArchive previous = this.historyArchive;
+        BankJournal journal = this.journal;
+        if (journal != null && historyArchive != null) journal.addArchive(historyArchive);
+        this.historyArchive = historyArchive;
+        for (Account account : accounts()) {
+            lockAccount(account.getIban());
+            try {
+                account.getHistory().archive(historyArchive, account);
+            } finally {
+                unlockAccount(account.getIban());
+            }
+        }
+        if (journal != null && previous != null && previous != historyArchive) journal.removeArchive(previous);
+    }
+
+    /**
+     * Sets the capacity of the transaction histories. Histories are not resized here but on their next access
+     * through {@link Account#getHistory()}, keeping their newest entries in order, so the change does not stall the
+     * bank; {@link #resizeHistories()} resizes the remaining ones.
+     */
+    public synchronized void setTransactionHistoryCapacity(int transactionHistoryCapacity) {
         this.transactionHistoryCapacity = transactionHistoryCapacity;
-        for (int i = 0; i < size; i++) {
-            Account account = accounts[i];
-            account.setHistory(new TransactionHistory(account.getHistory(), transactionHistoryCapacity));
+        historyVersion++;
+        BankJournal journal = this.journal;
+        if (journal != null) {
+            journal.capacity(bic, transactionHistoryCapacity);
+            journal.commit();
         }
     }
 
-    protected boolean isIbanAlreadyUsed(long iban) {
-        for (int x = 0; x < size; x++) {
-            if (accounts[x].getIban() == iban) {
-                return true;
+    int historyVersion() { return historyVersion; }
+
+    /**
+     * Resizes the history of the given account to the current capacity, under the account lock.
+     */
+    TransactionHistory resizeHistory(Account account) {
+        lockAccount(account.getIban());
+        try {
+            // the version is read before the capacity, so the capacity is at least as new as the version
+            int version = historyVersion;
+            int capacity = transactionHistoryCapacity;
+            TransactionHistory history = account.currentHistory();
+            if (account.historyVersion() != version) {
+                if (history.capacity() != capacity) {
+                    history = new TransactionHistory(history, capacity, historyStorage);
+                }
+                account.setHistory(history, version);
             }
+            return history;
+        } finally {
+            unlockAccount(account.getIban());
         }
-        return false;
+    }
+
+    /**
+     * Resizes the histories not yet resized to the current capacity, one account at a time. May run in the
+     * background while the bank is in use.
+     */
+    public void resizeHistories() {
+        for (Account account : accounts()) {
+            account.getHistory();
+        }
+    }
+
+    protected boolean isIbanAlreadyUsed(long iban) {
+        return ibanIndex.containsKey(iban);
     }
 
     /**
      * Generate IBAN using seed; if collision -> try next seeds (seed++).
      */
     protected long generateIban(Customer customer, long seed) {
+        return generateIban(customer, seed, null);
+    }
+
+    /**
+     * Generates an IBAN that is neither used nor among the reserved IBANs, which may be null.
+     */
+    private long generateIban(Customer customer, long seed, LongIntMap reserved) {
         long s = seed;
         long generated;
         // protect against hashCode * s overflow producing same value repeatedly:
@@ -74,24 +488,159 @@ public class Bank {
             if (v == Long.MIN_VALUE) v = 0;
             generated = Math.abs(v);
             s++;
-        } while (isIbanAlreadyUsed(generated));
+        } while (isIbanAlreadyUsed(generated) || reserved != null && reserved.containsKey(generated));
         return generated;
     }
 
     /**
-     * Add a new account for customer. Throws IllegalStateException when bank full.
+     * Add a new account for customer. The account storage grows when the capacity is reached.
      */
     public void add(Customer customer) {
-        if (size >= capacity) {
-            throw new IllegalStateException("Bank is full");
+        long stamp = lockStructure();
+        try {
+            insert(customer, generateIban(customer, IdAllocator.next()));
+        } finally {
+            unlockStructure(stamp);
+        }
+        commitJournal();
+    }
+
+    /**
+     * Bulk load: adds accounts for the given customers under one structure lock, so they become visible together.
+     * An IBAN of -1 is generated; any other IBAN is kept. Positive balances are credited and journaled as deposits.
+     * Throws IllegalArgumentException, before adding any account, if a balance is negative or a kept IBAN is
+     * already used or given twice; the IBANs to generate are generated before the first account is added as well.
+     */
+    Account[] insertAll(Customer[] customers, long[] ibans, double[] balances) {
+        Account[] added = new Account[customers.length];
+        checkJournal();
+        long stamp = lockStructure();
+        try {
+            LongIntMap reserved = new LongIntMap(customers.length);
+            for (int i = 0; i < customers.length; i++) {
+                if (!(balances[i] >= 0)) throw new IllegalArgumentException(String.valueOf(balances[i]));
+                long iban = ibans[i];
+                if (iban != -1 && (isIbanAlreadyUsed(iban) || reserved.put(iban, 0) != LongIntMap.NO_VALUE))
+                    throw new IllegalArgumentException("IBAN already used: " + iban);
+            }
+            // every IBAN is known before the first account is added, so no account is added if one cannot be
+            long[] resolved = new long[customers.length];
+            for (int i = 0; i < customers.length; i++) {
+                long iban = ibans[i];
+                if (iban == -1) {
+                    iban = generateIban(customers[i], IdAllocator.next(), reserved);
+                    reserved.put(iban, 0);
+                }
+                resolved[i] = iban;
+            }
+            ibanIndex.ensureCapacity(accounts.size() + customers.length);
+            BankJournal journal = this.journal;
+            for (int i = 0; i < customers.length; i++) {
+                long iban = resolved[i];
+                Account account = insert(customers[i], iban);
+                if (balances[i] > 0) {
+                    account.setBalance(balances[i]);
+                    if (journal != null) journal.balance(true, bic, iban, balances[i]);
+                }
+                added[i] = account;
+            }
+            return added;
+        } finally {
+            unlockStructure(stamp);
+            commitJournal();
+        }
+    }
+
+    /**
+     * Bulk load: appends entries to the histories of this bank's accounts in order, as written by a statement
+     * export, locking one account at a time. The journal frames of all entries are committed together at the end.
+     */
+    void restoreEntries(Account[] accounts, Transaction[] transactions) {
+        BankJournal journal = this.journal;
+        try {
+            for (int i = 0; i < accounts.length; i++) {
+                Account account = accounts[i];
+                Transaction transaction = transactions[i];
+                IdAllocator.reserve(transaction.transactionNumber());
+                lockAccount(account.getIban());
+                try {
+                    preserve(account);
+                    account.getHistory().add(transaction);
+                    if (journal != null) {
+                        journal.transfer(transaction, transaction.sourceAccount() == account ? BankJournal.SENDER_HISTORY : BankJournal.RECEIVER_HISTORY);
+                    }
+                } finally {
+                    unlockAccount(account.getIban());
+                }
+            }
+        } finally {
+            commitJournal();
+        }
+    }
+
+    /**
+     * Adds an account with a known IBAN, as recorded by a journal. Throws IllegalArgumentException if the IBAN is
+     * already used.
+     */
+    Account restore(Customer customer, long iban) {
+        long stamp = lockStructure();
+        try {
+            if (isIbanAlreadyUsed(iban)) throw new IllegalArgumentException("IBAN already used: " + iban);
+            return insert(customer, iban);
+        } finally {
+            unlockStructure(stamp);
+            commitJournal();
         }
-        long iban = generateIban(customer, System.nanoTime());
-        TransactionHistory th = new TransactionHistory(transactionHistoryCapacity);
+    }
+
+    /**
+     * Snapshot restore: replaces the (empty) history of a restored account and tracks its open transactions.
+     */
+    void restoreHistory(Account account, TransactionHistory history) {
+        account.getHistory().untrack();
+        history.track(openTransactions);
+        HistoryArchive archive = historyArchive;
+        if (archive != null) history.archive(archive, account);
+        account.setHistory(history);
+    }
+
+    /**
+     * Snapshot restore: queues a transaction that was waiting for settlement.
+     */
+    void restorePending(int receiverBic, Transaction transaction) {
+        clearingQueues.enqueue(receiverBic, transaction);
+    }
+
+    /**
+     * Returns the transactions waiting for settlement by receiving BIC, as written by a snapshot.
+     */
+    Map<Integer, List<Transaction>> pendingTransactions() {
+        return clearingQueues.snapshot();
+    }
+
+    /**
+     * Creates an account, stores it in the next free slot and indexes it by IBAN.
+     */
+    private Account insert(Customer customer, long iban) {
+        int version = historyVersion;
+        TransactionHistory th = new TransactionHistory(transactionHistoryCapacity, historyStorage, offHeapArena);
+        th.track(openTransactions);
         Account account = new Account(customer, iban, 0.0, this, th);
-        accounts[size++] = account;
+        HistoryArchive archive = historyArchive;
+        if (archive != null) th.archive(archive, account);
+        account.setHistory(th, version);
+        account.setBalanceMode(balanceMode);
+        ibanIndex.put(iban, accounts.add(account));
+        customerIndex.add(account);
+        BankState state = copying;
+        if (state != null) state.exclude(account);
+        BankJournal journal = this.journal;
+        if (journal != null) journal.add(bic, account);
+        return account;
     }
 
-    public void add(Bank bank) {
+    public synchronized void add(Bank bank) {
+        Bank[] transferableBanks = this.transferableBanks;
         for (Bank transferableBank : transferableBanks) {
             if (transferableBank.getBic() == bank.getBic()) {
                 throw new IllegalArgumentException("Cannot add duplicates!");
@@ -100,161 +649,852 @@ public class Bank {
         Bank[] newTransferableBanks = new Bank[transferableBanks.length + 1];
         System.arraycopy(transferableBanks, 0, newTransferableBanks, 0, transferableBanks.length);
         newTransferableBanks[transferableBanks.length] = bank;
-        transferableBanks = newTransferableBanks;
+        this.transferableBanks = newTransferableBanks;
+        BankJournal journal = this.journal;
+        if (journal != null) {
+            journal.link(bic, bank.getBic(), true);
+            journal.commit();
+        }
     }
 
     public int getAccountIndex(long iban) {
-        for (int i = 0; i < size; i++) {
-            if (accounts[i].getIban() == iban)
-                return i;
+        int index = findAccountIndex(iban);
+        if (index < 0)
+            throw new NoSuchElementException(String.valueOf(iban));
+        return index;
+    }
+
+    /**
+     * Returns the index of the account with the given IBAN, or -1 if there is none.
+     */
+    public int findAccountIndex(long iban) {
+        long stamp = concurrent ? structureLock.readLock() : 0L;
+        try {
+            int index = ibanIndex.get(iban);
+            return index == LongIntMap.NO_VALUE ? -1 : index;
+        } finally {
+            if (stamp != 0L) structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the account with the given IBAN, or null if there is none. In concurrent mode the lookup first runs
+     * as an optimistic read and only takes the read lock if a structural change interfered.
+     */
+    public Account findAccount(long iban) {
+        if (!concurrent) {
+            int index = ibanIndex.get(iban);
+            return index == LongIntMap.NO_VALUE ? null : accounts.get(index);
+        }
+        long stamp = structureLock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                int index = ibanIndex.get(iban);
+                Account account = index == LongIntMap.NO_VALUE ? null : accounts.get(index);
+                if (structureLock.validate(stamp)) {
+                    return account;
+                }
+            } catch (RuntimeException ignored) {
+                // torn read of a concurrently changing index, retry under the read lock
+            }
+        }
+        stamp = structureLock.readLock();
+        try {
+            int index = ibanIndex.get(iban);
+            return index == LongIntMap.NO_VALUE ? null : accounts.get(index);
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the accounts of the given customer, in the order they were added.
+     */
+    public List<Account> findAccounts(Customer customer) {
+        long stamp = concurrent ? structureLock.readLock() : 0L;
+        try {
+            return customerIndex.byCustomer(customer);
+        } finally {
+            if (stamp != 0L) structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the accounts of all customers with the given last name.
+     */
+    public List<Account> findAccountsByLastName(String lastName) {
+        long stamp = concurrent ? structureLock.readLock() : 0L;
+        try {
+            return customerIndex.byLastName(lastName);
+        } finally {
+            if (stamp != 0L) structureLock.unlockRead(stamp);
         }
-        throw new NoSuchElementException(String.valueOf(iban));
     }
 
+    /**
+     * Returns the accounts of all customers born on the given date.
+     */
+    public List<Account> findAccountsByDateOfBirth(LocalDate dateOfBirth) {
+        return findAccountsByDateOfBirth(dateOfBirth, dateOfBirth);
+    }
+
+    /**
+     * Returns the accounts of all customers born between the given dates, inclusive, ordered by date of birth.
+     */
+    public List<Account> findAccountsByDateOfBirth(LocalDate from, LocalDate to) {
+        long stamp = concurrent ? structureLock.readLock() : 0L;
+        try {
+            return customerIndex.byDateOfBirth(from, to);
+        } finally {
+            if (stamp != 0L) structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the account with the given IBAN. Throws NoSuchElementException if there is none.
+     */
+    private Account account(long iban) {
+        Account account = findAccount(iban);
+        if (account == null) throw new NoSuchElementException(String.valueOf(iban));
+        return account;
+    }
+
+    private long lockStructure() {
+        return concurrent ? structureLock.writeLock() : 0L;
+    }
+
+    private void unlockStructure(long stamp) {
+        if (stamp != 0L) structureLock.unlockWrite(stamp);
+    }
+
+    void lockAccount(long iban) {
+        if (concurrent) AccountLocks.lock(iban);
+    }
+
+    void unlockAccount(long iban) {
+        if (concurrent) AccountLocks.unlock(iban);
+    }
+
+    /**
+     * Remove account by IBAN. The last account is moved into the freed slot, so the order of
+     * {@link #getAccounts()} is not preserved.
+     */
     public Account remove(long iban) {
-        // getAccountIndex throws if not present
-        int numberinArray = getAccountIndex(iban);
-        Account removedAccount = accounts[numberinArray];
-        for (int x = numberinArray; x < size - 1; x++) {
-            accounts[x] = accounts[x + 1];
+        lockAccount(iban);
+        long stamp = lockStructure();
+        try {
+            int numberinArray = ibanIndex.get(iban);
+            if (numberinArray == LongIntMap.NO_VALUE)
+                throw new NoSuchElementException(String.valueOf(iban));
+            Account removedAccount = accounts.get(numberinArray);
+            Account moved = accounts.removeLast();
+            if (moved != removedAccount) {
+                accounts.set(numberinArray, moved);
+                ibanIndex.put(moved.getIban(), numberinArray);
+            }
+            ibanIndex.remove(iban);
+            customerIndex.remove(removedAccount);
+            removedAccount.getHistory().untrack();
+            BankJournal journal = this.journal;
+            if (journal != null) journal.remove(bic, iban);
+            return removedAccount;
+        } finally {
+            unlockStructure(stamp);
+            unlockAccount(iban);
+            commitJournal();
         }
-        accounts[size - 1] = null;
-        size--;
-        return removedAccount;
     }
 
-    private int getBankIndex(int bic) {
+    private int getBankIndex(Bank[] transferableBanks, int bic) {
         for (int i = 0; i < transferableBanks.length; i++) {
             if (transferableBanks[i].getBic() == bic)
                 return i;
         }
-        throw new NoSuchElementException(String.valueOf(bic));
+        return -1;
     }
 
-    private Bank getBank(int bic) {
-        return transferableBanks[getBankIndex(bic)];
+    /**
+     * Returns the transferable bank with the given BIC, or null if there is none.
+     */
+    public Bank findBank(int bic) {
+        Bank[] transferableBanks = this.transferableBanks;
+        int index = getBankIndex(transferableBanks, bic);
+        return index < 0 ? null : transferableBanks[index];
     }
 
-    public Bank remove(int bic) {
+    public synchronized Bank remove(int bic) {
         assert bic >= 0;
-        int index = getBankIndex(bic);
+        Bank[] transferableBanks = this.transferableBanks;
+        int index = getBankIndex(transferableBanks, bic);
+        if (index < 0) throw new NoSuchElementException(String.valueOf(bic));
         Bank removedBank = transferableBanks[index];
         Bank[] newTransferableBanks = new Bank[transferableBanks.length - 1];
         System.arraycopy(transferableBanks, 0, newTransferableBanks, 0, index);
         System.arraycopy(transferableBanks, index + 1, newTransferableBanks, index, transferableBanks.length - index - 1);
-        transferableBanks = newTransferableBanks;
+        this.transferableBanks = newTransferableBanks;
+        BankJournal journal = this.journal;
+        if (journal != null) {
+            journal.link(this.bic, bic, false);
+            journal.commit();
+        }
         return removedBank;
     }
 
     public void deposit(long iban, double amount) {
-        if (amount <= 0) throw new IllegalArgumentException(String.valueOf(amount));
-        int index = getAccountIndex(iban); // throws if not found
-        accounts[index].setBalance(accounts[index].getBalance() + amount);
+        BankMetrics metrics = this.metrics;
+        long start = metrics == null ? 0L : System.nanoTime();
+        try {
+            if (amount <= 0) throw new IllegalArgumentException(String.valueOf(amount));
+            BankJournal journal = this.journal;
+            int ticket = enter();
+            try {
+                if (balanceMode == BalanceMode.FIXED_POINT && journal == null && copying == null) {
+                    credit(account(iban), amount); // lock-free
+                    return;
+                }
+                lockAccount(iban);
+                try {
+                    Account account = account(iban); // throws if not found
+                    preserve(account);
+                    credit(account, amount);
+                    if (journal != null) journal.balance(true, bic, iban, amount);
+                } finally {
+                    unlockAccount(iban);
+                }
+            } finally {
+                exit(ticket);
+            }
+            commitJournal();
+        } finally {
+            if (metrics != null) metrics.record(BankMetrics.Operation.DEPOSIT, start);
+        }
     }
 
+    /**
+     * Withdraw. In fixed-point mode without a journal this is lock-free unless a {@link #snapshot()} is being copied;
+     * with a journal the account is locked so frames of one account are journaled in execution order.
+     */
     public void withdraw(long iban, double amount) {
+        BankMetrics metrics = this.metrics;
+        long start = metrics == null ? 0L : System.nanoTime();
+        try {
+            if (amount <= 0) throw new IllegalArgumentException(String.valueOf(amount));
+            BankJournal journal = this.journal;
+            int ticket = enter();
+            try {
+                if (balanceMode == BalanceMode.FIXED_POINT && journal == null && copying == null) {
+                    debit(account(iban), amount); // lock-free
+                    return;
+                }
+                lockAccount(iban);
+                try {
+                    Account account = account(iban); // throws if not found
+                    preserve(account);
+                    debit(account, amount);
+                    if (journal != null) journal.balance(false, bic, iban, amount);
+                } finally {
+                    unlockAccount(iban);
+                }
+            } finally {
+                exit(ticket);
+            }
+            commitJournal();
+        } finally {
+            if (metrics != null) metrics.record(BankMetrics.Operation.WITHDRAW, start);
+        }
+    }
+
+    private static void credit(Account account, double amount) {
+        if (amount <= 0) throw new IllegalArgumentException(String.valueOf(amount));
+        if (account.getBalanceMode() == BalanceMode.FIXED_POINT) {
+            long minorUnits = Account.toMinorUnits(amount);
+            if (minorUnits <= 0) throw new IllegalArgumentException(String.valueOf(amount));
+            account.credit(minorUnits);
+            return;
+        }
+        account.setBalance(account.getBalance() + amount);
+    }
+
+    /**
+     * Credits the receiver of a transfer whose sender is already debited, unless its balance would overflow.
+     *
+     * @param account the receiver
+     * @param amount  the amount
+     * @return {@code true} if the amount was credited, {@code false} if the balance would overflow
+     */
+    private static boolean tryCredit(Account account, double amount) {
+        if (account.getBalanceMode() == BalanceMode.FIXED_POINT) {
+            return account.tryCredit(Account.toMinorUnits(amount));
+        }
+        account.setBalance(account.getBalance() + amount);
+        return true;
+    }
+
+    private static void debit(Account account, double amount) {
         if (amount <= 0) throw new IllegalArgumentException(String.valueOf(amount));
-        int index = getAccountIndex(iban); // throws if not found
-        if (accounts[index].getBalance() < amount) {
-            throw new IllegalArgumentException(String.valueOf(accounts[index].getBalance() - amount));
+        if (account.getBalanceMode() == BalanceMode.FIXED_POINT) {
+            long minorUnits = Account.toMinorUnits(amount);
+            if (minorUnits <= 0 || !account.tryDebit(minorUnits)) {
+                throw new IllegalArgumentException(String.valueOf(account.getBalance() - amount));
+            }
+            return;
         }
-        accounts[index].setBalance(accounts[index].getBalance() - amount);
+        if (account.getBalance() < amount) {
+            throw new IllegalArgumentException(String.valueOf(account.getBalance() - amount));
+        }
+        account.setBalance(account.getBalance() - amount);
     }
 
     protected long generateTransactionNumber() {
-        return System.nanoTime();
+        return IdAllocator.next();
     }
 
     /**
      * Transfer: looks up sender in this bank; receiver may be in this bank or a transferable bank.
-     * Updates both histories and returns CLOSED or CANCELLED.
+     * Updates both histories and returns CLOSED or CANCELLED. In concurrent mode both accounts stay locked
+     * from the OPEN entry until the final history update.
      */
     public Status transfer(long senderIBAN, long receiverIBAN, int receiverBIC, double amount, String description) {
+        return tryTransfer(senderIBAN, receiverIBAN, receiverBIC, amount, description).status();
+    }
+
+    /**
+     * Transfers like {@link #transfer(long, long, int, double, String)} and also tells why a transfer was
+     * cancelled. Rejections are decided without exceptions; the returned results are cached instances.
+     */
+    public TransferResult tryTransfer(long senderIBAN, long receiverIBAN, int receiverBIC, double amount, String description) {
+        BankMetrics metrics = this.metrics;
+        long start = metrics == null ? 0L : System.nanoTime();
+        TransferResult result;
+        int ticket = enter();
         try {
-            Account sender = accounts[getAccountIndex(senderIBAN)];
-            Account receiver;
-            Bank receiverBank;
-            if (receiverBIC == this.bic) {
-                receiverBank = this;
-                receiver = accounts[getAccountIndex(receiverIBAN)];
-            } else {
-                receiverBank = getBank(receiverBIC); // may throw
-                int idx = receiverBank.getAccountIndex(receiverIBAN);
-                receiver = receiverBank.accounts[idx];
+            result = transferLocked(senderIBAN, receiverIBAN, receiverBIC, amount, description);
+        } finally {
+            exit(ticket);
+        }
+        commitJournal();
+        if (metrics != null) metrics.transfer(result.status(), start);
+        return result;
+    }
+
+    private TransferResult transferLocked(long senderIBAN, long receiverIBAN, int receiverBIC, double amount, String description) {
+        Account sender = findAccount(senderIBAN);
+        if (sender == null) return rejected(RejectionReason.UNKNOWN_SENDER);
+        Bank receiverBank = receiverBIC == this.bic ? this : findBank(receiverBIC);
+        if (receiverBank == null) return rejected(RejectionReason.UNKNOWN_BANK);
+        Account receiver = receiverBank.findAccount(receiverIBAN);
+        if (receiver == null) return rejected(RejectionReason.UNKNOWN_RECEIVER);
+        if (clearing && receiverBank != this) {
+            return enqueue(sender, receiver, amount, description);
+        }
+        if (!concurrent) {
+            return transfer(sender, receiver, amount, description);
+        }
+        AccountLocks.lock(senderIBAN, receiverIBAN);
+        try {
+            // either account may have been removed before we got the locks
+            if (findAccount(senderIBAN) != sender || receiverBank.findAccount(receiverIBAN) != receiver) {
+                return rejected(RejectionReason.ACCOUNT_REMOVED);
             }
+            return transfer(sender, receiver, amount, description);
+        } finally {
+            AccountLocks.unlock(senderIBAN, receiverIBAN);
+        }
+    }
+
+    /**
+     * Records the reason of a cancelled transfer if metrics are set and returns its cached result.
+     */
+    private TransferResult rejected(RejectionReason reason) {
+        BankMetrics metrics = this.metrics;
+        if (metrics != null) metrics.reject(reason);
+        return TransferResult.rejected(reason);
+    }
+
+    /**
+     * Debits the amount from the sender of a transfer to the receiver. Returns null on success, or why the amount
+     * could not be debited, in which case nothing changed.
+     */
+    private static RejectionReason tryDebit(Account sender, Account receiver, double amount) {
+        if (!(amount > 0) || !representable(sender, amount) || !representable(receiver, amount)) {
+            return RejectionReason.INVALID_AMOUNT;
+        }
+        if (sender.getBalanceMode() == BalanceMode.FIXED_POINT) {
+            return sender.tryDebit(Account.toMinorUnits(amount)) ? null : RejectionReason.INSUFFICIENT_FUNDS;
+        }
+        if (sender.getBalance() < amount) {
+            return RejectionReason.INSUFFICIENT_FUNDS;
+        }
+        sender.setBalance(sender.getBalance() - amount);
+        return null;
+    }
+
+    /**
+     * Returns whether a positive amount is at least one minor unit for an account in fixed-point mode.
+     */
+    private static boolean representable(Account account, double amount) {
+        return account.getBalanceMode() != BalanceMode.FIXED_POINT || Account.toMinorUnits(amount) > 0;
+    }
 
-            Transaction openTx = new Transaction(sender, receiver, amount, generateTransactionNumber(), description, LocalDate.now(), Status.OPEN);
+    /**
+     * Records the transaction as OPEN in both histories, moves the money and closes the transaction. If a history
+     * rejects the transaction or the money cannot be moved, the money stays where it was and the entries that were
+     * added are updated to CANCELLED.
+     */
+    private TransferResult transfer(Account sender, Account receiver, double amount, String description) {
+        Transaction openTx = new Transaction(sender, receiver, amount, generateTransactionNumber(), description, LocalDate.now(), Status.OPEN);
+        preserve(sender);
+        preserve(receiver);
+        boolean senderAdded = false;
+        boolean receiverAdded = false;
+        RejectionReason reason;
+        try {
+            // a history that rejects the transaction is left unchanged, and no money has moved yet
             sender.getHistory().add(openTx);
+            senderAdded = true;
             receiver.getHistory().add(openTx);
-
+            receiverAdded = true;
+            reason = tryDebit(sender, receiver, amount);
+        } catch (IllegalArgumentException | IllegalStateException | UncheckedIOException e) {
+            reason = RejectionReason.HISTORY_COLLISION;
+        }
+        if (reason == null && !tryCredit(receiver, amount)) {
+            credit(sender, amount); // refund
+            reason = RejectionReason.BALANCE_OVERFLOW;
+        }
+        if (reason == null) {
+            Transaction closed = new Transaction(sender, receiver, amount, openTx.transactionNumber(), description, LocalDate.now(), Status.CLOSED);
             try {
-                // perform changing balances on correct banks
-                this.withdraw(senderIBAN, amount);
-                receiverBank.deposit(receiverIBAN, amount);
-
-                Transaction closed = new Transaction(sender, receiver, amount, openTx.transactionNumber(), description, LocalDate.now(), Status.CLOSED);
                 sender.getHistory().update(closed);
                 receiver.getHistory().update(closed);
-                return Status.CLOSED;
-            } catch (Exception e) {
-                Transaction cancelled = new Transaction(sender, receiver, amount, openTx.transactionNumber(), description, LocalDate.now(), Status.CANCELLED);
-                // update histories to cancelled
-                try { sender.getHistory().update(cancelled); } catch (TransactionException ignored) {}
-                try { receiver.getHistory().update(cancelled); } catch (TransactionException ignored) {}
-                return Status.CANCELLED;
+            } catch (IllegalArgumentException | IllegalStateException | UncheckedIOException | TransactionException e) {
+                // a history could not close the transaction, so the money goes back
+                debit(receiver, amount);
+                credit(sender, amount);
+                reason = RejectionReason.HISTORY_COLLISION;
+            }
+            if (reason == null) {
+                journal(closed, BankJournal.DEBIT | BankJournal.CREDIT);
+                return TransferResult.of(Status.CLOSED);
+            }
+        }
+        cancel(openTx, senderAdded, receiverAdded);
+        return rejected(reason);
+    }
+
+    /**
+     * Updates the entries a transfer added to the histories to CANCELLED and journals them; a history that rejected
+     * the transaction keeps its own entry.
+     */
+    private void cancel(Transaction transaction, boolean senderAdded, boolean receiverAdded) {
+        Account sender = transaction.sourceAccount();
+        Account receiver = transaction.targetAccount();
+        Transaction cancelled = new Transaction(sender, receiver, transaction.amount(), transaction.transactionNumber(), transaction.description(), transaction.date(), Status.CANCELLED);
+        int flags = 0;
+        if (senderAdded) {
+            try { sender.getHistory().update(cancelled); flags |= BankJournal.SENDER_HISTORY; } catch (TransactionException ignored) {}
+        }
+        if (receiverAdded) {
+            try { receiver.getHistory().update(cancelled); flags |= BankJournal.RECEIVER_HISTORY; } catch (TransactionException ignored) {}
+        }
+        BankJournal journal = this.journal;
+        if (journal != null) journal.transfer(cancelled, flags);
+    }
+
+    /**
+     * Journals a transaction that was added to both histories, with the given balance flags.
+     */
+    private void journal(Transaction transaction, int flags) {
+        BankJournal journal = this.journal;
+        if (journal != null) {
+            journal.transfer(transaction, flags | BankJournal.SENDER_HISTORY | BankJournal.RECEIVER_HISTORY);
+        }
+    }
+
+    /**
+     * Journal replay: applies a transfer with its recorded outcome.
+     */
+    void restoreTransfer(long senderIban, Bank receiverBank, long receiverIban, double amount, long number, LocalDate date, Status status, String description, int flags) {
+        Account sender = account(senderIban);
+        Account receiver = receiverBank.account(receiverIban);
+        IdAllocator.reserve(number);
+        Transaction tx = new Transaction(sender, receiver, amount, number, description, date, status);
+        if ((flags & BankJournal.DEBIT) != 0) debit(sender, amount);
+        if ((flags & BankJournal.CREDIT) != 0) credit(receiver, amount);
+        if ((flags & BankJournal.SENDER_HISTORY) != 0) sender.getHistory().add(tx);
+        if ((flags & BankJournal.RECEIVER_HISTORY) != 0) receiver.getHistory().add(tx);
+        if ((flags & BankJournal.QUEUE) != 0) clearingQueues.enqueue(receiverBank.bic, tx);
+        BankJournal journal = this.journal;
+        if (journal != null) journal.transfer(tx, flags);
+    }
+
+    /**
+     * Debits the sender of a cross-bank transfer and queues the transaction for settlement. Only the sender's
+     * account is locked; the receiver is touched at settlement.
+     */
+    private TransferResult enqueue(Account sender, Account receiver, double amount, String description) {
+        lockAccount(sender.getIban());
+        try {
+            if (findAccount(sender.getIban()) != sender) {
+                return rejected(RejectionReason.ACCOUNT_REMOVED);
+            }
+            preserve(sender);
+            RejectionReason reason = tryDebit(sender, receiver, amount);
+            Status status = reason == null ? Status.OPEN : Status.CANCELLED;
+            Transaction tx = new Transaction(sender, receiver, amount, generateTransactionNumber(), description, LocalDate.now(), status);
+            sender.getHistory().add(tx);
+            if (status == Status.OPEN) {
+                clearingQueues.enqueue(receiver.getBank().getBic(), tx);
+            }
+            BankJournal journal = this.journal;
+            if (journal != null) {
+                int flags = status == Status.OPEN ? BankJournal.DEBIT | BankJournal.QUEUE : 0;
+                journal.transfer(tx, flags | BankJournal.SENDER_HISTORY);
+            }
+            return reason == null ? TransferResult.of(Status.OPEN) : rejected(reason);
+        } finally {
+            unlockAccount(sender.getIban());
+        }
+    }
+
+    /**
+     * Settles the queued cross-bank transfers between this bank and each of its transferable banks, in both
+     * directions. For every pair the gross flows are netted into one movement, and each receiving account is
+     * credited once with the sum of its incoming transfers. Transactions to accounts that no longer exist are
+     * cancelled and refunded; all others are closed. Transfers queued for banks that are no longer transferable
+     * are cancelled as well.
+     *
+     * @return the net amount this bank paid to each counterparty during this settlement, by BIC; negative if this
+     * bank received more than it paid
+     */
+    public Map<Integer, Double> settle() {
+        Map<Integer, Double> net = new HashMap<>();
+        LocalDate today = LocalDate.now();
+        for (Bank other : transferableBanks) {
+            settle(other, today, net);
+        }
+        // queues left over are for banks that were unlinked, or for banks linked since the loop above started
+        for (int receiverBic : clearingQueues.receiverBics()) {
+            Bank other = findBank(receiverBic);
+            if (other != null) {
+                settle(other, today, net);
+                continue;
+            }
+            int ticket = enter();
+            try {
+                settle(this, clearingQueues.drain(receiverBic), receiverBic, null, today);
+            } finally {
+                exit(ticket);
+            }
+        }
+        commitJournal();
+        return net;
+    }
+
+    /**
+     * Settles the queues of this bank and the given reachable bank against each other and adds the net amount this
+     * bank paid to the given map, unless both queues are empty.
+     */
+    private void settle(Bank other, LocalDate today, Map<Integer, Double> net) {
+        // the queues of both banks are drained, so both gates are entered, in BIC order
+        Bank first = bic <= other.bic ? this : other;
+        Bank second = first == this ? other : this;
+        int firstTicket = first.enter();
+        int secondTicket = second == first ? -1 : second.enter();
+        try {
+            List<Transaction> outgoing = clearingQueues.drain(other.bic);
+            List<Transaction> incoming = other.clearingQueues.drain(bic);
+            if (outgoing.isEmpty() && incoming.isEmpty()) {
+                return;
+            }
+            net.merge(other.bic, settle(this, outgoing, other.bic, other, today) - settle(other, incoming, bic, this, today), Double::sum);
+        } finally {
+            second.exit(secondTicket);
+            first.exit(firstTicket);
+        }
+    }
+
+    /**
+     * Journal replay: settles the recorded transactions, in recorded order, from this bank's queue for the given BIC.
+     */
+    void restoreSettlement(int receiverBic, Bank receiverBank, LocalDate date, long[] numbers) {
+        LongIntMap order = new LongIntMap(numbers.length);
+        for (int i = 0; i < numbers.length; i++) {
+            order.put(numbers[i], i);
+        }
+        Transaction[] pending = new Transaction[numbers.length];
+        for (Transaction tx : clearingQueues.drain(receiverBic)) {
+            int i = order.get(tx.transactionNumber());
+            if (i == LongIntMap.NO_VALUE) {
+                clearingQueues.enqueue(receiverBic, tx);
+            } else {
+                pending[i] = tx;
             }
-        } catch (NoSuchElementException e) {
-            return Status.CANCELLED;
         }
+        settle(this, Arrays.asList(pending), receiverBic, receiverBank, date);
     }
 
     /**
-     * Check open transactions: iterate only actual accounts (0..size-1).
+     * Credits the receivers of the given queued transactions, which all go to the given bank (or to no reachable
+     * bank if null), and updates both histories. Accounts are grouped so each one is locked and credited once.
+     * Returns the amount that was actually credited.
+     */
+    private static double settle(Bank senderBank, List<Transaction> pending, int receiverBic, Bank receiverBank, LocalDate date) {
+        double settledAmount = 0;
+        if (pending.isEmpty()) {
+            return settledAmount;
+        }
+        BankJournal journal = senderBank.journal;
+        if (journal != null) {
+            journal.settle(senderBank.bic, receiverBic, receiverBank != null, date, pending);
+        }
+        Map<Account, List<Transaction>> byReceiver = new IdentityHashMap<>();
+        for (Transaction tx : pending) {
+            byReceiver.computeIfAbsent(tx.targetAccount(), a -> new ArrayList<>()).add(tx);
+        }
+        Map<Account, List<Transaction>> bySender = new IdentityHashMap<>();
+        for (Map.Entry<Account, List<Transaction>> entry : byReceiver.entrySet()) {
+            Account receiver = entry.getKey();
+            boolean concurrent = receiverBank != null && receiverBank.concurrent;
+            if (concurrent) AccountLocks.lock(receiver.getIban());
+            try {
+                boolean present = receiverBank != null && receiverBank.findAccount(receiver.getIban()) == receiver;
+                if (present) {
+                    // a receiver whose balance would overflow is treated like a removed one and its senders refunded
+                    preserve(receiver);
+                    if (receiver.getBalanceMode() == BalanceMode.FIXED_POINT) {
+                        // credit exactly what the senders were debited, not the rounded sum of the amounts
+                        long sum = Clearing.sumMinorUnits(entry.getValue());
+                        present = sum >= 0 && receiver.tryCredit(sum);
+                        if (present) settledAmount += (double) sum / Account.MINOR_UNITS;
+                    } else {
+                        double sum = Clearing.sum(entry.getValue());
+                        receiver.setBalance(receiver.getBalance() + sum);
+                        settledAmount += sum;
+                    }
+                }
+                Status status = present ? Status.CLOSED : Status.CANCELLED;
+                for (Transaction tx : entry.getValue()) {
+                    Transaction settled = new Transaction(tx.sourceAccount(), receiver, tx.amount(), tx.transactionNumber(), tx.description(), date, status);
+                    if (present) {
+                        receiver.getHistory().add(settled);
+                    }
+                    bySender.computeIfAbsent(tx.sourceAccount(), a -> new ArrayList<>()).add(settled);
+                }
+            } finally {
+                if (concurrent) AccountLocks.unlock(receiver.getIban());
+            }
+        }
+        for (Map.Entry<Account, List<Transaction>> entry : bySender.entrySet()) {
+            Account sender = entry.getKey();
+            boolean concurrent = sender.getBank().concurrent;
+            if (concurrent) AccountLocks.lock(sender.getIban());
+            try {
+                preserve(sender);
+                for (Transaction settled : entry.getValue()) {
+                    if (settled.status() == Status.CANCELLED) {
+                        credit(sender, settled.amount()); // refund
+                    }
+                    try { sender.getHistory().update(settled); } catch (TransactionException ignored) {}
+                }
+            } finally {
+                if (concurrent) AccountLocks.unlock(sender.getIban());
+            }
+        }
+        return settledAmount;
+    }
+
+    /**
+     * Transfers a batch of money given as parallel arrays; item i moves amounts[i] from senderIBANs[i] in this bank
+     * to receiverIBANs[i] in the bank with receiverBICs[i]. Every distinct account is looked up once per batch, all
+     * items share one date, and each item writes its transaction to both histories as CLOSED instead of an OPEN
+     * entry that is updated afterwards; only a cancelled item updates it. An item that a history rejects, for
+     * example a transfer from an account to itself, is cancelled without moving money, and the rest of the batch
+     * goes on. In clearing mode cross-bank items are queued as with
+     * {@link #transfer(long, long, int, double, String)}. Returns the status of each item in input order.
+     */
+    public Status[] transferBatch(long[] senderIBANs, long[] receiverIBANs, int[] receiverBICs, double[] amounts, String[] descriptions) {
+        Status[] result = transferBatchLocked(senderIBANs, receiverIBANs, receiverBICs, amounts, descriptions);
+        commitJournal();
+        BankMetrics metrics = this.metrics;
+        if (metrics != null) {
+            for (Status status : result) metrics.status(status);
+        }
+        return result;
+    }
+
+    private Status[] transferBatchLocked(long[] senderIBANs, long[] receiverIBANs, int[] receiverBICs, double[] amounts, String[] descriptions) {
+        int n = senderIBANs.length;
+        if (receiverIBANs.length != n || receiverBICs.length != n || amounts.length != n || descriptions.length != n) {
+            throw new IllegalArgumentException("Batch columns differ in length");
+        }
+        checkJournal();
+        Status[] result = new Status[n];
+        LocalDate today = LocalDate.now();
+        BatchResolver resolver = new BatchResolver();
+        for (int i = 0; i < n; i++) {
+            Account sender = resolver.resolve(this, senderIBANs[i]);
+            Bank receiverBank = receiverBICs[i] == this.bic ? this : resolver.bank(this, receiverBICs[i]);
+            Account receiver = receiverBank == null ? null : resolver.resolve(receiverBank, receiverIBANs[i]);
+            if (sender == null || receiver == null) {
+                result[i] = rejected(sender == null ? RejectionReason.UNKNOWN_SENDER
+                    : receiverBank == null ? RejectionReason.UNKNOWN_BANK : RejectionReason.UNKNOWN_RECEIVER).status();
+                continue;
+            }
+            if (!concurrent) {
+                result[i] = clearing && receiverBank != this ? enqueue(sender, receiver, amounts[i], descriptions[i]).status()
+                    : transfer(sender, receiver, amounts[i], descriptions[i], today);
+                continue;
+            }
+            // each item passes the snapshot gate on its own, so a snapshot never waits for the whole batch
+            int ticket = gate.enter();
+            try {
+                if (clearing && receiverBank != this) {
+                    result[i] = enqueue(sender, receiver, amounts[i], descriptions[i]).status();
+                    continue;
+                }
+                AccountLocks.lock(senderIBANs[i], receiverIBANs[i]);
+                try {
+                    if (findAccount(senderIBANs[i]) != sender || receiverBank.findAccount(receiverIBANs[i]) != receiver) {
+                        result[i] = rejected(RejectionReason.ACCOUNT_REMOVED).status();
+                    } else {
+                        result[i] = transfer(sender, receiver, amounts[i], descriptions[i], today);
+                    }
+                } finally {
+                    AccountLocks.unlock(senderIBANs[i], receiverIBANs[i]);
+                }
+            } finally {
+                gate.exit(ticket);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Records the transaction as CLOSED in both histories and then moves the money. If a history rejects the
+     * transaction or the money cannot be moved, nothing is moved and the entries that were added are updated to
+     * CANCELLED.
+     */
+    private Status transfer(Account sender, Account receiver, double amount, String description, LocalDate date) {
+        preserve(sender);
+        preserve(receiver);
+        Transaction tx = new Transaction(sender, receiver, amount, generateTransactionNumber(), description, date, Status.CLOSED);
+        boolean senderAdded = false;
+        boolean receiverAdded = false;
+        RejectionReason reason;
+        try {
+            // a history that rejects the transaction is left unchanged, and no money has moved yet
+            sender.getHistory().add(tx);
+            senderAdded = true;
+            receiver.getHistory().add(tx);
+            receiverAdded = true;
+            reason = tryDebit(sender, receiver, amount);
+        } catch (IllegalArgumentException | IllegalStateException | UncheckedIOException e) {
+            reason = RejectionReason.HISTORY_COLLISION;
+        }
+        if (reason == null && !tryCredit(receiver, amount)) {
+            credit(sender, amount); // refund
+            reason = RejectionReason.BALANCE_OVERFLOW;
+        }
+        if (reason == null) {
+            journal(tx, BankJournal.DEBIT | BankJournal.CREDIT);
+            return Status.CLOSED;
+        }
+        cancel(tx, senderAdded, receiverAdded);
+        return rejected(reason).status();
+    }
+
+    /**
+     * Caches the accounts and banks resolved during one batch, including misses.
+     */
+    private static final class BatchResolver {
+        private final Map<Bank, LongIntMap> slots = new IdentityHashMap<>();
+        private final List<Account> resolved = new ArrayList<>();
+        private int lastBic;
+        private Bank lastBank;
+        private boolean cachedBank;
+
+        Account resolve(Bank bank, long iban) {
+            LongIntMap bankSlots = slots.computeIfAbsent(bank, b -> new LongIntMap());
+            int slot = bankSlots.get(iban);
+            if (slot == LongIntMap.NO_VALUE) {
+                slot = resolved.size();
+                resolved.add(bank.findAccount(iban));
+                bankSlots.put(iban, slot);
+            }
+            return resolved.get(slot);
+        }
+
+        Bank bank(Bank bank, int bic) {
+            if (!cachedBank || lastBic != bic) {
+                lastBank = bank.findBank(bic);
+                lastBic = bic;
+                cachedBank = true;
+            }
+            return lastBank;
+        }
+    }
+
+    /**
+     * Check open transactions. Only the OPEN transactions older than two weeks are visited, each once, through the
+     * date-ordered {@link OpenTransactions} tracker of this bank.
      * - If OPEN and older than 4 weeks -> collect and throw TransactionException
      * - If OPEN and older than 2 weeks (but <=4) -> try to re-do transfer (i.e. create new open tx and leave it open)
-     * Returns array of transactions that were re-triggered (or otherwise relevant) — adjust to tests expectations.
+     * Returns array of transactions that were re-triggered.
      */
     public Transaction[] checkOpenTransactions() throws TransactionException {
-        List<Transaction> reopened = new ArrayList<>();
-        List<Long> tooOld = new ArrayList<>();
-
-        for (int i = 0; i < size; i++) {
-            Account account = accounts[i];
-            Transaction[] hist = account.getHistory().getTransactions();
-            for (Transaction t : hist) {
-                if (t == null) continue;
-                if (t.status() != Status.OPEN) continue;
-                // compute age in days (approx)
-                long days = java.time.temporal.ChronoUnit.DAYS.between(t.date(), LocalDate.now());
+        BankMetrics metrics = this.metrics;
+        long start = metrics == null ? 0L : System.nanoTime();
+        try {
+            List<Transaction> reopened = new ArrayList<>();
+            List<Long> tooOld = new ArrayList<>();
+
+            LocalDate today = LocalDate.now();
+            long todayEpochDay = today.toEpochDay();
+            for (Transaction t : openTransactions.until(todayEpochDay - 15)) {
+                long days = todayEpochDay - t.date().toEpochDay();
                 if (days > 28) { // older than 4 weeks
                     tooOld.add(t.transactionNumber());
-                } else if (days > 14) { // older than 2 weeks (but <=4)
+                } else { // older than 2 weeks (but <=4)
                     // try to re-transfer: create a new open transaction and add to target&source histories
                     Account src = t.sourceAccount();
                     Account tgt = t.targetAccount();
-                    Transaction newTx = new Transaction(src, tgt, t.amount(), generateTransactionNumber(), t.description(), LocalDate.now(), Status.OPEN);
-                    src.getHistory().add(newTx);
-                    tgt.getHistory().add(newTx);
+                    Transaction newTx = new Transaction(src, tgt, t.amount(), generateTransactionNumber(), t.description(), today, Status.OPEN);
+                    int ticket = enter();
+                    if (concurrent) AccountLocks.lock(src.getIban(), tgt.getIban());
+                    try {
+                        preserve(src);
+                        preserve(tgt);
+                        src.getHistory().add(newTx);
+                        tgt.getHistory().add(newTx);
+                        journal(newTx, 0);
+                    } finally {
+                        if (concurrent) AccountLocks.unlock(src.getIban(), tgt.getIban());
+                        exit(ticket);
+                    }
                     reopened.add(newTx);
                 }
             }
-        }
 
-        if (!tooOld.isEmpty()) {
-            // build message with transaction numbers
-            long[] nums = tooOld.stream().mapToLong(Long::longValue).toArray();
-            Transaction[] dummy = new Transaction[0]; // not used in constructor below
-            // throw with the numbers joined; reuse TransactionException that accepts Transaction[] — but better throw with message
-            StringBuilder sb = new StringBuilder("Transaction numbers: [");
-            for (int i = 0; i < tooOld.size(); i++) {
-                if (i > 0) sb.append(",");
-                sb.append(tooOld.get(i));
+            if (!tooOld.isEmpty()) {
+                // throw with the numbers joined
+                StringBuilder sb = new StringBuilder("Transaction numbers: [");
+                for (int i = 0; i < tooOld.size(); i++) {
+                    if (i > 0) sb.append(",");
+                    sb.append(tooOld.get(i));
+                }
+                sb.append("]");
+                throw new TransactionException(sb.toString(), -1);
+            }
+            return reopened.toArray(new Transaction[0]);
+        } finally {
+            // the reopened transactions are journaled even if too old ones are reported
+            try {
+                commitJournal();
+            } finally {
+                if (metrics != null) metrics.record(BankMetrics.Operation.CHECK_OPEN_TRANSACTIONS, start);
             }
-            sb.append("]");
-            throw new TransactionException(sb.toString(), -1);
         }
-
-        return reopened.toArray(new Transaction[0]);
     }
 
     // equals, hashCode, toString remain as before (omitted for brevity)
@@ -267,12 +1507,12 @@ public class Bank {
             && capacity() == bank.capacity()
             && size() == bank.size()
             && Objects.equals(getName(), bank.getName())
-            && Arrays.equals(getAccounts(), bank.getAccounts());
+            && accounts.contentEquals(bank.accounts);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(getName(), getBic(), capacity(), size(), Arrays.hashCode(getAccounts()));
+        return Objects.hash(getName(), getBic(), capacity(), size(), accounts.contentHashCode());
     }
 
     @Override
@@ -280,8 +1520,8 @@ public class Bank {
         return "Bank{" +
             "name='" + name + '\'' +
             ", bic=" + bic +
-            ", capacity=" + capacity +
-            ", size=" + size +
+            ", capacity=" + capacity() +
+            ", size=" + size() +
             '}';
     }
 }
@@ -0,0 +1,680 @@
+package h08;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only binary journal of bank mutations with group commit.
+ * <p>
+ * Banks attached with {@link Bank#setJournal(BankJournal)} append one frame per mutation: new and removed
+ * accounts, deposits, withdrawals, transfers with their final status, clearing settlements, links between banks and
+ * changes of history capacity or balance mode. Frames are appended to an in-memory buffer while the mutation still
+ * holds its locks, so frames of the same account are in execution order. A background thread writes the buffer to
+ * the file and forces it to disk once per commit interval, so one fsync covers all frames appended in between.
+ * In synchronous mode mutations wait for that fsync before they return; otherwise they return at once and at most
+ * one commit interval of mutations can be lost in a crash. Once the journal is closed or a write fails, banks
+ * reject new mutations before they change anything; a mutation that was already under way when that happened
+ * completes, its frame is dropped, and every later commit throws, so a journal that no longer matches the banks
+ * does not go unnoticed.
+ * <p>
+ * Every frame is {@code [int length][int crc32][payload]}. {@link #replay(Path, Bank...)} stops at the first torn
+ * or corrupt frame, which can only be the tail of the file.
+ */
+public class BankJournal implements AutoCloseable {
+
+    static final byte BANK = 1;
+    static final byte LINK = 2;
+    static final byte UNLINK = 3;
+    static final byte ADD = 4;
+    static final byte REMOVE = 5;
+    static final byte DEPOSIT = 6;
+    static final byte WITHDRAW = 7;
+    static final byte TRANSFER = 8;
+    static final byte CAPACITY = 9;
+    static final byte BALANCE_MODE = 10;
+    static final byte SETTLE = 11;
+
+    /**
+     * Transfer flag: the amount was debited from the sender.
+     */
+    static final int DEBIT = 1;
+
+    /**
+     * Transfer flag: the amount was credited to the receiver.
+     */
+    static final int CREDIT = 2;
+
+    /**
+     * Transfer flag: the transaction was added to the sender's history.
+     */
+    static final int SENDER_HISTORY = 4;
+
+    /**
+     * Transfer flag: the transaction was added to the receiver's history.
+     */
+    static final int RECEIVER_HISTORY = 8;
+
+    /**
+     * Transfer flag: the transaction was queued for clearing.
+     */
+    static final int QUEUE = 16;
+
+    private static final int HEADER = 8;
+    private static final int INITIAL_BUFFER = 1 << 16;
+    private static final long DEFAULT_COMMIT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    /**
+     * The number of bytes {@link #replay(Path, Bank...)} maps at a time; a longer frame gets a window of its own.
+     */
+    private static final int REPLAY_WINDOW = 1 << 26;
+
+    private final FileChannel channel;
+    private final boolean synchronous;
+    private final long commitIntervalNanos;
+    private final int commitBytes;
+    private final CRC32 crc = new CRC32();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private final Condition committed = lock.newCondition();
+
+    /**
+     * The buffer frames are appended to; guarded by {@link #lock}.
+     */
+    private ByteBuffer active = ByteBuffer.allocateDirect(INITIAL_BUFFER);
+
+    /**
+     * The buffer the flusher wrote last, reused as the next active buffer.
+     */
+    private ByteBuffer spare = ByteBuffer.allocateDirect(INITIAL_BUFFER);
+
+    /**
+     * The position in {@link #active} where the current frame starts, or -1 between frames; guarded by
+     * {@link #lock}.
+     */
+    private int frameStart = -1;
+
+    /**
+     * The number of bytes appended since opening, guarded by {@link #lock}.
+     */
+    private long appended;
+
+    /**
+     * The number of appended bytes that are on disk, guarded by {@link #lock}.
+     */
+    private long durable;
+
+    private volatile boolean closed;
+    private IOException failure;
+
+    /**
+     * Whether a frame was dropped because it was appended after the journal was closed or failed. Mutations do not
+     * throw once they have changed the state; every later {@link #commit()} reports the loss instead.
+     */
+    private volatile boolean lost;
+    private final Thread flusher;
+
+    /**
+     * The archives of the banks using this journal. They are flushed before each commit, so the entries evicted by
+     * the mutations of a commit are on disk no later than their frames.
+     */
+    private final Set<HistoryArchive> archives = new CopyOnWriteArraySet<>();
+
+    /**
+     * Opens the journal file, appending to it if it exists.
+     *
+     * @param file                the journal file
+     * @param synchronous         whether mutations wait until their frame is on disk
+     * @param commitIntervalNanos the time the flusher waits to group frames into one commit
+     * @param commitBytes         the number of buffered bytes that triggers a commit before the interval ends
+     * @throws IOException if the file cannot be opened
+     */
+    public BankJournal(Path file, boolean synchronous, long commitIntervalNanos, int commitBytes) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.synchronous = synchronous;
+        this.commitIntervalNanos = commitIntervalNanos;
+        this.commitBytes = commitBytes;
+        this.flusher = new Thread(this::flushLoop, "journal-" + file.getFileName());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Opens the journal file with a commit interval of two milliseconds.
+     *
+     * @param file        the journal file
+     * @param synchronous whether mutations wait until their frame is on disk
+     * @throws IOException if the file cannot be opened
+     */
+    public BankJournal(Path file, boolean synchronous) throws IOException {
+        this(file, synchronous, DEFAULT_COMMIT_INTERVAL_NANOS, INITIAL_BUFFER / 2);
+    }
+
+    /**
+     * Returns whether mutations wait until their frame is on disk.
+     *
+     * @return whether this journal commits synchronously
+     */
+    public boolean isSynchronous() {
+        return synchronous;
+    }
+
+    /**
+     * Waits until every frame appended so far is on disk.
+     *
+     * @throws UncheckedIOException if writing the journal failed
+     */
+    public void sync() {
+        lock.lock();
+        try {
+            long target = appended;
+            pending.signal();
+            while (durable < target) {
+                if (failure != null) throw new UncheckedIOException(failure);
+                if (closed && !flusher.isAlive()) break;
+                committed.awaitUninterruptibly();
+            }
+            if (failure != null) throw new UncheckedIOException(failure);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the frames of the calling mutation if this journal is synchronous.
+     */
+    void commit() {
+        if (synchronous) {
+            sync();
+        }
+        if (lost) {
+            throw new IllegalStateException("Journal is closed; mutations made since were not journaled");
+        }
+    }
+
+    /**
+     * Throws if this journal is closed, so a mutation can fail before it changes any state.
+     *
+     * @throws IllegalStateException if this journal is closed or failed
+     */
+    void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+    }
+
+    /**
+     * Commits all appended frames and closes the file.
+     *
+     * @throws IOException if writing or closing the journal failed
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Flushes the specified archive before each commit from now on.
+     */
+    void addArchive(HistoryArchive archive) {
+        archives.add(archive);
+    }
+
+    /**
+     * Stops flushing the specified archive.
+     */
+    void removeArchive(HistoryArchive archive) {
+        archives.remove(archive);
+    }
+
+    void bank(Bank bank) {
+        lock.lock();
+        try {
+            begin(BANK);
+            putInt(bank.getBic());
+            putString(bank.getName());
+            putInt(bank.capacity());
+            putInt(bank.transactionCapacity());
+            putByte((byte) bank.getBalanceMode().ordinal());
+            end();
+        } finally {
+            release();
+        }
+    }
+
+    void link(int bic, int otherBic, boolean linked) {
+        lock.lock();
+        try {
+            begin(linked ? LINK : UNLINK);
+            putInt(bic);
+            putInt(otherBic);
+            end();
+        } finally {
+            release();
+        }
+    }
+
+    void add(int bic, Account account) {
+        Customer customer = account.getCustomer();
+        lock.lock();
+        try {
+            begin(ADD);
+            putInt(bic);
+            putLong(account.getIban());
+            putString(customer.firstName());
+            putString(customer.lastName());
+            putString(customer.address());
+            putLong(customer.dateOfBirth().toEpochDay());
+            end();
+        } finally {
+            release();
+        }
+    }
+
+    void remove(int bic, long iban) {
+        lock.lock();
+        try {
+            begin(REMOVE);
+            putInt(bic);
+            putLong(iban);
+            end();
+        } finally {
+            release();
+        }
+    }
+
+    void balance(boolean deposit, int bic, long iban, double amount) {
+        lock.lock();
+        try {
+            begin(deposit ? DEPOSIT : WITHDRAW);
+            putInt(bic);
+            putLong(iban);
+            putDouble(amount);
+            end();
+        } finally {
+            release();
+        }
+    }
+
+    void transfer(Transaction transaction, int flags) {
+        lock.lock();
+        try {
+            begin(TRANSFER);
+            putInt(transaction.sourceAccount().getBank().getBic());
+            putLong(transaction.sourceAccount().getIban());
+            putInt(transaction.targetAccount().getBank().getBic());
+            putLong(transaction.targetAccount().getIban());
+            putDouble(transaction.amount());
+            putLong(transaction.transactionNumber());
+            putLong(transaction.date().toEpochDay());
+            putByte((byte) transaction.status().ordinal());
+            putByte((byte) flags);
+            putString(transaction.description());
+            end();
+        } finally {
+            release();
+        }
+    }
+
+    void settle(int senderBic, int receiverBic, boolean reachable, LocalDate date, List<Transaction> pending) {
+        lock.lock();
+        try {
+            begin(SETTLE);
+            putInt(senderBic);
+            putInt(receiverBic);
+            putByte((byte) (reachable ? 1 : 0));
+            putLong(date.toEpochDay());
+            putInt(pending.size());
+            for (Transaction transaction : pending) {
+                putLong(transaction.transactionNumber());
+            }
+            end();
+        } finally {
+            release();
+        }
+    }
+
+    void capacity(int bic, int transactionHistoryCapacity) {
+        lock.lock();
+        try {
+            begin(CAPACITY);
+            putInt(bic);
+            putInt(transactionHistoryCapacity);
+            end();
+        } finally {
+            release();
+        }
+    }
+
+    void balanceMode(int bic, BalanceMode balanceMode) {
+        lock.lock();
+        try {
+            begin(BALANCE_MODE);
+            putInt(bic);
+            putByte((byte) balanceMode.ordinal());
+            end();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Starts a frame. The caller holds the journal lock and calls {@link #release()} in a finally block. A frame
+     * started after the journal was closed is encoded but dropped by {@link #end()}.
+     */
+    private void begin(byte type) {
+        frameStart = active.position();
+        ensure(HEADER + 1);
+        active.position(frameStart + HEADER);
+        active.put(type);
+    }
+
+    /**
+     * Completes the frame started by {@link #begin(byte)}.
+     */
+    private void end() {
+        if (closed) {
+            active.position(frameStart);
+            frameStart = -1;
+            lost = true;
+            return;
+        }
+        int end = active.position();
+        int start = frameStart;
+        int length = end - start - HEADER;
+        crc.reset();
+        crc.update(active.duplicate().position(start + HEADER).limit(end));
+        active.putInt(start, length);
+        active.putInt(start + 4, (int) crc.getValue());
+        appended += end - start;
+        frameStart = -1;
+        if (end >= commitBytes || synchronous) {
+            pending.signal();
+        }
+    }
+
+    /**
+     * Discards a frame that was started but not completed, for example because encoding it threw, and releases
+     * the journal lock.
+     */
+    private void release() {
+        try {
+            if (frameStart >= 0) {
+                active.position(frameStart);
+                frameStart = -1;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void putByte(byte value) {
+        ensure(1);
+        active.put(value);
+    }
+
+    private void putInt(int value) {
+        ensure(4);
+        active.putInt(value);
+    }
+
+    private void putLong(long value) {
+        ensure(8);
+        active.putLong(value);
+    }
+
+    private void putDouble(double value) {
+        ensure(8);
+        active.putDouble(value);
+    }
+
+    private void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(4 + bytes.length);
+        active.putInt(bytes.length);
+        active.put(bytes);
+    }
+
+    private void ensure(int bytes) {
+        if (active.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(active.capacity() << 1, active.position() + bytes));
+            active.flip();
+            grown.put(active);
+            active = grown;
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer toWrite;
+            long target;
+            lock.lock();
+            try {
+                while (active.position() == 0 && !closed) {
+                    pending.awaitUninterruptibly();
+                }
+                if (active.position() == 0) {
+                    return; // closed and drained
+                }
+                if (!closed && !synchronous && active.position() < commitBytes) {
+                    // give other mutations a chance to join this commit
+                    pending.awaitNanos(commitIntervalNanos);
+                }
+                toWrite = active;
+                active = spare != null ? spare : ByteBuffer.allocateDirect(INITIAL_BUFFER);
+                spare = null;
+                target = appended;
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            IOException error = null;
+            try {
+                for (HistoryArchive archive : archives) {
+                    archive.flush();
+                }
+                toWrite.flip();
+                while (toWrite.hasRemaining()) {
+                    channel.write(toWrite);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                    closed = true;
+                } else {
+                    durable = target;
+                }
+                toWrite.clear();
+                spare = toWrite;
+                committed.signalAll();
+                if (error != null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays a journal onto the specified banks. Banks that appear in the journal but not among the specified ones
+     * are created from their first frame; frames for known banks apply on top of their current state, for example
+     * a snapshot taken when the journal was started. The banks must not have a journal or a history archive
+     * attached; the archive is attached after the replay, since it already holds the entries the replay evicts.
+     * Links between banks are applied in journal order once the whole file is read, since a bank may be linked
+     * before its own first frame. The file is mapped one window at a time, so its size is not limited.
+     *
+     * @param file  the journal file
+     * @param banks the banks to start from
+     * @return all banks of the journal by BIC, including the specified ones
+     * @throws IOException              if the file cannot be read
+     * @throws IllegalStateException    if a frame refers to a bank that is neither in the journal nor specified
+     * @throws IllegalArgumentException if one of the banks has a history archive attached
+     */
+    public static Map<Integer, Bank> replay(Path file, Bank... banks) throws IOException {
+        Map<Integer, Bank> network = new HashMap<>();
+        for (Bank bank : banks) {
+            if (bank.getHistoryArchive() != null) {
+                throw new IllegalArgumentException("Attach the history archive of bank " + bank.getBic() + " after the replay");
+            }
+            network.put(bank.getBic(), bank);
+        }
+        List<ByteBuffer> links = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            long windowStart = 0;
+            MappedByteBuffer window = null;
+            CRC32 crc = new CRC32();
+            while (size - position >= HEADER) {
+                if (window == null || position + HEADER > windowStart + window.capacity()) {
+                    windowStart = position;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REPLAY_WINDOW, size - position));
+                }
+                int length = window.getInt((int) (position - windowStart));
+                int checksum = window.getInt((int) (position - windowStart) + 4);
+                if (length <= 0 || length > size - position - HEADER) {
+                    break; // torn tail
+                }
+                if (position + HEADER + length > windowStart + window.capacity()) {
+                    windowStart = position;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(REPLAY_WINDOW, HEADER + length), size - position));
+                }
+                ByteBuffer frame = window.slice((int) (position - windowStart) + HEADER, length);
+                crc.reset();
+                crc.update(frame.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break; // corrupt tail
+                }
+                position += HEADER + length;
+                byte type = frame.get(0);
+                if (type == LINK || type == UNLINK) {
+                    links.add(frame);
+                } else {
+                    apply(frame, network);
+                }
+            }
+        }
+        for (ByteBuffer frame : links) {
+            boolean linked = frame.get() == LINK;
+            Bank bank = bank(network, frame.getInt());
+            int otherBic = frame.getInt();
+            if (linked) {
+                bank.add(bank(network, otherBic));
+            } else {
+                bank.remove(otherBic);
+            }
+        }
+        return network;
+    }
+
+    /**
+     * Returns the bank with the specified BIC from a network being replayed.
+     *
+     * @throws IllegalStateException if the bank is missing
+     */
+    private static Bank bank(Map<Integer, Bank> network, int bic) {
+        Bank bank = network.get(bic);
+        if (bank == null) {
+            throw new IllegalStateException("The journal refers to bank " + bic + ", which is neither in the journal nor given to replay");
+        }
+        return bank;
+    }
+
+    private static void apply(ByteBuffer frame, Map<Integer, Bank> network) {
+        byte type = frame.get();
+        int bic = frame.getInt();
+        switch (type) {
+            case BANK -> {
+                String name = getString(frame);
+                int capacity = frame.getInt();
+                int transactionCapacity = frame.getInt();
+                BalanceMode mode = BalanceMode.values()[frame.get()];
+                network.computeIfAbsent(bic, b -> {
+                    Bank bank = new Bank(name, b, capacity);
+                    bank.setTransactionHistoryCapacity(transactionCapacity);
+                    bank.setBalanceMode(mode);
+                    return bank;
+                });
+            }
+            case ADD -> {
+                long iban = frame.getLong();
+                Customer customer = new Customer(getString(frame), getString(frame), getString(frame), LocalDate.ofEpochDay(frame.getLong()));
+                bank(network, bic).restore(customer, iban);
+            }
+            case REMOVE -> bank(network, bic).remove(frame.getLong());
+            case DEPOSIT -> bank(network, bic).deposit(frame.getLong(), frame.getDouble());
+            case WITHDRAW -> bank(network, bic).withdraw(frame.getLong(), frame.getDouble());
+            case TRANSFER -> {
+                long senderIban = frame.getLong();
+                Bank receiverBank = bank(network, frame.getInt());
+                long receiverIban = frame.getLong();
+                double amount = frame.getDouble();
+                long number = frame.getLong();
+                LocalDate date = LocalDate.ofEpochDay(frame.getLong());
+                Status status = Status.values()[frame.get()];
+                int flags = frame.get();
+                String description = getString(frame);
+                bank(network, bic).restoreTransfer(senderIban, receiverBank, receiverIban, amount, number, date, status, description, flags);
+            }
+            case SETTLE -> {
+                int receiverBic = frame.getInt();
+                boolean reachable = frame.get() != 0;
+                LocalDate date = LocalDate.ofEpochDay(frame.getLong());
+                int count = frame.getInt();
+                long[] numbers = new long[count];
+                for (int i = 0; i < count; i++) {
+                    numbers[i] = frame.getLong();
+                }
+                Bank receiverBank = reachable ? bank(network, receiverBic) : null;
+                bank(network, bic).restoreSettlement(receiverBic, receiverBank, date, numbers);
+            }
+            case CAPACITY -> bank(network, bic).setTransactionHistoryCapacity(frame.getInt());
+            case BALANCE_MODE -> bank(network, bic).setBalanceMode(BalanceMode.values()[frame.get()]);
+            default -> throw new IllegalStateException("Unknown journal frame type " + type);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,336 @@
+package h08;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counts the outcomes of the transfers of a bank and measures the latency of its main operations.
+ * <p>
+ * All counters are {@link LongAdder}s and all histograms have fixed power-of-two buckets, so recording never takes a
+ * lock and never allocates. A bank records into its metrics only while they are set with
+ * {@link Bank#setMetrics(BankMetrics)}; without metrics the cost is one null check per operation. The metrics can
+ * be published on the platform MBean server with {@link #register(Bank)}.
+ */
+public class BankMetrics implements BankMetricsMXBean {
+
+    /**
+     * The operations whose latency is measured.
+     */
+    public enum Operation {
+
+        /**
+         * {@link Bank#transfer(long, long, int, double, String)}.
+         */
+        TRANSFER,
+
+        /**
+         * {@link Bank#deposit(long, double)}.
+         */
+        DEPOSIT,
+
+        /**
+         * {@link Bank#withdraw(long, double)}.
+         */
+        WITHDRAW,
+
+        /**
+         * {@link Bank#checkOpenTransactions()}.
+         */
+        CHECK_OPEN_TRANSACTIONS,
+
+    }
+
+    private static final Status[] STATUSES = Status.values();
+    private static final RejectionReason[] REASONS = RejectionReason.values();
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private final LongAdder[] statuses = adders(STATUSES.length);
+    private final LongAdder[] rejections = adders(REASONS.length);
+    private final Histogram[] latencies = new Histogram[OPERATIONS.length];
+
+    /**
+     * The name the metrics are registered under, or null.
+     */
+    private ObjectName name;
+
+    /**
+     * Constructs new metrics with all counters at zero.
+     */
+    public BankMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records a completed transfer.
+     *
+     * @param status     the resulting status
+     * @param startNanos the {@link System#nanoTime()} the transfer started at
+     */
+    void transfer(Status status, long startNanos) {
+        statuses[status.ordinal()].increment();
+        latencies[Operation.TRANSFER.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the resulting status of a transfer that is not timed, such as one of a batch.
+     *
+     * @param status the resulting status
+     */
+    void status(Status status) {
+        statuses[status.ordinal()].increment();
+    }
+
+    /**
+     * Records the reason of a cancelled transfer.
+     *
+     * @param reason the reason
+     */
+    void reject(RejectionReason reason) {
+        rejections[reason.ordinal()].increment();
+    }
+
+    /**
+     * Records a completed call of an operation.
+     *
+     * @param operation  the operation
+     * @param startNanos the {@link System#nanoTime()} the call started at
+     */
+    void record(Operation operation, long startNanos) {
+        latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the number of transfers with the specified resulting status.
+     *
+     * @param status the status
+     * @return the number of transfers
+     */
+    public long count(Status status) {
+        return statuses[status.ordinal()].sum();
+    }
+
+    /**
+     * Returns the number of transfers cancelled for the specified reason.
+     *
+     * @param reason the reason
+     * @return the number of transfers
+     */
+    public long count(RejectionReason reason) {
+        return rejections[reason.ordinal()].sum();
+    }
+
+    /**
+     * Returns the latency histogram of the specified operation.
+     *
+     * @param operation the operation
+     * @return the histogram
+     */
+    public Histogram latency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    @Override
+    public Map<String, Long> getStatusCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Status status : STATUSES) {
+            counts.put(status.name(), count(status));
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getRejectionCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (RejectionReason reason : REASONS) {
+            counts.put(reason.name(), count(reason));
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        return perOperation(Histogram::count);
+    }
+
+    @Override
+    public Map<String, Long> getMedianLatencyNanos() {
+        return perOperation(histogram -> histogram.percentile(0.5));
+    }
+
+    @Override
+    public Map<String, Long> getP99LatencyNanos() {
+        return perOperation(histogram -> histogram.percentile(0.99));
+    }
+
+    @Override
+    public Map<String, Long> getMaxLatencyNanos() {
+        return perOperation(Histogram::max);
+    }
+
+    @Override
+    public long[] latencyHistogram(String operation) {
+        return latency(Operation.valueOf(operation)).buckets();
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder adder : statuses) {
+            adder.reset();
+        }
+        for (LongAdder adder : rejections) {
+            adder.reset();
+        }
+        for (Histogram histogram : latencies) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Registers these metrics on the platform MBean server, named after the specified bank.
+     *
+     * @param bank the bank the metrics belong to
+     * @return the name the metrics are registered under
+     * @throws IllegalStateException if the metrics are already registered or cannot be registered
+     */
+    public synchronized ObjectName register(Bank bank) {
+        if (name != null) {
+            throw new IllegalStateException("Already registered as " + name);
+        }
+        try {
+            ObjectName objectName = new ObjectName("h08:type=BankMetrics,bic=" + bank.getBic() + ",name=" + ObjectName.quote(bank.getName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            name = objectName;
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server if they are registered.
+     */
+    public synchronized void unregister() {
+        if (name == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            name = null;
+        }
+    }
+
+    private Map<String, Long> perOperation(ToLongFunction<Histogram> value) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Operation operation : OPERATIONS) {
+            values.put(operation.name(), value.applyAsLong(latency(operation)));
+        }
+        return values;
+    }
+
+    private static LongAdder[] adders(int length) {
+        LongAdder[] adders = new LongAdder[length];
+        for (int i = 0; i < length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * A latency histogram with 64 power-of-two buckets. Bucket 0 counts latencies of 0 ns and bucket {@code i > 0}
+     * counts latencies from {@code 2^(i-1)} up to, excluding, {@code 2^i} ns.
+     */
+    public static final class Histogram {
+
+        private static final int BUCKETS = 64;
+
+        private final LongAdder[] buckets = adders(BUCKETS);
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private Histogram() {
+        }
+
+        void record(long nanos) {
+            long latency = Math.max(nanos, 0);
+            buckets[Math.min(BUCKETS - Long.numberOfLeadingZeros(latency), BUCKETS - 1)].increment();
+            max.accumulate(latency);
+        }
+
+        /**
+         * Returns the number of recorded latencies.
+         *
+         * @return the number of recorded latencies
+         */
+        public long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * Returns the number of recorded latencies per bucket.
+         *
+         * @return the number of recorded latencies per bucket
+         */
+        public long[] buckets() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        /**
+         * Returns the upper bound of the bucket that holds the specified percentile.
+         *
+         * @param percentile the percentile, between 0 and 1
+         * @return an upper bound of the percentile in nanoseconds, or 0 if nothing was recorded
+         */
+        public long percentile(double percentile) {
+            long[] counts = buckets();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : Math.min((1L << i) - 1, max());
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the largest recorded latency.
+         *
+         * @return the largest recorded latency in nanoseconds
+         */
+        public long max() {
+            return max.get();
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            max.reset();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package h08;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link BankMetrics}. Maps are keyed by enum constant names.
+ */
+public interface BankMetricsMXBean {
+
+    /**
+     * Returns the number of transfers per resulting status.
+     *
+     * @return the number of transfers per {@link Status}
+     */
+    Map<String, Long> getStatusCounts();
+
+    /**
+     * Returns the number of cancelled transfers per reason.
+     *
+     * @return the number of cancelled transfers per {@link RejectionReason}
+     */
+    Map<String, Long> getRejectionCounts();
+
+    /**
+     * Returns the number of timed calls per operation.
+     *
+     * @return the number of calls per {@link BankMetrics.Operation}
+     */
+    Map<String, Long> getOperationCounts();
+
+    /**
+     * Returns an upper bound of the median latency per operation, in nanoseconds.
+     *
+     * @return the median latency per {@link BankMetrics.Operation}
+     */
+    Map<String, Long> getMedianLatencyNanos();
+
+    /**
+     * Returns an upper bound of the 99th percentile latency per operation, in nanoseconds.
+     *
+     * @return the 99th percentile latency per {@link BankMetrics.Operation}
+     */
+    Map<String, Long> getP99LatencyNanos();
+
+    /**
+     * Returns the maximum latency per operation, in nanoseconds.
+     *
+     * @return the maximum latency per {@link BankMetrics.Operation}
+     */
+    Map<String, Long> getMaxLatencyNanos();
+
+    /**
+     * Returns the latency histogram of an operation; see {@link BankMetrics.Histogram#buckets()}.
+     *
+     * @param operation the name of the operation
+     * @return the number of calls per bucket
+     * @throws IllegalArgumentException if there is no such operation
+     */
+    long[] latencyHistogram(String operation);
+
+    /**
+     * Resets all counters and histograms. Updates that run concurrently may be lost or kept.
+     */
+    void reset();
+}
@@ -0,0 +1,236 @@
+package h08;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * End-of-day figures over the accounts of one or more banks: balances per bank, the balance distribution, balances
+ * per customer, and the number and volume of transactions per status.
+ * <p>
+ * A report is a mutable container of primitive accumulators. {@link Bank#report()} fills one report per fork-join
+ * leaf and {@link #merge(BankReport) merges} them; reports of different banks merge the same way, as in
+ * {@link Bank#networkReport()}. Transactions are counted in the history of their source account only, so a transfer
+ * between two reported accounts is counted once; transactions already evicted from that history are not counted.
+ * {@link BankState#report()} builds the same report from a consistent snapshot of a bank.
+ */
+public final class BankReport {
+
+    /**
+     * The number of buckets of the balance distribution.
+     */
+    public static final int BALANCE_BUCKETS = 16;
+
+    private static final Status[] STATUSES = Status.values();
+
+    private long accounts;
+    private double totalBalance;
+    private double minBalance = Double.POSITIVE_INFINITY;
+    private double maxBalance = Double.NEGATIVE_INFINITY;
+    private final long[] balanceDistribution = new long[BALANCE_BUCKETS];
+    private final long[] transactions = new long[STATUSES.length];
+    private final double[] volumes = new double[STATUSES.length];
+
+    /**
+     * The total balance per BIC.
+     */
+    private final Map<Integer, double[]> balancesByBic = new TreeMap<>();
+
+    /**
+     * The total balance per customer.
+     */
+    private final Map<Customer, double[]> balancesByCustomer = new HashMap<>();
+
+    /**
+     * Constructs a new, empty report.
+     */
+    public BankReport() {
+    }
+
+    /**
+     * Adds an account and the transactions it sent that are still in the specified history.
+     *
+     * @param account the account
+     * @param history the history of the account
+     */
+    void add(Account account, TransactionHistory history) {
+        add(account, account.getBalance(), history);
+    }
+
+    /**
+     * Adds an account with the specified balance, as recorded by a {@link BankState}, and the transactions it sent
+     * that are in the specified history.
+     *
+     * @param account the account
+     * @param balance the balance of the account
+     * @param history the history of the account
+     */
+    void add(Account account, double balance, TransactionHistory history) {
+        accounts++;
+        totalBalance += balance;
+        minBalance = Math.min(minBalance, balance);
+        maxBalance = Math.max(maxBalance, balance);
+        balanceDistribution[bucket(balance)]++;
+        balancesByBic.computeIfAbsent(account.getBank().getBic(), bic -> new double[1])[0] += balance;
+        balancesByCustomer.computeIfAbsent(account.getCustomer(), customer -> new double[1])[0] += balance;
+        for (int i = 0, size = history.size(); i < size; i++) {
+            Transaction transaction = history.get(i);
+            if (transaction.sourceAccount() == account) {
+                int status = transaction.status().ordinal();
+                transactions[status]++;
+                volumes[status] += transaction.amount();
+            }
+        }
+    }
+
+    /**
+     * Adds all figures of the specified report to this report.
+     *
+     * @param other the other report
+     * @return this report
+     */
+    public BankReport merge(BankReport other) {
+        accounts += other.accounts;
+        totalBalance += other.totalBalance;
+        minBalance = Math.min(minBalance, other.minBalance);
+        maxBalance = Math.max(maxBalance, other.maxBalance);
+        for (int i = 0; i < BALANCE_BUCKETS; i++) {
+            balanceDistribution[i] += other.balanceDistribution[i];
+        }
+        for (int i = 0; i < transactions.length; i++) {
+            transactions[i] += other.transactions[i];
+            volumes[i] += other.volumes[i];
+        }
+        other.balancesByBic.forEach((bic, total) -> balancesByBic.computeIfAbsent(bic, b -> new double[1])[0] += total[0]);
+        other.balancesByCustomer.forEach((customer, total) -> balancesByCustomer.computeIfAbsent(customer, c -> new double[1])[0] += total[0]);
+        return this;
+    }
+
+    /**
+     * Returns the number of accounts.
+     *
+     * @return the number of accounts
+     */
+    public long accounts() {
+        return accounts;
+    }
+
+    /**
+     * Returns the sum of all balances, which is the total deposits held.
+     *
+     * @return the sum of all balances
+     */
+    public double totalBalance() {
+        return totalBalance;
+    }
+
+    /**
+     * Returns the average balance.
+     *
+     * @return the average balance, or 0 if there are no accounts
+     */
+    public double averageBalance() {
+        return accounts == 0 ? 0 : totalBalance / accounts;
+    }
+
+    /**
+     * Returns the smallest balance.
+     *
+     * @return the smallest balance, or 0 if there are no accounts
+     */
+    public double minBalance() {
+        return accounts == 0 ? 0 : minBalance;
+    }
+
+    /**
+     * Returns the largest balance.
+     *
+     * @return the largest balance, or 0 if there are no accounts
+     */
+    public double maxBalance() {
+        return accounts == 0 ? 0 : maxBalance;
+    }
+
+    /**
+     * Returns the number of accounts per balance bucket. Bucket 0 counts balances below 1, bucket {@code k} from 1
+     * to 14 counts balances from {@code 10^(k-1)} up to, excluding, {@code 10^k}, and the last bucket counts all
+     * larger balances.
+     *
+     * @return the number of accounts per balance bucket
+     */
+    public long[] balanceDistribution() {
+        return Arrays.copyOf(balanceDistribution, BALANCE_BUCKETS);
+    }
+
+    /**
+     * Returns the number of transactions with the specified status.
+     *
+     * @param status the status
+     * @return the number of transactions
+     */
+    public long transactions(Status status) {
+        return transactions[status.ordinal()];
+    }
+
+    /**
+     * Returns the total amount of the transactions with the specified status.
+     *
+     * @param status the status
+     * @return the total amount
+     */
+    public double volume(Status status) {
+        return volumes[status.ordinal()];
+    }
+
+    /**
+     * Returns the sum of the balances of the accounts of the bank with the specified BIC.
+     *
+     * @param bic the BIC
+     * @return the sum of the balances, or 0 if the bank is not part of this report
+     */
+    public double totalBalance(int bic) {
+        double[] total = balancesByBic.get(bic);
+        return total == null ? 0 : total[0];
+    }
+
+    /**
+     * Returns the sum of the balances per BIC, ordered by BIC.
+     *
+     * @return the sum of the balances per BIC
+     */
+    public Map<Integer, Double> totalBalanceByBic() {
+        Map<Integer, Double> totals = new TreeMap<>();
+        balancesByBic.forEach((bic, total) -> totals.put(bic, total[0]));
+        return totals;
+    }
+
+    /**
+     * Returns the sum of the balances of all accounts of the specified customer.
+     *
+     * @param customer the customer
+     * @return the sum of the balances, or 0 if the customer has no account in this report
+     */
+    public double totalBalance(Customer customer) {
+        double[] total = balancesByCustomer.get(customer);
+        return total == null ? 0 : total[0];
+    }
+
+    /**
+     * Returns the sum of the balances per customer.
+     *
+     * @return the sum of the balances per customer
+     */
+    public Map<Customer, Double> totalBalanceByCustomer() {
+        Map<Customer, Double> totals = new HashMap<>();
+        balancesByCustomer.forEach((customer, total) -> totals.put(customer, total[0]));
+        return totals;
+    }
+
+    private static int bucket(double balance) {
+        if (!(balance >= 1)) {
+            return 0;
+        }
+        return Math.min((int) Math.log10(balance) + 1, BALANCE_BUCKETS - 1);
+    }
+}
@@ -0,0 +1,503 @@
+package h08;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes and reads compact binary snapshots of a network of banks.
+ * <p>
+ * A snapshot holds every bank with its settings, accounts, customers and balances, each transaction history as its
+ * raw ring with {@code nextIndex} and {@code size}, the transfers waiting for clearing and the links between the
+ * banks. Transactions refer to their accounts by BIC and IBAN and are rebuilt against the restored accounts.
+ * Accounts that transactions still refer to but that have been removed from their bank are stored as detached
+ * accounts. The format is versioned; banks, histories and the trailing sections are length-prefixed, so a reader
+ * can skip what it does not need. Reading maps the file one window at a time, so its size is not limited, and
+ * decodes it without reflection or Java serialization.
+ * <p>
+ * A snapshot must be written while the banks are not modified; together with a journal started at the same time
+ * it allows a fast restart.
+ */
+public final class BankSnapshot {
+
+    private static final int MAGIC = 0x48385350;
+
+    /**
+     * The current format version.
+     */
+    static final int VERSION = 1;
+
+    private static final int FLAG_CONCURRENT = 1;
+    private static final int FLAG_CLEARING = 2;
+    private static final int FLAG_OFF_HEAP = 4;
+
+    private BankSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the specified banks.
+     *
+     * @param file  the snapshot file, replaced if it exists
+     * @param banks the banks
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path file, Bank... banks) throws IOException {
+        Map<Integer, Bank> network = new LinkedHashMap<>();
+        for (Bank bank : banks) {
+            network.put(bank.getBic(), bank);
+        }
+        Map<Account, Boolean> detached = new IdentityHashMap<>();
+        try (Output out = new Output(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(banks.length);
+            for (Bank bank : banks) {
+                long section = out.beginSection();
+                writeBank(out, bank, network, detached);
+                out.endSection(section);
+            }
+            long links = out.beginSection();
+            for (Bank bank : banks) {
+                Bank[] transferable = bank.getTransferableBanks();
+                out.putInt(bank.getBic());
+                out.putInt(transferable.length);
+                for (Bank other : transferable) {
+                    out.putInt(other.getBic());
+                }
+            }
+            out.endSection(links);
+            long accounts = out.beginSection();
+            out.putInt(detached.size());
+            for (Account account : detached.keySet()) {
+                out.putInt(account.getBank().getBic());
+                out.putString(account.getBank().getName());
+                writeAccount(out, account);
+            }
+            out.endSection(accounts);
+        }
+    }
+
+    private static void writeBank(Output out, Bank bank, Map<Integer, Bank> network, Map<Account, Boolean> detached) throws IOException {
+        out.putInt(bank.getBic());
+        out.putString(bank.getName());
+        out.putInt(bank.capacity());
+        out.putInt(bank.transactionCapacity());
+        out.putByte((byte) bank.getBalanceMode().ordinal());
+        out.putByte((byte) ((bank.isConcurrent() ? FLAG_CONCURRENT : 0) | (bank.isClearing() ? FLAG_CLEARING : 0)
+            | (bank.getHistoryStorage() == HistoryStorage.OFF_HEAP ? FLAG_OFF_HEAP : 0)));
+        Account[] accounts = bank.accounts();
+        out.putInt(accounts.length);
+        for (Account account : accounts) {
+            writeAccount(out, account);
+        }
+        for (Account account : accounts) {
+            TransactionHistory history = account.getHistory();
+            long section = out.beginSection();
+            out.putInt(history.capacity());
+            out.putInt(history.nextIndex());
+            out.putInt(history.size());
+            for (int slot = 0; slot < history.capacity(); slot++) {
+                Transaction transaction = history.slot(slot);
+                out.putByte((byte) (transaction == null ? 0 : 1));
+                if (transaction != null) {
+                    writeTransaction(out, transaction, network, detached);
+                }
+            }
+            out.endSection(section);
+        }
+        Map<Integer, List<Transaction>> pending = bank.pendingTransactions();
+        int count = 0;
+        for (List<Transaction> queue : pending.values()) {
+            count += queue.size();
+        }
+        out.putInt(count);
+        for (Map.Entry<Integer, List<Transaction>> entry : pending.entrySet()) {
+            for (Transaction transaction : entry.getValue()) {
+                out.putInt(entry.getKey());
+                writeTransaction(out, transaction, network, detached);
+            }
+        }
+    }
+
+    private static void writeAccount(Output out, Account account) throws IOException {
+        Customer customer = account.getCustomer();
+        out.putLong(account.getIban());
+        out.putString(customer.firstName());
+        out.putString(customer.lastName());
+        out.putString(customer.address());
+        out.putLong(customer.dateOfBirth().toEpochDay());
+        out.putByte((byte) account.getBalanceMode().ordinal());
+        if (account.getBalanceMode() == BalanceMode.FIXED_POINT) {
+            out.putLong(account.getBalanceMinorUnits());
+        } else {
+            out.putDouble(account.getBalance());
+        }
+    }
+
+    private static void writeTransaction(Output out, Transaction transaction, Map<Integer, Bank> network, Map<Account, Boolean> detached) throws IOException {
+        out.putLong(transaction.transactionNumber());
+        writeReference(out, transaction.sourceAccount(), network, detached);
+        writeReference(out, transaction.targetAccount(), network, detached);
+        out.putDouble(transaction.amount());
+        out.putLong(transaction.date().toEpochDay());
+        out.putByte((byte) transaction.status().ordinal());
+        out.putString(transaction.description());
+    }
+
+    private static void writeReference(Output out, Account account, Map<Integer, Bank> network, Map<Account, Boolean> detached) throws IOException {
+        Bank bank = network.get(account.getBank().getBic());
+        if (bank == null || bank.findAccount(account.getIban()) != account) {
+            detached.put(account, Boolean.TRUE);
+        }
+        out.putInt(account.getBank().getBic());
+        out.putLong(account.getIban());
+    }
+
+    /**
+     * Reads a snapshot.
+     * <p>
+     * Links to banks that are not in the snapshot are dropped; transactions still refer to the accounts of such
+     * banks through stand-in banks, and transfers queued for them are cancelled at the next settlement.
+     *
+     * @param file the snapshot file
+     * @return the restored banks by BIC, in snapshot order
+     * @throws IOException              if the file cannot be read
+     * @throws IllegalArgumentException if the file is not a snapshot or has an unsupported version
+     */
+    public static Map<Integer, Bank> read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Input in = new Input(channel);
+            if (channel.size() < 12 || in.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a bank snapshot: " + file);
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported snapshot version " + version + ": " + file);
+            }
+            int bankCount = in.getInt();
+            Map<Integer, Bank> network = new LinkedHashMap<>();
+            List<Long> historyPositions = new ArrayList<>();
+            List<Account[]> accountsByBank = new ArrayList<>();
+
+            // first pass: banks and accounts, histories are skipped
+            for (int b = 0; b < bankCount; b++) {
+                long end = sectionEnd(in);
+                Bank bank = readBank(in);
+                network.put(bank.getBic(), bank);
+                int count = in.getInt();
+                Account[] accounts = new Account[count];
+                for (int i = 0; i < count; i++) {
+                    accounts[i] = readAccount(in, bank, true);
+                }
+                accountsByBank.add(accounts);
+                historyPositions.add(in.position());
+                in.position(end);
+            }
+            long linksEnd = sectionEnd(in);
+            for (int b = 0; b < bankCount; b++) {
+                Bank bank = network.get(in.getInt());
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    // a snapshot of part of a network keeps only the links between its banks
+                    Bank other = network.get(in.getInt());
+                    if (other != null) {
+                        bank.add(other);
+                    }
+                }
+            }
+            in.position(linksEnd);
+            sectionEnd(in);
+            int detachedCount = in.getInt();
+            Map<Integer, Map<Long, Account>> detached = new HashMap<>();
+            Map<Integer, Bank> removedBanks = new HashMap<>();
+            for (int i = 0; i < detachedCount; i++) {
+                int bic = in.getInt();
+                String name = in.getString();
+                // accounts of a bank that is not in the snapshot share one stand-in bank
+                Bank bank = network.containsKey(bic) ? network.get(bic) : removedBanks.computeIfAbsent(bic, key -> new Bank(name, bic));
+                Account account = readAccount(in, bank, false);
+                detached.computeIfAbsent(bic, k -> new HashMap<>()).put(account.getIban(), account);
+            }
+
+            // second pass: histories and queued transfers, now that every account exists
+            int b = 0;
+            for (Bank bank : network.values()) {
+                in.position(historyPositions.get(b));
+                for (Account account : accountsByBank.get(b)) {
+                    long end = sectionEnd(in);
+                    int capacity = in.getInt();
+                    int nextIndex = in.getInt();
+                    int size = in.getInt();
+                    Transaction[] slots = new Transaction[capacity];
+                    for (int slot = 0; slot < capacity; slot++) {
+                        if (in.get() != 0) {
+                            slots[slot] = readTransaction(in, network, detached);
+                        }
+                    }
+                    bank.restoreHistory(account, new TransactionHistory(slots, nextIndex, size, bank.getHistoryStorage(), bank.offHeapArena()));
+                    in.position(end);
+                }
+                int pending = in.getInt();
+                for (int i = 0; i < pending; i++) {
+                    int receiverBic = in.getInt();
+                    bank.restorePending(receiverBic, readTransaction(in, network, detached));
+                }
+                b++;
+            }
+            return network;
+        }
+    }
+
+    private static Bank readBank(Input in) throws IOException {
+        int bic = in.getInt();
+        String name = in.getString();
+        int capacity = in.getInt();
+        int transactionCapacity = in.getInt();
+        BalanceMode mode = BalanceMode.values()[in.get()];
+        int flags = in.get();
+        Bank bank = new Bank(name, bic, capacity);
+        bank.setHistoryStorage((flags & FLAG_OFF_HEAP) != 0 ? HistoryStorage.OFF_HEAP : HistoryStorage.HEAP);
+        bank.setTransactionHistoryCapacity(transactionCapacity);
+        bank.setBalanceMode(mode);
+        bank.setConcurrent((flags & FLAG_CONCURRENT) != 0);
+        bank.setClearing((flags & FLAG_CLEARING) != 0);
+        return bank;
+    }
+
+    private static Account readAccount(Input in, Bank bank, boolean insert) throws IOException {
+        long iban = in.getLong();
+        Customer customer = new Customer(in.getString(), in.getString(), in.getString(), LocalDate.ofEpochDay(in.getLong()));
+        BalanceMode mode = BalanceMode.values()[in.get()];
+        Account account = insert
+            ? bank.restore(customer, iban)
+            : new Account(customer, iban, 0.0, bank, new TransactionHistory(1));
+        account.setBalanceMode(mode);
+        if (mode == BalanceMode.FIXED_POINT) {
+            account.setBalanceMinorUnits(in.getLong());
+        } else {
+            account.setBalance(in.getDouble());
+        }
+        return account;
+    }
+
+    private static Transaction readTransaction(Input in, Map<Integer, Bank> network, Map<Integer, Map<Long, Account>> detached) throws IOException {
+        long number = in.getLong();
+        IdAllocator.reserve(number);
+        Account source = resolve(in.getInt(), in.getLong(), network, detached);
+        Account target = resolve(in.getInt(), in.getLong(), network, detached);
+        double amount = in.getDouble();
+        LocalDate date = LocalDate.ofEpochDay(in.getLong());
+        Status status = Status.values()[in.get()];
+        return new Transaction(source, target, amount, number, in.getString(), date, status);
+    }
+
+    private static Account resolve(int bic, long iban, Map<Integer, Bank> network, Map<Integer, Map<Long, Account>> detached) {
+        Bank bank = network.get(bic);
+        Account account = bank == null ? null : bank.findAccount(iban);
+        if (account == null) {
+            account = detached.get(bic).get(iban);
+        }
+        return account;
+    }
+
+    /**
+     * Reads a section length and returns the position where the section ends.
+     */
+    private static long sectionEnd(Input in) throws IOException {
+        long length = in.getLong();
+        return in.position() + length;
+    }
+
+    /**
+     * A reader that maps a file one window at a time, moving the window when a value would cross its end.
+     */
+    private static final class Input {
+
+        /**
+         * The size of a window; a window is larger only if a single string does not fit.
+         */
+        private static final long WINDOW = 1L << 26;
+
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+
+        /**
+         * The file position of the first byte in {@link #window}.
+         */
+        private long windowStart;
+
+        Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0, 0);
+        }
+
+        long position() {
+            return windowStart + window.position();
+        }
+
+        void position(long position) throws IOException {
+            if (position >= windowStart && position <= windowStart + window.limit()) {
+                window.position((int) (position - windowStart));
+            } else {
+                map(position, 0);
+            }
+        }
+
+        byte get() throws IOException {
+            return ensure(1).get();
+        }
+
+        int getInt() throws IOException {
+            return ensure(4).getInt();
+        }
+
+        long getLong() throws IOException {
+            return ensure(8).getLong();
+        }
+
+        double getDouble() throws IOException {
+            return ensure(8).getDouble();
+        }
+
+        String getString() throws IOException {
+            int length = getInt();
+            byte[] bytes = new byte[length];
+            ensure(length).get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns the window with at least the specified number of bytes left, unless the file ends before.
+         */
+        private ByteBuffer ensure(int bytes) throws IOException {
+            if (window.remaining() < bytes && windowStart + window.limit() < size) {
+                map(position(), bytes);
+            }
+            return window;
+        }
+
+        private void map(long position, int bytes) throws IOException {
+            long length = Math.min(Math.max(WINDOW, bytes), size - position);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.max(0, length));
+            windowStart = position;
+        }
+    }
+
+    /**
+     * A buffered channel writer that can patch section lengths after the fact.
+     */
+    private static final class Output implements AutoCloseable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+        /**
+         * The file position of the first byte in {@link #buffer}.
+         */
+        private long flushed;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long position() {
+            return flushed + buffer.position();
+        }
+
+        /**
+         * Writes a placeholder for a section length and returns its position.
+         */
+        long beginSection() throws IOException {
+            long position = position();
+            putLong(0);
+            return position;
+        }
+
+        /**
+         * Patches the length of the section started at the specified position.
+         */
+        void endSection(long start) throws IOException {
+            long length = position() - start - 8;
+            if (start >= flushed) {
+                buffer.putLong((int) (start - flushed), length);
+            } else {
+                ByteBuffer patch = ByteBuffer.allocate(8).putLong(length).flip();
+                while (patch.hasRemaining()) {
+                    channel.write(patch, start + patch.position());
+                }
+            }
+        }
+
+        void putByte(byte value) throws IOException {
+            ensure(1);
+            buffer.put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            ensure(8);
+            buffer.putDouble(value);
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            if (bytes.length > buffer.capacity()) {
+                flush();
+                ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+                while (wrapped.hasRemaining()) {
+                    flushed += channel.write(wrapped);
+                }
+            } else {
+                ensure(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                flushed += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package h08;
+
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
+
+/**
+ * A consistent point-in-time copy of the balances and transaction histories of the accounts of one bank, taken by
+ * {@link Bank#snapshot()} while transfers keep running.
+ * <p>
+ * Every operation of the bank is either entirely contained in the state or not at all: a transfer between two
+ * accounts of the bank is never seen debited but not credited, so the balances add up to the deposits made minus
+ * the withdrawals, less the {@link #pendingClearingAmount() pending clearing amount}. The state is taken in two
+ * steps. The bank first waits for the operations in flight to finish, holding back new ones meanwhile, and fixes the
+ * accounts and the clearing amount; this pause lasts as long as the longest running operation, not the copy. The
+ * accounts are then copied one by one under their locks while operations go on, and an operation that writes to an
+ * account that was not copied yet first copies it itself, so every account is copied as it was at the point in
+ * time (copy-on-write). Transfers from other banks are part of the state of the receiving bank once they credit the
+ * receiver.
+ * <p>
+ * The histories are detached heap copies: they neither track open transactions nor read the bank's archive.
+ */
+public final class BankState {
+
+    private final Bank bank;
+    private final long epoch;
+    private final Account[] accounts;
+    private final double pendingClearingAmount;
+    private double[] balances;
+    private TransactionHistory[] histories;
+
+    /**
+     * Marks accounts that need no copy for this state, either because they were already collected or because they
+     * were added after its point in time.
+     */
+    private final Copy done;
+
+    /**
+     * The position of each account by IBAN, built while the accounts are copied.
+     */
+    private LongIntMap index;
+
+    /**
+     * Fixes a state that is yet to be copied.
+     *
+     * @param bank                  the bank
+     * @param epoch                 the number of this state among the states of the bank
+     * @param accounts              the accounts of the bank at the point in time
+     * @param pendingClearingAmount the pending clearing amount at the point in time
+     */
+    BankState(Bank bank, long epoch, Account[] accounts, double pendingClearingAmount) {
+        this.bank = bank;
+        this.epoch = epoch;
+        this.accounts = accounts;
+        this.pendingClearingAmount = pendingClearingAmount;
+        this.done = new Copy(epoch, 0, null);
+    }
+
+    /**
+     * Copies an account of this state before it is written to, unless it is already copied. The caller holds the
+     * account lock.
+     *
+     * @param account the account
+     */
+    void preserve(Account account) {
+        Copy copy = account.stateCopy();
+        if (copy == null || copy.epoch != epoch) {
+            account.stateCopy(new Copy(epoch, account.getBalance(), account.currentHistory().copy()));
+        }
+    }
+
+    /**
+     * Excludes an account that was added after the point in time of this state. The caller holds the structure lock.
+     *
+     * @param account the account
+     */
+    void exclude(Account account) {
+        account.stateCopy(done);
+    }
+
+    /**
+     * Copies every account that was not copied on write yet, locking one account at a time, and indexes them.
+     */
+    void copyAll() {
+        balances = new double[accounts.length];
+        histories = new TransactionHistory[accounts.length];
+        index = new LongIntMap(accounts.length);
+        for (int i = 0; i < accounts.length; i++) {
+            Account account = accounts[i];
+            bank.lockAccount(account.getIban());
+            try {
+                Copy copy = account.stateCopy();
+                if (copy == null || copy.epoch != epoch) {
+                    balances[i] = account.getBalance();
+                    histories[i] = account.currentHistory().copy();
+                } else {
+                    assert copy != done;
+                    balances[i] = copy.balance;
+                    histories[i] = copy.history;
+                }
+                account.stateCopy(done);
+            } finally {
+                bank.unlockAccount(account.getIban());
+            }
+            index.put(account.getIban(), i);
+        }
+    }
+
+    /**
+     * Returns the bank this state was taken of.
+     *
+     * @return the bank
+     */
+    public Bank getBank() {
+        return bank;
+    }
+
+    /**
+     * Returns the number of this state among the states taken of its bank, starting at 1.
+     *
+     * @return the number of this state
+     */
+    public long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the number of accounts in this state.
+     *
+     * @return the number of accounts
+     */
+    public int size() {
+        return accounts.length;
+    }
+
+    /**
+     * Returns the accounts in this state.
+     *
+     * @return a new array of the accounts
+     */
+    public Account[] getAccounts() {
+        return accounts.clone();
+    }
+
+    /**
+     * Returns whether this state holds the account with the specified IBAN.
+     *
+     * @param iban the IBAN
+     * @return {@code true} if the account is in this state
+     */
+    public boolean contains(long iban) {
+        return index.containsKey(iban);
+    }
+
+    /**
+     * Returns the balance the account with the specified IBAN had at the point in time.
+     *
+     * @param iban the IBAN
+     * @return the balance
+     * @throws NoSuchElementException if the account is not in this state
+     */
+    public double getBalance(long iban) {
+        return balances[position(iban)];
+    }
+
+    /**
+     * Returns a copy of the transaction history the account with the specified IBAN had at the point in time.
+     *
+     * @param iban the IBAN
+     * @return the history
+     * @throws NoSuchElementException if the account is not in this state
+     */
+    public TransactionHistory getHistory(long iban) {
+        return histories[position(iban)];
+    }
+
+    /**
+     * Returns the sum of all balances at the point in time.
+     *
+     * @return the sum of all balances
+     */
+    public double totalBalance() {
+        double total = 0;
+        for (double balance : balances) {
+            total += balance;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the total amount of cross-bank transfers that were debited but not yet settled at the point in time.
+     *
+     * @return the pending clearing amount
+     */
+    public double pendingClearingAmount() {
+        return pendingClearingAmount;
+    }
+
+    /**
+     * Computes the report of {@link Bank#report()} over this state as a parallel reduction on the common fork-join
+     * pool. Unlike the report of the live bank it is consistent across accounts.
+     *
+     * @return the report
+     */
+    public BankReport report() {
+        return IntStream.range(0, accounts.length).parallel()
+            .collect(BankReport::new, (report, i) -> report.add(accounts[i], balances[i], histories[i]), BankReport::merge);
+    }
+
+    private int position(long iban) {
+        int i = index.get(iban);
+        if (i == LongIntMap.NO_VALUE) throw new NoSuchElementException(String.valueOf(iban));
+        return i;
+    }
+
+    /**
+     * The balance and history of an account copied for the state with the given epoch, or a marker without history.
+     */
+    static final class Copy {
+
+        private final long epoch;
+        private final double balance;
+        private final TransactionHistory history;
+
+        Copy(long epoch, double balance, TransactionHistory history) {
+            this.epoch = epoch;
+            this.balance = balance;
+            this.history = history;
+        }
+    }
+}
@@ -0,0 +1,561 @@
+package h08;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Loads accounts and transaction histories into a bank in bulk.
+ * <p>
+ * An input file is memory-mapped and cut into chunks of about 1 MiB at row boundaries in one sequential pass, which
+ * also counts the rows of each chunk. The chunks are then decoded in parallel straight into arrays at their row
+ * offsets, including the construction and validation of customers and transactions, and the result is published
+ * into the bank in one step. Inputs are either CSV with a header line, or binary starting with a magic int and a
+ * version; the format is detected from the first bytes. Files are limited to 2 GiB each.
+ * <p>
+ * Accounts are read by {@link #loadAccounts(Bank, Path)}. The CSV columns are {@code iban}, {@code first_name},
+ * {@code last_name}, {@code address}, {@code date_of_birth} and {@code balance}; an empty IBAN is generated and an
+ * empty balance is 0. A binary account file starts with the int {@code 0x4838414C} and the version, followed by one
+ * record per account: the IBAN as a long, -1 to generate it, the first name, last name and address each as an int
+ * length and UTF-8 bytes, the date of birth as an int epoch day and the balance as a double. Histories are read by
+ * {@link #loadHistories(Bank, Path)} in either format written by {@link StatementExporter}. CSV fields may be quoted
+ * with {@code "} and then contain separators, line breaks and doubled quotes. All binary values are big-endian.
+ */
+public final class BulkLoader {
+
+    /**
+     * The first int of a binary account file.
+     */
+    static final int ACCOUNTS_MAGIC = 0x4838414C;
+
+    /**
+     * The current version of the binary account format.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The number of bytes after which an input is cut into the next chunk at the next row boundary.
+     */
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    /**
+     * The size of a binary statement record without its description.
+     */
+    private static final int ENTRY_BYTES = 8 + 8 + 4 + 4 + 8 + 4 + 8 + 8 + 1;
+
+    /**
+     * Set in the status byte of a binary statement record if the amount holds the bits of a double.
+     */
+    private static final int RAW_AMOUNT = 0x80;
+
+    private static final Status[] STATUSES = Status.values();
+
+    private BulkLoader() {
+    }
+
+    /**
+     * Adds the accounts of the specified file to the bank. All accounts are decoded and validated before the first
+     * one is added, and are then added under one lock of the bank.
+     *
+     * @param bank the bank
+     * @param file the account file
+     * @return the added accounts in file order
+     * @throws IOException              if the file cannot be read
+     * @throws IllegalArgumentException if the file is malformed, a balance is negative or an IBAN is already used
+     * @throws BadTimestampException    if a customer is too young
+     */
+    public static Account[] loadAccounts(Bank bank, Path file) throws IOException {
+        ByteBuffer input = map(file);
+        boolean binary = isBinary(input, ACCOUNTS_MAGIC);
+        Chunks chunks = binary ? binaryChunks(input, position -> skipAccount(input, position)) : csvChunks(input);
+        int rows = chunks.rows[chunks.count()];
+        Customer[] customers = new Customer[rows];
+        long[] ibans = new long[rows];
+        double[] balances = new double[rows];
+        IntStream.range(0, chunks.count()).parallel().forEach(chunk -> {
+            Reader reader = new Reader(input, chunks.offsets[chunk], chunks.offsets[chunk + 1]);
+            for (int row = chunks.rows[chunk]; reader.hasRow(binary); row++) {
+                if (binary) {
+                    ibans[row] = reader.getLong();
+                    customers[row] = new Customer(reader.getString(), reader.getString(), reader.getString(), LocalDate.ofEpochDay(reader.getInt()));
+                    balances[row] = reader.getDouble();
+                } else {
+                    int length = reader.field();
+                    ibans[row] = length == 0 ? -1 : reader.parseLong(length);
+                    String firstName = reader.parseString(reader.field());
+                    String lastName = reader.parseString(reader.field());
+                    String address = reader.parseString(reader.field());
+                    customers[row] = new Customer(firstName, lastName, address, reader.parseDate(reader.field()));
+                    length = reader.field();
+                    balances[row] = length == 0 ? 0 : reader.parseAmount(length);
+                    reader.endRow();
+                }
+            }
+        });
+        return bank.insertAll(customers, ibans, balances);
+    }
+
+    /**
+     * Appends the entries of the specified statement export to the histories of the bank's accounts, in file
+     * order. The accounts must already exist, and the source and target accounts of the entries must belong to
+     * the bank or to one of its transferable banks. All entries are decoded and resolved before the first one is
+     * appended.
+     *
+     * @param bank the bank
+     * @param file the statement export
+     * @return the number of appended entries
+     * @throws IOException              if the file cannot be read
+     * @throws IllegalArgumentException if the file is malformed
+     * @throws NoSuchElementException   if an account or bank of an entry does not exist
+     */
+    public static long loadHistories(Bank bank, Path file) throws IOException {
+        ByteBuffer input = map(file);
+        boolean binary = isBinary(input, StatementExporter.MAGIC);
+        Chunks chunks = binary ? binaryChunks(input, position -> skipEntry(input, position)) : csvChunks(input);
+        int rows = chunks.rows[chunks.count()];
+        Account[] accounts = new Account[rows];
+        Transaction[] transactions = new Transaction[rows];
+        IntStream.range(0, chunks.count()).parallel().forEach(chunk -> {
+            Reader reader = new Reader(input, chunks.offsets[chunk], chunks.offsets[chunk + 1]);
+            for (int row = chunks.rows[chunk]; reader.hasRow(binary); row++) {
+                long iban;
+                long number;
+                LocalDate date;
+                Account source;
+                Account target;
+                double amount;
+                Status status;
+                String description;
+                if (binary) {
+                    iban = reader.getLong();
+                    number = reader.getLong();
+                    date = LocalDate.ofEpochDay(reader.getInt());
+                    source = resolve(bank, reader.getInt(), reader.getLong());
+                    target = resolve(bank, reader.getInt(), reader.getLong());
+                    long bits = reader.getLong();
+                    int flags = reader.getByte() & 0xFF;
+                    amount = (flags & RAW_AMOUNT) != 0 ? Double.longBitsToDouble(bits) : (double) bits / Account.MINOR_UNITS;
+                    status = reader.status((flags & ~RAW_AMOUNT) - 1);
+                    description = reader.getString();
+                } else {
+                    iban = reader.parseLong(reader.field());
+                    number = reader.parseLong(reader.field());
+                    date = reader.parseDate(reader.field());
+                    source = resolve(bank, reader.parseInt(reader.field()), reader.parseLong(reader.field()));
+                    target = resolve(bank, reader.parseInt(reader.field()), reader.parseLong(reader.field()));
+                    amount = reader.parseAmount(reader.field());
+                    status = reader.parseStatus(reader.field());
+                    description = reader.parseString(reader.field());
+                    reader.endRow();
+                }
+                accounts[row] = resolve(bank, bank.getBic(), iban);
+                transactions[row] = new Transaction(source, target, amount, number, description, date, status);
+            }
+        });
+        bank.restoreEntries(accounts, transactions);
+        return rows;
+    }
+
+    /**
+     * Returns the account with the specified IBAN of the bank with the specified BIC, which is the specified bank
+     * or one of its transferable banks.
+     */
+    private static Account resolve(Bank bank, int bic, long iban) {
+        Bank owner = bic == bank.getBic() ? bank : bank.findBank(bic);
+        if (owner == null) {
+            throw new NoSuchElementException("Unknown BIC: " + bic);
+        }
+        Account account = owner.findAccount(iban);
+        if (account == null) {
+            throw new NoSuchElementException(String.valueOf(iban));
+        }
+        return account;
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("File too large for bulk loading: " + file);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Returns whether the input starts with the specified magic int, and checks the version if it does.
+     */
+    private static boolean isBinary(ByteBuffer input, int magic) {
+        if (input.limit() < 8 || input.getInt(0) != magic) {
+            return false;
+        }
+        if (input.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Unsupported version: " + input.getInt(4));
+        }
+        return true;
+    }
+
+    /**
+     * Cuts a CSV input after its header line. Line breaks in quoted fields do not end a row and empty lines are
+     * not counted.
+     */
+    private static Chunks csvChunks(ByteBuffer input) {
+        int limit = input.limit();
+        int start = 0;
+        while (start < limit && input.get(start++) != '\n') {
+            // skip the header
+        }
+        Chunks chunks = new Chunks(start);
+        boolean quoted = false;
+        boolean content = false;
+        int rows = 0;
+        int cut = start + CHUNK_BYTES;
+        for (int i = start; i < limit; i++) {
+            byte b = input.get(i);
+            if (b == '"') {
+                quoted = !quoted;
+                content = true;
+            } else if (b == '\n' && !quoted) {
+                if (content) {
+                    rows++;
+                    content = false;
+                }
+                if (i + 1 >= cut) {
+                    chunks.add(i + 1, rows);
+                    cut = i + 1 + CHUNK_BYTES;
+                }
+            } else if (b != '\r') {
+                content = true;
+            }
+        }
+        if (content) {
+            rows++;
+        }
+        return chunks.end(limit, rows);
+    }
+
+    /**
+     * Cuts a binary input after its magic and version, using the specified function to find the end of the record
+     * at a position.
+     */
+    private static Chunks binaryChunks(ByteBuffer input, IntUnaryOperator skip) {
+        int limit = input.limit();
+        Chunks chunks = new Chunks(8);
+        int rows = 0;
+        int cut = 8 + CHUNK_BYTES;
+        for (int position = 8; position < limit; ) {
+            position = skip.applyAsInt(position);
+            rows++;
+            if (position >= cut) {
+                chunks.add(position, rows);
+                cut = position + CHUNK_BYTES;
+            }
+        }
+        return chunks.end(limit, rows);
+    }
+
+    private static int skipAccount(ByteBuffer input, int position) {
+        position = skipString(input, position + 8);
+        position = skipString(input, position);
+        position = skipString(input, position);
+        return require(input, position, 4 + 8);
+    }
+
+    private static int skipEntry(ByteBuffer input, int position) {
+        return skipString(input, require(input, position, ENTRY_BYTES));
+    }
+
+    private static int skipString(ByteBuffer input, int position) {
+        int start = require(input, position, 4);
+        int length = input.getInt(position);
+        if (length < 0) {
+            throw new IllegalArgumentException("Malformed input at byte " + position + ": negative length");
+        }
+        return require(input, start, length);
+    }
+
+    /**
+     * Returns the position after the specified number of bytes at a position, which must be within the input.
+     */
+    private static int require(ByteBuffer input, int position, int bytes) {
+        if (bytes > input.limit() - position) {
+            throw new IllegalArgumentException("Truncated input at byte " + position);
+        }
+        return position + bytes;
+    }
+
+    /**
+     * The byte offsets of the chunks of an input and the index of the first row of each chunk; chunk {@code i}
+     * spans {@code offsets[i]} up to, excluding, {@code offsets[i + 1]}.
+     */
+    private static final class Chunks {
+
+        private int[] offsets = new int[16];
+        private int[] rows = new int[16];
+        private int size;
+
+        Chunks(int start) {
+            add(start, 0);
+        }
+
+        void add(int offset, int row) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size << 1);
+                rows = Arrays.copyOf(rows, size << 1);
+            }
+            offsets[size] = offset;
+            rows[size++] = row;
+        }
+
+        Chunks end(int limit, int row) {
+            if (offsets[size - 1] < limit) {
+                add(limit, row);
+            } else {
+                rows[size - 1] = row;
+            }
+            return this;
+        }
+
+        int count() {
+            return size - 1;
+        }
+    }
+
+    /**
+     * Decodes the rows of one chunk. CSV fields are unquoted into a scratch array and parsed from there, so only
+     * the strings that end up in customers and transactions are allocated.
+     */
+    private static final class Reader {
+
+        private final ByteBuffer input;
+        private final int end;
+        private int position;
+        private byte[] scratch = new byte[64];
+
+        /**
+         * Whether the last CSV field ended its row.
+         */
+        private boolean rowEnded;
+
+        Reader(ByteBuffer input, int start, int end) {
+            this.input = input;
+            this.position = start;
+            this.end = end;
+        }
+
+        /**
+         * Returns whether another row follows, skipping empty CSV lines.
+         */
+        boolean hasRow(boolean binary) {
+            if (!binary) {
+                while (position < end && (input.get(position) == '\n' || input.get(position) == '\r')) {
+                    position++;
+                }
+                rowEnded = false;
+            }
+            return position < end;
+        }
+
+        byte getByte() {
+            return input.get(position++);
+        }
+
+        int getInt() {
+            int value = input.getInt(position);
+            position += 4;
+            return value;
+        }
+
+        long getLong() {
+            long value = input.getLong(position);
+            position += 8;
+            return value;
+        }
+
+        double getDouble() {
+            double value = input.getDouble(position);
+            position += 8;
+            return value;
+        }
+
+        String getString() {
+            int length = getInt();
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length << 1)];
+            }
+            input.get(position, scratch, 0, length);
+            position += length;
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        Status status(int ordinal) {
+            if (ordinal < 0 || ordinal >= STATUSES.length) {
+                throw malformed("unknown status " + ordinal);
+            }
+            return STATUSES[ordinal];
+        }
+
+        /**
+         * Reads the next CSV field of the row into the scratch array and returns its length.
+         */
+        int field() {
+            if (rowEnded) {
+                throw malformed("missing field");
+            }
+            int length = 0;
+            if (position < end && input.get(position) == '"') {
+                position++;
+                while (true) {
+                    if (position >= end) {
+                        throw malformed("unterminated quote");
+                    }
+                    byte b = input.get(position++);
+                    if (b == '"') {
+                        if (position < end && input.get(position) == '"') {
+                            position++;
+                        } else {
+                            break;
+                        }
+                    }
+                    append(length++, b);
+                }
+            } else {
+                while (position < end) {
+                    byte b = input.get(position);
+                    if (b == ',' || b == '\n' || b == '\r') {
+                        break;
+                    }
+                    if (b == '"') {
+                        throw malformed("quote in unquoted field");
+                    }
+                    append(length++, b);
+                    position++;
+                }
+            }
+            if (position >= end) {
+                rowEnded = true;
+            } else {
+                byte b = input.get(position++);
+                if (b == '\r' && position < end && input.get(position) == '\n') {
+                    position++;
+                    rowEnded = true;
+                } else if (b == '\n') {
+                    rowEnded = true;
+                } else if (b != ',') {
+                    throw malformed("expected a separator");
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Checks that the last CSV field ended its row.
+         */
+        void endRow() {
+            if (!rowEnded) {
+                throw malformed("too many fields");
+            }
+        }
+
+        String parseString(int length) {
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        long parseLong(int length) {
+            int i = length > 0 && scratch[0] == '-' ? 1 : 0;
+            if (length - i < 1 || length - i > 18) {
+                return Long.parseLong(parseString(length));
+            }
+            long value = 0;
+            for (int j = i; j < length; j++) {
+                value = value * 10 + digit(j, length);
+            }
+            return i == 1 ? -value : value;
+        }
+
+        int parseInt(int length) {
+            return Math.toIntExact(parseLong(length));
+        }
+
+        /**
+         * Parses {@code yyyy-MM-dd} in place and any other ISO date through {@link LocalDate#parse}.
+         */
+        LocalDate parseDate(int length) {
+            if (length != 10 || scratch[4] != '-' || scratch[7] != '-') {
+                return LocalDate.parse(parseString(length));
+            }
+            int year = 0;
+            for (int j = 0; j < 4; j++) {
+                year = year * 10 + digit(j, length);
+            }
+            return LocalDate.of(year, digit(5, length) * 10 + digit(6, length), digit(8, length) * 10 + digit(9, length));
+        }
+
+        /**
+         * Parses an amount with at most two decimals in place as minor units, and any other amount through
+         * {@link Double#parseDouble}, which yields the same double.
+         */
+        double parseAmount(int length) {
+            int i = length > 0 && scratch[0] == '-' ? 1 : 0;
+            int point = i;
+            while (point < length && scratch[point] != '.') {
+                point++;
+            }
+            int decimals = point == length ? 0 : length - point - 1;
+            if (point == i || point - i > 15 || decimals > 2 || point < length && decimals == 0) {
+                return Double.parseDouble(parseString(length));
+            }
+            long minorUnits = 0;
+            for (int j = i; j < point; j++) {
+                minorUnits = minorUnits * 10 + digit(j, length);
+            }
+            for (int j = 0; j < 2; j++) {
+                minorUnits = minorUnits * 10 + (j < decimals ? digit(point + 1 + j, length) : 0);
+            }
+            return (double) (i == 1 ? -minorUnits : minorUnits) / Account.MINOR_UNITS;
+        }
+
+        Status parseStatus(int length) {
+            for (Status status : STATUSES) {
+                String name = status.name();
+                if (name.length() == length) {
+                    int j = 0;
+                    while (j < length && scratch[j] == name.charAt(j)) {
+                        j++;
+                    }
+                    if (j == length) {
+                        return status;
+                    }
+                }
+            }
+            return Status.valueOf(parseString(length));
+        }
+
+        private int digit(int index, int length) {
+            int digit = scratch[index] - '0';
+            if (digit < 0 || digit > 9) {
+                throw malformed("not a number: " + parseString(length));
+            }
+            return digit;
+        }
+
+        private void append(int index, byte b) {
+            if (index == scratch.length) {
+                scratch = Arrays.copyOf(scratch, index << 1);
+            }
+            scratch[index] = b;
+        }
+
+        private IllegalArgumentException malformed(String reason) {
+            return new IllegalArgumentException("Malformed input at byte " + position + ": " + reason);
+        }
+    }
+}
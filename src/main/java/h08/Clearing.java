@@ -0,0 +1,119 @@
+package h08;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The queues of cross-bank transfers of one bank in clearing mode, one queue per receiving bank.
+ * <p>
+ * A queued transfer has already been debited from the sender and is OPEN in the sender's history. The money reaches
+ * the receiver when {@link Bank#settle()} nets and settles the queues between two banks.
+ */
+class Clearing {
+
+    /**
+     * The open transactions waiting for settlement, by BIC of the receiving bank.
+     */
+    private final Map<Integer, List<Transaction>> queues = new HashMap<>();
+
+    /**
+     * Queues an open transaction for the bank with the specified BIC.
+     *
+     * @param receiverBic the BIC of the receiving bank
+     * @param transaction the open transaction
+     */
+    synchronized void enqueue(int receiverBic, Transaction transaction) {
+        queues.computeIfAbsent(receiverBic, bic -> new ArrayList<>()).add(transaction);
+    }
+
+    /**
+     * Removes and returns all transactions queued for the bank with the specified BIC.
+     *
+     * @param receiverBic the BIC of the receiving bank
+     * @return the queued transactions in queue order, possibly empty
+     */
+    synchronized List<Transaction> drain(int receiverBic) {
+        List<Transaction> queue = queues.remove(receiverBic);
+        return queue == null ? List.of() : queue;
+    }
+
+    /**
+     * Returns the BICs of all banks with queued transactions.
+     *
+     * @return the BICs of all banks with queued transactions
+     */
+    synchronized int[] receiverBics() {
+        return queues.keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Returns a copy of all queues.
+     *
+     * @return the queued transactions by BIC of the receiving bank
+     */
+    synchronized Map<Integer, List<Transaction>> snapshot() {
+        Map<Integer, List<Transaction>> copy = new HashMap<>();
+        queues.forEach((bic, queue) -> copy.put(bic, new ArrayList<>(queue)));
+        return copy;
+    }
+
+    /**
+     * Returns the total amount waiting for settlement.
+     *
+     * @return the total amount waiting for settlement
+     */
+    synchronized double pendingAmount() {
+        double sum = 0;
+        for (List<Transaction> queue : queues.values()) {
+            sum += sum(queue);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the number of transactions waiting for settlement.
+     *
+     * @return the number of transactions waiting for settlement
+     */
+    synchronized int pendingCount() {
+        int count = 0;
+        for (List<Transaction> queue : queues.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the total amount of the specified transactions.
+     *
+     * @param transactions the transactions
+     * @return the total amount
+     */
+    static double sum(List<Transaction> transactions) {
+        double sum = 0;
+        for (Transaction transaction : transactions) {
+            sum += transaction.amount();
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the total amount of the specified transactions in minor units, rounding each amount on its own the
+     * way its sender was debited.
+     *
+     * @param transactions the transactions
+     * @return the total amount in minor units, or -1 if it does not fit in a long
+     */
+    static long sumMinorUnits(List<Transaction> transactions) {
+        long sum = 0;
+        for (Transaction transaction : transactions) {
+            sum += Account.toMinorUnits(transaction.amount());
+            if (sum < 0) {
+                return -1;
+            }
+        }
+        return sum;
+    }
+}
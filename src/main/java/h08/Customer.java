@@ -1,7 +1,6 @@
 package h08;
 
 import java.time.LocalDate;
-import java.time.Period;
 
 import static org.tudalgo.algoutils.student.Student.crash;
 
@@ -34,8 +33,8 @@ public record Customer(
      */
     public Customer {
 assert firstName!=null && lastName!=null && address!=null && dateOfBirth!=null;
-LocalDate today=LocalDate.now();
-if (Period.between(dateOfBirth, today).getYears()<18){
+// born after this day means younger than MIN_AGE, the same as Period.between(dateOfBirth, today).getYears() < MIN_AGE
+if (dateOfBirth.isAfter(Today.get().minusYears(MIN_AGE))){
  throw new BadTimestampException(dateOfBirth);
 }
     }
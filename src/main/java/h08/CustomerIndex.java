@@ -0,0 +1,201 @@
+package h08;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Indexes the accounts of a bank by customer, by last name and by date of birth.
+ * <p>
+ * Lookups by customer and last name are hash lookups; dates of birth are kept sorted so ranges can be queried. The
+ * owning bank updates the index whenever it adds or removes an account and guards it like its account store.
+ */
+class CustomerIndex {
+
+    private final Map<Customer, Bucket> byCustomer = new HashMap<>();
+    private final Map<String, Bucket> byLastName = new HashMap<>();
+    private final TreeMap<LocalDate, Bucket> byDateOfBirth = new TreeMap<>();
+
+    /**
+     * Adds an account to the index.
+     *
+     * @param account the account
+     */
+    void add(Account account) {
+        Customer customer = account.getCustomer();
+        byCustomer.computeIfAbsent(customer, c -> new Bucket()).add(account);
+        byLastName.computeIfAbsent(customer.lastName(), name -> new Bucket()).add(account);
+        byDateOfBirth.computeIfAbsent(customer.dateOfBirth(), date -> new Bucket()).add(account);
+    }
+
+    /**
+     * Removes an account from the index.
+     *
+     * @param account the account
+     */
+    void remove(Account account) {
+        Customer customer = account.getCustomer();
+        remove(byCustomer, customer, account);
+        remove(byLastName, customer.lastName(), account);
+        remove(byDateOfBirth, customer.dateOfBirth(), account);
+    }
+
+    /**
+     * Returns the accounts of the specified customer.
+     *
+     * @param customer the customer
+     * @return the accounts of the customer, in the order they were indexed
+     */
+    List<Account> byCustomer(Customer customer) {
+        return list(byCustomer.get(customer));
+    }
+
+    /**
+     * Returns the accounts of the customers with the specified last name.
+     *
+     * @param lastName the last name
+     * @return the accounts of the customers with the last name
+     */
+    List<Account> byLastName(String lastName) {
+        return list(byLastName.get(lastName));
+    }
+
+    /**
+     * Returns the accounts of the customers born between the specified dates, inclusive, ordered by date of birth.
+     *
+     * @param from the first date of birth
+     * @param to   the last date of birth
+     * @return the accounts of the customers born between the dates
+     */
+    List<Account> byDateOfBirth(LocalDate from, LocalDate to) {
+        List<Account> result = new ArrayList<>();
+        if (from.isAfter(to)) {
+            return result;
+        }
+        for (Bucket bucket : byDateOfBirth.subMap(from, true, to, true).values()) {
+            bucket.addTo(result);
+        }
+        return result;
+    }
+
+    private static <K> void remove(Map<K, Bucket> index, K key, Account account) {
+        Bucket bucket = index.get(key);
+        if (bucket != null && bucket.remove(account) && bucket.size == 0) {
+            index.remove(key);
+        }
+    }
+
+    private static List<Account> list(Bucket bucket) {
+        List<Account> result = new ArrayList<>();
+        if (bucket != null) {
+            bucket.addTo(result);
+        }
+        return result;
+    }
+
+    /**
+     * The accounts under one key, usually only a few, in the order they were added.
+     * <p>
+     * A removed account leaves a hole that later lookups skip, and the holes are squeezed out once they make up half
+     * of the bucket, so removals stay amortized constant time without reordering the accounts. Small buckets are
+     * searched linearly; larger ones keep the position of every account by IBAN.
+     */
+    private static final class Bucket {
+
+        /**
+         * The number of slots up to which a bucket is searched linearly instead of keeping positions.
+         */
+        private static final int SCAN_LIMIT = 8;
+
+        private Account[] accounts = new Account[1];
+
+        /**
+         * The number of slots in use, including holes.
+         */
+        private int end;
+        private int size;
+
+        /**
+         * The slot of each account by IBAN, or {@code null} while the bucket is searched linearly.
+         */
+        private LongIntMap positions;
+
+        void add(Account account) {
+            if (end == accounts.length) {
+                accounts = Arrays.copyOf(accounts, end << 1);
+            }
+            if (positions != null) {
+                positions.put(account.getIban(), end);
+            } else if (end == SCAN_LIMIT) {
+                positions = new LongIntMap(end << 1);
+                for (int i = 0; i < end; i++) {
+                    if (accounts[i] != null) positions.put(accounts[i].getIban(), i);
+                }
+                positions.put(account.getIban(), end);
+            }
+            accounts[end++] = account;
+            size++;
+        }
+
+        boolean remove(Account account) {
+            int i = positionOf(account);
+            if (i < 0) {
+                return false;
+            }
+            accounts[i] = null;
+            size--;
+            if (positions != null) {
+                positions.remove(account.getIban());
+            }
+            while (end > 0 && accounts[end - 1] == null) {
+                end--;
+            }
+            if (size < end >> 1) {
+                compact();
+            }
+            return true;
+        }
+
+        void addTo(List<Account> result) {
+            for (int i = 0; i < end; i++) {
+                if (accounts[i] != null) result.add(accounts[i]);
+            }
+        }
+
+        private int positionOf(Account account) {
+            if (positions != null) {
+                int i = positions.get(account.getIban());
+                return i != LongIntMap.NO_VALUE && accounts[i] == account ? i : -1;
+            }
+            for (int i = 0; i < end; i++) {
+                if (accounts[i] == account) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Moves the accounts to the front of the array, keeping their order.
+         */
+        private void compact() {
+            int next = 0;
+            for (int i = 0; i < end; i++) {
+                Account account = accounts[i];
+                if (account != null) {
+                    if (next != i) {
+                        accounts[next] = account;
+                        accounts[i] = null;
+                        if (positions != null) positions.put(account.getIban(), next);
+                    }
+                    next++;
+                }
+            }
+            end = next;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package h08;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Indexes the slots of a transaction history ring by epoch day and status.
+ * <p>
+ * The slots of each day and status form a circular doubly linked list, oldest first, threaded through two arrays
+ * indexed by slot. The days that have slots are kept in a sorted array, so a range of days is found by binary search
+ * and every day visited has at least one slot. Since entries usually arrive in date order, a new entry almost
+ * always belongs to the last day and an evicted one to the first, and both take constant time. The index does not
+ * know the ring; the ages of slots, 0 for the oldest, are passed in where the order matters.
+ */
+final class DayIndex {
+
+    private static final int STATUSES = Status.values().length;
+
+    private final int[] next;
+    private final int[] prev;
+
+    /**
+     * The epoch day and status ordinal each indexed slot was added with.
+     */
+    private final int[] slotDays;
+    private final byte[] slotStatuses;
+
+    /**
+     * The days that have slots, ascending, with the head slot of each status, or -1, and the number of slots.
+     */
+    private int[] days = new int[4];
+    private final int[][] heads = new int[STATUSES][4];
+    private int[] counts = new int[4];
+    private int dayCount;
+
+    /**
+     * Constructs an empty index.
+     *
+     * @param capacity the number of slots of the ring
+     */
+    DayIndex(int capacity) {
+        next = new int[capacity];
+        prev = new int[capacity];
+        slotDays = new int[capacity];
+        slotStatuses = new byte[capacity];
+    }
+
+    /**
+     * Adds a slot as the newest of its day and status.
+     *
+     * @param slot   the slot
+     * @param day    the epoch day of its entry
+     * @param status the status of its entry
+     */
+    void add(int slot, int day, Status status) {
+        int d = dayOrInsert(day);
+        int s = status.ordinal();
+        int head = heads[s][d];
+        if (head < 0) {
+            link(slot, d, s);
+        } else {
+            insertAfter(prev[head], slot);
+        }
+        counts[d]++;
+        slotDays[slot] = day;
+        slotStatuses[slot] = (byte) s;
+    }
+
+    /**
+     * Removes an indexed slot.
+     *
+     * @param slot the slot
+     */
+    void remove(int slot) {
+        int d = find(slotDays[slot]);
+        int s = slotStatuses[slot];
+        if (next[slot] == slot) {
+            heads[s][d] = -1;
+        } else {
+            next[prev[slot]] = next[slot];
+            prev[next[slot]] = prev[slot];
+            if (heads[s][d] == slot) {
+                heads[s][d] = next[slot];
+            }
+        }
+        if (--counts[d] == 0) {
+            removeDay(d);
+        }
+    }
+
+    /**
+     * Moves an indexed slot whose entry was replaced to the list of its new day and status, in age order.
+     *
+     * @param slot   the slot
+     * @param day    the epoch day of the new entry
+     * @param status the status of the new entry
+     * @param age    the ages of the slots
+     */
+    void update(int slot, int day, Status status, IntUnaryOperator age) {
+        int s = status.ordinal();
+        if (slotDays[slot] == day && slotStatuses[slot] == s) {
+            return;
+        }
+        remove(slot);
+        int d = dayOrInsert(day);
+        int head = heads[s][d];
+        if (head < 0) {
+            link(slot, d, s);
+        } else {
+            int slotAge = age.applyAsInt(slot);
+            int before = prev[head];
+            while (age.applyAsInt(before) > slotAge && before != head) {
+                before = prev[before];
+            }
+            if (age.applyAsInt(before) > slotAge) {
+                insertAfter(prev[head], slot);
+                heads[s][d] = slot;
+            } else {
+                insertAfter(before, slot);
+            }
+        }
+        counts[d]++;
+        slotDays[slot] = day;
+        slotStatuses[slot] = (byte) s;
+    }
+
+    /**
+     * Visits the slots dated between the specified days, inclusive, by day and then oldest first.
+     *
+     * @param from   the first epoch day
+     * @param to     the last epoch day
+     * @param status the status of the slots, or null for all
+     * @param age    the ages of the slots
+     * @param action the action to perform on each slot
+     */
+    void forEach(int from, int to, Status status, IntUnaryOperator age, IntConsumer action) {
+        int d = Arrays.binarySearch(days, 0, dayCount, from);
+        if (d < 0) {
+            d = -d - 1;
+        }
+        int[] cursors = status == null ? new int[STATUSES] : null;
+        for (; d < dayCount && days[d] <= to; d++) {
+            if (status != null) {
+                int head = heads[status.ordinal()][d];
+                if (head >= 0) {
+                    int slot = head;
+                    do {
+                        action.accept(slot);
+                        slot = next[slot];
+                    } while (slot != head);
+                }
+                continue;
+            }
+            for (int s = 0; s < STATUSES; s++) {
+                cursors[s] = heads[s][d];
+            }
+            // merge the lists of the day by age
+            while (true) {
+                int oldest = -1;
+                for (int s = 0; s < STATUSES; s++) {
+                    if (cursors[s] >= 0 && (oldest < 0 || age.applyAsInt(cursors[s]) < age.applyAsInt(cursors[oldest]))) {
+                        oldest = s;
+                    }
+                }
+                if (oldest < 0) {
+                    break;
+                }
+                int slot = cursors[oldest];
+                action.accept(slot);
+                cursors[oldest] = next[slot] == heads[oldest][d] ? -1 : next[slot];
+            }
+        }
+    }
+
+    private void link(int slot, int d, int s) {
+        heads[s][d] = slot;
+        next[slot] = slot;
+        prev[slot] = slot;
+    }
+
+    private void insertAfter(int before, int slot) {
+        int after = next[before];
+        next[slot] = after;
+        prev[slot] = before;
+        prev[after] = slot;
+        next[before] = slot;
+    }
+
+    private int find(int day) {
+        if (dayCount > 0 && days[dayCount - 1] == day) {
+            return dayCount - 1;
+        }
+        return Arrays.binarySearch(days, 0, dayCount, day);
+    }
+
+    private int dayOrInsert(int day) {
+        int d = find(day);
+        if (d >= 0) {
+            return d;
+        }
+        d = -d - 1;
+        if (dayCount == days.length) {
+            int length = dayCount << 1;
+            days = Arrays.copyOf(days, length);
+            counts = Arrays.copyOf(counts, length);
+            for (int s = 0; s < STATUSES; s++) {
+                heads[s] = Arrays.copyOf(heads[s], length);
+            }
+        }
+        System.arraycopy(days, d, days, d + 1, dayCount - d);
+        System.arraycopy(counts, d, counts, d + 1, dayCount - d);
+        for (int s = 0; s < STATUSES; s++) {
+            System.arraycopy(heads[s], d, heads[s], d + 1, dayCount - d);
+            heads[s][d] = -1;
+        }
+        days[d] = day;
+        counts[d] = 0;
+        dayCount++;
+        return d;
+    }
+
+    private void removeDay(int d) {
+        dayCount--;
+        System.arraycopy(days, d + 1, days, d, dayCount - d);
+        System.arraycopy(counts, d + 1, counts, d, dayCount - d);
+        for (int s = 0; s < STATUSES; s++) {
+            System.arraycopy(heads[s], d + 1, heads[s], d, dayCount - d);
+        }
+    }
+}
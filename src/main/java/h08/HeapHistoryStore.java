@@ -0,0 +1,64 @@
+package h08;
+
+/**
+ * A {@link HistoryStore} backed by an array of transactions.
+ */
+class HeapHistoryStore implements HistoryStore {
+
+    private final Transaction[] transactions;
+
+    HeapHistoryStore(int capacity) {
+        this.transactions = new Transaction[capacity];
+    }
+
+    /**
+     * Constructs a store around the specified slots without copying them.
+     *
+     * @param transactions the slots
+     */
+    HeapHistoryStore(Transaction[] transactions) {
+        this.transactions = transactions;
+    }
+
+    @Override
+    public HistoryStorage storage() {
+        return HistoryStorage.HEAP;
+    }
+
+    @Override
+    public int capacity() {
+        return transactions.length;
+    }
+
+    @Override
+    public Transaction get(int slot) {
+        return transactions[slot];
+    }
+
+    @Override
+    public void set(int slot, Transaction transaction) {
+        transactions[slot] = transaction;
+    }
+
+    @Override
+    public long number(int slot) {
+        return transactions[slot].transactionNumber();
+    }
+
+    @Override
+    public Status status(int slot) {
+        return transactions[slot].status();
+    }
+
+    @Override
+    public void copyTo(int slot, HistorySlice slice, int row) {
+        Transaction transaction = transactions[slot];
+        slice.numbers[row] = transaction.transactionNumber();
+        slice.epochDays[row] = (int) transaction.date().toEpochDay();
+        slice.sources[row] = transaction.sourceAccount();
+        slice.targets[row] = transaction.targetAccount();
+        slice.amounts[row] = transaction.amount();
+        slice.statuses[row] = transaction.status();
+        slice.descriptions[row] = transaction.description();
+    }
+}
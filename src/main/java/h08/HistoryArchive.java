@@ -0,0 +1,686 @@
+package h08;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the entries evicted from the transaction histories of one bank on disk.
+ * <p>
+ * While an archive is set with {@link Bank#setHistoryArchive(HistoryArchive)}, every entry that a full history
+ * overwrites, or that a smaller capacity drops, is appended to the archive together with the IBAN of the account it
+ * belonged to. {@link TransactionHistory#get(long)} and {@link TransactionHistory#getTransactions(LocalDate,
+ * LocalDate)} fall through to the archive, so the histories can stay small. Archived entries keep the state they
+ * had when they were evicted.
+ * <p>
+ * Entries are collected into blocks of up to {@value #BLOCK_ENTRIES} entries, which are appended to segment files
+ * of about 64 MiB in the archive directory. For every block the archive keeps a sparse index entry in memory: its
+ * position, the smallest and largest transaction number and date, and a filter of the accounts it holds entries of,
+ * so a lookup only reads the blocks that may hold entries of the account and cover the requested number or dates.
+ * The index is rebuilt by scanning the segments when an archive is opened, and a torn entry at the end of the last
+ * segment is cut off. Appends only wait for each other; lookups read the segments without holding any lock.
+ * <p>
+ * The entries of the block being filled are written to their segment when the archive is {@link #flush()
+ * flushed}. While the bank has a journal, the journal flushes the archive before each commit, so an entry evicted by
+ * a journaled mutation is on disk no later than the mutation. To recover, restore the snapshot and replay the
+ * journal onto banks without an archive, and attach the archive afterwards: the entries that the replayed mutations
+ * evict were archived before the crash. An entry may be archived by a mutation whose journal frame was lost, and is
+ * then still in its history as well; such duplicates are dropped from the results of lookups.
+ * <p>
+ * Archived entries refer to their accounts by BIC and IBAN. They are resolved against the accounts this archive has
+ * seen since it was opened as long as they are reachable, including accounts removed since, and otherwise against
+ * the bank and its transferable banks. An account found in neither, for example one removed before the archive was
+ * opened again, is replaced by a stand-in account without customer data and with a balance of 0, like the detached
+ * accounts of a {@link BankSnapshot}; the stand-ins of a BIC that is not reachable share one stand-in bank. All
+ * methods are thread-safe.
+ */
+public final class HistoryArchive implements Closeable {
+
+    private static final int MAGIC = 0x48384152;
+
+    /**
+     * The current format version.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The largest number of entries per block.
+     */
+    static final int BLOCK_ENTRIES = 256;
+
+    /**
+     * The customer of the stand-in accounts, whose real customer is not archived.
+     */
+    private static final Customer UNKNOWN_CUSTOMER = new Customer("", "", "", LocalDate.EPOCH);
+
+    /**
+     * The size after which a new segment is started.
+     */
+    private static final long SEGMENT_BYTES = 64L << 20;
+
+    private static final int HEADER_BYTES = 8;
+
+    /**
+     * The size of an entry without the bytes of its description.
+     */
+    private static final int ENTRY_BYTES = 8 + 8 + 4 + 4 + 8 + 4 + 8 + 8 + 1 + 4;
+
+    /**
+     * The size of the account filter of a block in longs; 2048 bits with three bits per account keep false positives
+     * for a full block of distinct accounts at about 3%.
+     */
+    private static final int FILTER_LONGS = 32;
+
+    private static final Status[] STATUSES = Status.values();
+
+    private final Path directory;
+
+    /**
+     * The segments and the sealed blocks. Both arrays are only appended to, and replaced when they grow, so a reader
+     * that took them together with {@link #blockCount} under the monitor can use them without it.
+     */
+    private volatile FileChannel[] segments = new FileChannel[0];
+    private Block[] blocks = new Block[64];
+    private int blockCount;
+
+    /**
+     * The entries of the block being filled and the IBANs of the accounts they belong to, the number of them that
+     * are written to the segment, and where the block starts.
+     */
+    private final Transaction[] pending = new Transaction[BLOCK_ENTRIES];
+    private final long[] pendingOwners = new long[BLOCK_ENTRIES];
+    private int pendingSize;
+    private int pendingWritten;
+    private int openSegment;
+    private long openOffset;
+    private int openLength;
+
+    /**
+     * The first segment written to since the last flush, or {@link Integer#MAX_VALUE}.
+     */
+    private int dirty = Integer.MAX_VALUE;
+
+    /**
+     * The accounts entries were archived for or refer to, by BIC and IBAN, held weakly; the references of collected
+     * accounts are dropped from the queue.
+     */
+    private final Map<Integer, Map<Long, AccountReference>> accounts = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Account> collected = new ReferenceQueue<>();
+
+    /**
+     * The stand-in banks of the BICs that archived entries refer to but that are not reachable, by BIC.
+     */
+    private final Map<Integer, Bank> removedBanks = new ConcurrentHashMap<>();
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    private volatile Bank bank;
+    private long size;
+    private volatile boolean closed;
+
+    /**
+     * Opens the archive in the specified directory, creating the directory if it does not exist.
+     *
+     * @param directory the directory
+     * @throws IOException if the directory or its segments cannot be read
+     */
+    public HistoryArchive(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(file -> file.getFileName().toString().endsWith(".seg")).sorted().toList();
+        }
+        try {
+            for (Path file : files) {
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segments = Arrays.copyOf(segments, segments.length + 1);
+                segments[segments.length - 1] = channel;
+                scan(segments.length - 1, channel);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeSegments();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the directory of this archive.
+     *
+     * @return the directory
+     */
+    public Path directory() {
+        return directory;
+    }
+
+    /**
+     * Returns the number of archived entries.
+     *
+     * @return the number of archived entries
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Writes the entries of the block being filled to its segment and forces the segments written to since the
+     * last flush, so all entries archived so far are on disk. Appends only wait for the write, not for the disk.
+     * Does nothing once the archive is closed.
+     *
+     * @throws IOException if the segments cannot be written
+     */
+    public void flush() throws IOException {
+        FileChannel[] segments;
+        int from;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            write();
+            segments = this.segments;
+            from = dirty;
+            dirty = Integer.MAX_VALUE;
+        }
+        try {
+            for (int i = from; i < segments.length; i++) {
+                segments[i].force(false);
+            }
+        } catch (ClosedChannelException e) {
+            if (!closed) throw e;
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = Math.min(dirty, from);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Detaches the archive from its bank, then flushes and closes it.
+     *
+     * @throws IOException if the segments cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        Bank bank = this.bank;
+        if (bank != null && bank.getHistoryArchive() == this) {
+            // outside the monitor: detaching locks the accounts, and appends take the monitor under them
+            bank.setHistoryArchive(null);
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                write();
+                for (int i = Math.min(dirty, segments.length); i < segments.length; i++) {
+                    segments[i].force(false);
+                }
+            } finally {
+                closed = true;
+                closeSegments();
+            }
+        }
+    }
+
+    /**
+     * Binds this archive to the bank whose histories evict into it.
+     *
+     * @param bank the bank
+     * @throws IllegalStateException if the archive belongs to another bank
+     */
+    synchronized void attach(Bank bank) {
+        checkOpen();
+        if (this.bank != null && this.bank != bank) {
+            throw new IllegalStateException("Archive already used by bank " + this.bank.getBic());
+        }
+        this.bank = bank;
+    }
+
+    /**
+     * Archives an entry evicted from the history of the specified account.
+     *
+     * @param owner       the account
+     * @param transaction the entry
+     * @throws UncheckedIOException if a full block cannot be written
+     */
+    synchronized void append(Account owner, Transaction transaction) {
+        checkOpen();
+        remember(transaction.sourceAccount());
+        remember(transaction.targetAccount());
+        pending[pendingSize] = transaction;
+        pendingOwners[pendingSize++] = owner.getIban();
+        size++;
+        if (pendingSize == BLOCK_ENTRIES) {
+            try {
+                seal();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the archived entry with the specified number of the history of the specified account, the one
+     * archived last if it was archived more than once.
+     *
+     * @param owner  the account
+     * @param number the transaction number
+     * @return the entry, or null if it is not archived
+     * @throws UncheckedIOException if a segment cannot be read
+     */
+    Transaction get(Account owner, long number) {
+        long iban = owner.getIban();
+        Block[] blocks;
+        int count;
+        synchronized (this) {
+            checkOpen();
+            for (int i = pendingSize - 1; i >= 0; i--) {
+                if (pendingOwners[i] == iban && pending[i].transactionNumber() == number) {
+                    return pending[i];
+                }
+            }
+            blocks = this.blocks;
+            count = blockCount;
+        }
+        FileChannel[] segments = this.segments;
+        for (int b = count - 1; b >= 0; b--) {
+            Block block = blocks[b];
+            if (number < block.minNumber || number > block.maxNumber || !block.mayHold(iban)) {
+                continue;
+            }
+            ByteBuffer entries = read(segments, block);
+            Transaction found = null;
+            for (int i = 0; i < block.entries; i++) {
+                int start = entries.position();
+                if (entries.getLong(start) == iban && entries.getLong(start + 8) == number) {
+                    found = decode(entries);
+                } else {
+                    skip(entries);
+                }
+            }
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the archived entries of the history of the specified account dated between the specified dates,
+     * inclusive, oldest first. An entry that was archived more than once is added once, at its last position.
+     *
+     * @param owner  the account
+     * @param from   the first date
+     * @param to     the last date
+     * @param result the list to add the entries to
+     * @throws UncheckedIOException if a segment cannot be read
+     */
+    void range(Account owner, LocalDate from, LocalDate to, List<Transaction> result) {
+        long iban = owner.getIban();
+        long first = from.toEpochDay();
+        long last = to.toEpochDay();
+        List<Transaction> open = new ArrayList<>();
+        Block[] blocks;
+        int count;
+        synchronized (this) {
+            checkOpen();
+            for (int i = 0; i < pendingSize; i++) {
+                long day = pending[i].date().toEpochDay();
+                if (pendingOwners[i] == iban && day >= first && day <= last) {
+                    open.add(pending[i]);
+                }
+            }
+            blocks = this.blocks;
+            count = blockCount;
+        }
+        FileChannel[] segments = this.segments;
+        List<Transaction> found = new ArrayList<>();
+        for (int b = 0; b < count; b++) {
+            Block block = blocks[b];
+            if (last < block.minDay || first > block.maxDay || !block.mayHold(iban)) {
+                continue;
+            }
+            ByteBuffer entries = read(segments, block);
+            for (int i = 0; i < block.entries; i++) {
+                int start = entries.position();
+                int day = entries.getInt(start + 16);
+                if (entries.getLong(start) == iban && day >= first && day <= last) {
+                    found.add(decode(entries));
+                } else {
+                    skip(entries);
+                }
+            }
+        }
+        found.addAll(open);
+        LongIntMap latest = new LongIntMap(found.size());
+        for (int i = 0; i < found.size(); i++) {
+            latest.put(found.get(i).transactionNumber(), i);
+        }
+        for (int i = 0; i < found.size(); i++) {
+            if (latest.get(found.get(i).transactionNumber()) == i) {
+                result.add(found.get(i));
+            }
+        }
+    }
+
+    /**
+     * Writes the pending entries that are not written yet to the segment of the block being filled, starting the
+     * block in a new segment if the current one is full.
+     */
+    private void write() throws IOException {
+        if (pendingWritten == pendingSize) {
+            return;
+        }
+        buffer.clear();
+        for (int i = pendingWritten; i < pendingSize; i++) {
+            Transaction transaction = pending[i];
+            byte[] description = transaction.description().getBytes(StandardCharsets.UTF_8);
+            ensure(ENTRY_BYTES + description.length);
+            buffer.putLong(pendingOwners[i]);
+            buffer.putLong(transaction.transactionNumber());
+            buffer.putInt((int) transaction.date().toEpochDay());
+            buffer.putInt(transaction.sourceAccount().getBank().getBic());
+            buffer.putLong(transaction.sourceAccount().getIban());
+            buffer.putInt(transaction.targetAccount().getBank().getBic());
+            buffer.putLong(transaction.targetAccount().getIban());
+            buffer.putDouble(transaction.amount());
+            buffer.put((byte) transaction.status().ordinal());
+            buffer.putInt(description.length);
+            buffer.put(description);
+        }
+        buffer.flip();
+        if (pendingWritten == 0) {
+            FileChannel segment = segments.length == 0 ? null : segments[segments.length - 1];
+            if (segment == null || segment.size() >= SEGMENT_BYTES) {
+                segment = newSegment();
+            }
+            openSegment = segments.length - 1;
+            openOffset = segment.size();
+            openLength = 0;
+        }
+        FileChannel segment = segments[openSegment];
+        long position = openOffset + openLength;
+        while (buffer.hasRemaining()) {
+            position += segment.write(buffer, position);
+        }
+        openLength = (int) (position - openOffset);
+        pendingWritten = pendingSize;
+        dirty = Math.min(dirty, openSegment);
+    }
+
+    /**
+     * Writes the rest of the pending entries and publishes them as a new block.
+     */
+    private void seal() throws IOException {
+        write();
+        Block block = new Block(openSegment, openOffset);
+        block.length = openLength;
+        block.entries = pendingSize;
+        for (int i = 0; i < pendingSize; i++) {
+            block.include(pendingOwners[i], pending[i].transactionNumber(), (int) pending[i].date().toEpochDay());
+            pending[i] = null;
+        }
+        publish(block);
+        pendingSize = 0;
+        pendingWritten = 0;
+    }
+
+    /**
+     * Adds a block to the index; readers that took the array before keep seeing its first {@link #blockCount}
+     * blocks.
+     */
+    private void publish(Block block) {
+        if (blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blockCount << 1);
+        }
+        blocks[blockCount++] = block;
+    }
+
+    private FileChannel newSegment() throws IOException {
+        Path file = directory.resolve(String.format("%08d.seg", segments.length));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        FileChannel[] grown = Arrays.copyOf(segments, segments.length + 1);
+        grown[segments.length] = channel;
+        segments = grown;
+        dirty = Math.min(dirty, grown.length - 1);
+        return channel;
+    }
+
+    /**
+     * Rebuilds the blocks of a segment, cutting off a torn entry at its end.
+     */
+    private void scan(int index, FileChannel channel) throws IOException {
+        long length = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // read the header
+        }
+        header.flip();
+        if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+            throw new IOException("Not an archive segment: " + directory.resolve(String.format("%08d.seg", index)));
+        }
+        if (header.getInt() != VERSION) {
+            throw new IOException("Unsupported archive version in segment " + index);
+        }
+        ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        int position = HEADER_BYTES;
+        Block block = null;
+        while (position + ENTRY_BYTES <= length) {
+            int descriptionLength = data.getInt(position + ENTRY_BYTES - 4);
+            if (descriptionLength < 0 || position + ENTRY_BYTES + descriptionLength > length) {
+                break;
+            }
+            if (block == null) {
+                block = new Block(index, position);
+            }
+            block.include(data.getLong(position), data.getLong(position + 8), data.getInt(position + 16));
+            block.entries++;
+            position += ENTRY_BYTES + descriptionLength;
+            block.length = (int) (position - block.offset);
+            if (block.entries == BLOCK_ENTRIES) {
+                publish(block);
+                size += block.entries;
+                block = null;
+            }
+        }
+        if (block != null) {
+            publish(block);
+            size += block.entries;
+        }
+        if (position < length) {
+            channel.truncate(position);
+        }
+    }
+
+    private ByteBuffer read(FileChannel[] segments, Block block) {
+        ByteBuffer entries = ByteBuffer.allocate(block.length);
+        FileChannel segment = segments[block.segment];
+        try {
+            while (entries.hasRemaining()) {
+                if (segment.read(entries, block.offset + entries.position()) < 0) {
+                    throw new IOException("Truncated archive segment " + block.segment);
+                }
+            }
+        } catch (ClosedChannelException e) {
+            throw new IllegalStateException("Archive closed: " + directory, e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return entries.flip();
+    }
+
+    private Transaction decode(ByteBuffer entries) {
+        entries.getLong();
+        long number = entries.getLong();
+        LocalDate date = LocalDate.ofEpochDay(entries.getInt());
+        Account source = resolve(entries.getInt(), entries.getLong());
+        Account target = resolve(entries.getInt(), entries.getLong());
+        double amount = entries.getDouble();
+        Status status = STATUSES[entries.get()];
+        byte[] description = new byte[entries.getInt()];
+        entries.get(description);
+        return new Transaction(source, target, amount, number, new String(description, StandardCharsets.UTF_8), date, status);
+    }
+
+    private static void skip(ByteBuffer entries) {
+        int start = entries.position();
+        entries.position(start + ENTRY_BYTES + entries.getInt(start + ENTRY_BYTES - 4));
+    }
+
+    private void remember(Account account) {
+        for (Reference<? extends Account> reference; (reference = collected.poll()) != null; ) {
+            AccountReference dropped = (AccountReference) reference;
+            Map<Long, AccountReference> known = accounts.get(dropped.bic);
+            if (known != null) known.remove(dropped.iban, dropped);
+        }
+        int bic = account.getBank().getBic();
+        Map<Long, AccountReference> known = accounts.computeIfAbsent(bic, key -> new ConcurrentHashMap<>());
+        AccountReference reference = known.get(account.getIban());
+        if (reference == null || reference.get() != account) {
+            known.put(account.getIban(), new AccountReference(account, bic, collected));
+        }
+    }
+
+    /**
+     * Returns the account with the specified BIC and IBAN, or a stand-in account if it is unknown.
+     */
+    private Account resolve(int bic, long iban) {
+        Map<Long, AccountReference> known = accounts.get(bic);
+        AccountReference reference = known == null ? null : known.get(iban);
+        Account account = reference == null ? null : reference.get();
+        if (account != null) {
+            return account;
+        }
+        Bank bank = this.bank;
+        Bank owner = bank == null ? null : bic == bank.getBic() ? bank : bank.findBank(bic);
+        account = owner == null ? null : owner.findAccount(iban);
+        if (account == null) {
+            // removed before this archive was opened, or its bank is gone
+            if (owner == null) {
+                owner = removedBanks.computeIfAbsent(bic, key -> new Bank("", key));
+            }
+            account = new Account(UNKNOWN_CUSTOMER, iban, 0.0, owner, new TransactionHistory(1));
+        }
+        remember(account);
+        return account;
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() << 1, buffer.position() + bytes));
+            buffer.flip();
+            buffer = larger.put(buffer);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Archive closed: " + directory);
+        }
+    }
+
+    private void closeSegments() throws IOException {
+        IOException failure = null;
+        for (FileChannel segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        segments = new FileChannel[0];
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The position of a block in its segment, the ranges of its transaction numbers and epoch days, and a Bloom
+     * filter of the IBANs of the accounts it holds entries of. Not changed once published.
+     */
+    private static final class Block {
+        private final int segment;
+        private final long offset;
+        private int length;
+        private int entries;
+        private long minNumber = Long.MAX_VALUE;
+        private long maxNumber = Long.MIN_VALUE;
+        private int minDay = Integer.MAX_VALUE;
+        private int maxDay = Integer.MIN_VALUE;
+        private final long[] owners = new long[FILTER_LONGS];
+
+        Block(int segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        void include(long owner, long number, int day) {
+            minNumber = Math.min(minNumber, number);
+            maxNumber = Math.max(maxNumber, number);
+            minDay = Math.min(minDay, day);
+            maxDay = Math.max(maxDay, day);
+            long hash = hash(owner);
+            for (int k = 0; k < 3; k++, hash >>>= 11) {
+                int bit = (int) hash & (FILTER_LONGS * 64 - 1);
+                owners[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        /**
+         * Returns false if the block holds no entry of the account with the specified IBAN.
+         */
+        boolean mayHold(long owner) {
+            long hash = hash(owner);
+            for (int k = 0; k < 3; k++, hash >>>= 11) {
+                int bit = (int) hash & (FILTER_LONGS * 64 - 1);
+                if ((owners[bit >>> 6] & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static long hash(long iban) {
+            iban ^= iban >>> 33;
+            iban *= 0xff51afd7ed558ccdL;
+            iban ^= iban >>> 33;
+            iban *= 0xc4ceb9fe1a85ec53L;
+            return iban ^ iban >>> 33;
+        }
+    }
+
+    /**
+     * A weak reference to an account that knows where it is kept in {@link #accounts}.
+     */
+    private static final class AccountReference extends WeakReference<Account> {
+        private final int bic;
+        private final long iban;
+
+        AccountReference(Account account, int bic, ReferenceQueue<Account> queue) {
+            super(account, queue);
+            this.bic = bic;
+            this.iban = account.getIban();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package h08;
+
+/**
+ * A reusable copy of consecutive entries of a {@link TransactionHistory} in primitive columns.
+ * <p>
+ * A reader fills a slice under the lock of the account with
+ * {@link TransactionHistory#copyTo(long, long, HistorySlice)} and reads it after releasing the lock; the stores copy
+ * their slots column by column, so neither filling nor reading a slice allocates anything per entry.
+ */
+final class HistorySlice {
+
+    final long[] numbers;
+    final int[] epochDays;
+    final Account[] sources;
+    final Account[] targets;
+    final double[] amounts;
+    final Status[] statuses;
+    final String[] descriptions;
+
+    /**
+     * The number of entries in this slice.
+     */
+    int size;
+
+    /**
+     * Constructs an empty slice.
+     *
+     * @param capacity the largest number of entries the slice holds
+     */
+    HistorySlice(int capacity) {
+        numbers = new long[capacity];
+        epochDays = new int[capacity];
+        sources = new Account[capacity];
+        targets = new Account[capacity];
+        amounts = new double[capacity];
+        statuses = new Status[capacity];
+        descriptions = new String[capacity];
+    }
+
+    /**
+     * Returns the largest number of entries this slice holds.
+     *
+     * @return the capacity
+     */
+    int capacity() {
+        return numbers.length;
+    }
+
+    /**
+     * Drops the references to accounts and descriptions, so a slice kept for reuse does not hold them.
+     */
+    void clear() {
+        for (int row = 0; row < size; row++) {
+            sources[row] = null;
+            targets[row] = null;
+            descriptions[row] = null;
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,21 @@
+package h08;
+
+/**
+ * A history storage describes where a transaction history keeps its entries.
+ */
+public enum HistoryStorage {
+
+    /**
+     * The entries are kept as {@link Transaction} objects on the heap. Reads return the stored objects.
+     */
+    HEAP,
+
+    /**
+     * The entries are kept outside the heap in primitive columns, in slabs of direct memory shared by the histories
+     * of a bank. Accounts and descriptions are stored as ids into dictionaries shared by the histories of the bank,
+     * so a large history adds little to the work of the garbage collector. Reads build a new {@link Transaction}
+     * view for every entry.
+     */
+    OFF_HEAP,
+
+}
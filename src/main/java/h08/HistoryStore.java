@@ -0,0 +1,79 @@
+package h08;
+
+/**
+ * The slots of the ring of a {@link TransactionHistory}.
+ * <p>
+ * Like the history itself, a store is not synchronized; the owning account guards it.
+ */
+interface HistoryStore {
+
+    /**
+     * Creates an empty store.
+     *
+     * @param storage  the kind of store
+     * @param capacity the number of slots
+     * @param arena    the arena an off-heap store allocates from
+     * @return the new store
+     */
+    static HistoryStore create(HistoryStorage storage, int capacity, OffHeapArena arena) {
+        return switch (storage) {
+            case HEAP -> new HeapHistoryStore(capacity);
+            case OFF_HEAP -> new OffHeapHistoryStore(capacity, arena);
+        };
+    }
+
+    /**
+     * Returns the kind of this store.
+     *
+     * @return the kind of this store
+     */
+    HistoryStorage storage();
+
+    /**
+     * Returns the number of slots.
+     *
+     * @return the number of slots
+     */
+    int capacity();
+
+    /**
+     * Returns the transaction in the specified slot.
+     *
+     * @param slot the slot
+     * @return the transaction in the slot, or null if the slot is empty
+     */
+    Transaction get(int slot);
+
+    /**
+     * Stores a transaction in the specified slot, replacing the previous one.
+     *
+     * @param slot        the slot
+     * @param transaction the transaction
+     */
+    void set(int slot, Transaction transaction);
+
+    /**
+     * Returns the number of the transaction in the specified non-empty slot.
+     *
+     * @param slot the slot
+     * @return the transaction number
+     */
+    long number(int slot);
+
+    /**
+     * Returns the status of the transaction in the specified non-empty slot.
+     *
+     * @param slot the slot
+     * @return the status
+     */
+    Status status(int slot);
+
+    /**
+     * Copies the transaction in the specified non-empty slot into a row of a slice.
+     *
+     * @param slot  the slot
+     * @param slice the slice
+     * @param row   the row of the slice
+     */
+    void copyTo(int slot, HistorySlice slice, int row);
+}
@@ -0,0 +1,71 @@
+package h08;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates unique ids, such as transaction numbers, for all banks of this runtime.
+ * <p>
+ * Every thread takes a block of {@link #BLOCK_SIZE} consecutive ids from a shared counter and hands them out without
+ * further synchronization, so the shared counter is only touched once per block. The counter starts at the current
+ * time in milliseconds times one million, which keeps ids of a restarted runtime above those of earlier runs unless
+ * they allocated more than a million ids per millisecond. Ids read back from a journal or a snapshot are passed to
+ * {@link #reserve(long)}, which moves the counter past them and retires blocks that were taken before.
+ */
+final class IdAllocator {
+
+    /**
+     * The number of ids taken from the shared counter at a time.
+     */
+    private static final int BLOCK_SIZE = 1024;
+
+    /**
+     * The first id of the next block.
+     */
+    private static final AtomicLong NEXT = new AtomicLong(System.currentTimeMillis() * 1_000_000);
+
+    /**
+     * The lowest id that may still be handed out; blocks below it are retired.
+     */
+    private static final AtomicLong FLOOR = new AtomicLong();
+
+    private static final ThreadLocal<Block> BLOCK = ThreadLocal.withInitial(Block::new);
+
+    private IdAllocator() {
+    }
+
+    /**
+     * Returns a new id.
+     *
+     * @return a new id
+     */
+    static long next() {
+        Block block = BLOCK.get();
+        if (block.next == block.limit || block.next < FLOOR.get()) {
+            block.next = NEXT.getAndAdd(BLOCK_SIZE);
+            block.limit = block.next + BLOCK_SIZE;
+        }
+        return block.next++;
+    }
+
+    /**
+     * Makes sure the specified id, which is already in use, is never handed out. Must be called before the ids of
+     * a restored bank can meet ids allocated concurrently.
+     *
+     * @param id the id in use
+     */
+    static void reserve(long id) {
+        if (id < FLOOR.get()) {
+            return;
+        }
+        NEXT.accumulateAndGet(id + 1, Math::max);
+        FLOOR.accumulateAndGet(id + 1, Math::max);
+    }
+
+    /**
+     * The ids a thread hands out: {@code next} up to, excluding, {@code limit}.
+     */
+    private static final class Block {
+        private long next;
+        private long limit;
+    }
+}
@@ -0,0 +1,101 @@
+package h08;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Assigns small int ids to values and counts the references to each id. An id is reused once its last reference has
+ * been released.
+ * <p>
+ * Acquiring and releasing are synchronized, so the histories of one bank can share an interner. Reading a value
+ * takes no lock; it is safe for an id the reader holds a reference to, as it cannot be reused meanwhile.
+ *
+ * @param <T> the type of the values
+ */
+class Interner<T> {
+
+    /**
+     * The ids of the interned values; decides whether values are compared by identity or by equality.
+     */
+    private final Map<T, Integer> ids;
+    /**
+     * The values by id; replaced when it grows, after the values are copied, so readers see a complete array.
+     */
+    private volatile Object[] values = new Object[8];
+    private int[] references = new int[8];
+    private int[] free = new int[8];
+    private int freeCount;
+    private int entries;
+
+    /**
+     * Constructs a new, empty interner.
+     *
+     * @param ids the empty map to keep the ids in
+     */
+    Interner(Map<T, Integer> ids) {
+        this.ids = ids;
+    }
+
+    /**
+     * Returns the id of the specified value and adds a reference to it.
+     *
+     * @param value the value
+     * @return the id of the value
+     */
+    synchronized int acquire(T value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            references[id]++;
+            return id;
+        }
+        int newId = freeCount > 0 ? free[--freeCount] : allocate();
+        values[newId] = value;
+        references[newId] = 1;
+        ids.put(value, newId);
+        return newId;
+    }
+
+    /**
+     * Removes a reference to the specified id and forgets its value when it was the last one.
+     *
+     * @param id the id
+     */
+    synchronized void release(int id) {
+        if (--references[id] > 0) {
+            return;
+        }
+        ids.remove(values[id]);
+        values[id] = null;
+        free[freeCount++] = id;
+    }
+
+    /**
+     * Returns the value with the specified id.
+     *
+     * @param id the id
+     * @return the value
+     */
+    @SuppressWarnings("unchecked")
+    T get(int id) {
+        return (T) values[id];
+    }
+
+    /**
+     * Returns the number of interned values.
+     *
+     * @return the number of interned values
+     */
+    synchronized int size() {
+        return ids.size();
+    }
+
+    private int allocate() {
+        if (entries == values.length) {
+            int length = entries << 1;
+            references = Arrays.copyOf(references, length);
+            free = Arrays.copyOf(free, length);
+            values = Arrays.copyOf(values, length);
+        }
+        return entries++;
+    }
+}
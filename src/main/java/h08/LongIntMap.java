@@ -0,0 +1,245 @@
+package h08;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map from primitive {@code long} keys to non-negative {@code int} values.
+ * <p>
+ * Keys are never boxed. Collisions are resolved by linear probing and removal uses backward shifting, so the
+ * table never accumulates tombstones and every operation stays O(1) on average.
+ */
+class LongIntMap {
+
+    /**
+     * The value returned for keys that are not present.
+     */
+    static final int NO_VALUE = -1;
+
+    /**
+     * The key marking an empty slot. The key itself is stored out of band.
+     */
+    private static final long EMPTY = 0L;
+
+    /**
+     * The minimum table length.
+     */
+    private static final int MIN_LENGTH = 16;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private boolean hasEmptyKey;
+    private int emptyKeyValue = NO_VALUE;
+
+    /**
+     * Constructs a new map that can hold the specified number of keys without resizing.
+     *
+     * @param expectedSize the expected number of keys
+     */
+    LongIntMap(int expectedSize) {
+        allocate(tableLength(expectedSize));
+    }
+
+    /**
+     * Constructs a new map with a default initial size.
+     */
+    LongIntMap() {
+        this(MIN_LENGTH / 2);
+    }
+
+    /**
+     * Returns the value mapped to the specified key.
+     *
+     * @param key the key to look up
+     * @return the mapped value or {@link #NO_VALUE} if the key is not present
+     */
+    int get(long key) {
+        if (key == EMPTY) {
+            return emptyKeyValue;
+        }
+        long[] keys = this.keys;
+        int mask = this.mask;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            long k = keys[slot];
+            if (k == key) {
+                return values[slot];
+            }
+            if (k == EMPTY) {
+                return NO_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the specified key is present.
+     *
+     * @param key the key to look up
+     * @return {@code true} if the key is present
+     */
+    boolean containsKey(long key) {
+        return get(key) != NO_VALUE;
+    }
+
+    /**
+     * Maps the specified key to the specified value, replacing any previous mapping.
+     *
+     * @param key   the key
+     * @param value the value, must not be negative
+     * @return the previous value or {@link #NO_VALUE} if the key was not present
+     */
+    int put(long key, int value) {
+        assert value >= 0;
+        if (key == EMPTY) {
+            int previous = emptyKeyValue;
+            if (!hasEmptyKey) {
+                hasEmptyKey = true;
+                size++;
+            }
+            emptyKeyValue = value;
+            return previous;
+        }
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > (keys.length >> 1) + (keys.length >> 2)) {
+            rehash(keys.length << 1);
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Removes the mapping of the specified key.
+     *
+     * @param key the key
+     * @return the removed value or {@link #NO_VALUE} if the key was not present
+     */
+    int remove(long key) {
+        if (key == EMPTY) {
+            int previous = emptyKeyValue;
+            if (hasEmptyKey) {
+                hasEmptyKey = false;
+                emptyKeyValue = NO_VALUE;
+                size--;
+            }
+            return previous;
+        }
+        int slot = mix(key) & mask;
+        while (keys[slot] != key) {
+            if (keys[slot] == EMPTY) {
+                return NO_VALUE;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int previous = values[slot];
+        shiftBack(slot);
+        size--;
+        return previous;
+    }
+
+    /**
+     * Returns the number of keys in this map.
+     *
+     * @return the number of keys in this map
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Resizes this map once so it can hold the specified number of keys without further resizing.
+     *
+     * @param expectedSize the expected number of keys
+     */
+    void ensureCapacity(int expectedSize) {
+        int length = tableLength(expectedSize);
+        if (length > keys.length) {
+            rehash(length);
+        }
+    }
+
+    /**
+     * Removes all keys from this map.
+     */
+    void clear() {
+        Arrays.fill(keys, EMPTY);
+        hasEmptyKey = false;
+        emptyKeyValue = NO_VALUE;
+        size = 0;
+    }
+
+    /**
+     * Closes the gap at the specified slot by moving later entries of the same probe run backwards.
+     *
+     * @param gap the slot that has just been vacated
+     */
+    private void shiftBack(int gap) {
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            long k = keys[slot];
+            if (k == EMPTY) {
+                break;
+            }
+            int home = mix(k) & mask;
+            // move the entry if its home slot does not lie cyclically in (gap, slot]
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                keys[gap] = k;
+                values[gap] = values[slot];
+                gap = slot;
+            }
+        }
+        keys[gap] = EMPTY;
+    }
+
+    private void rehash(int length) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long k = oldKeys[i];
+            if (k != EMPTY) {
+                int slot = mix(k) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = k;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int length) {
+        keys = new long[length];
+        values = new int[length];
+        mask = length - 1;
+    }
+
+    private static int tableLength(int expectedSize) {
+        long needed = Math.max(MIN_LENGTH, (long) Math.ceil(Math.max(expectedSize, 0) / 0.75) + 1);
+        return (int) Math.min(1 << 30, Long.highestOneBit(needed - 1) << 1);
+    }
+
+    /**
+     * Spreads the bits of the specified key (the finalizer of MurmurHash3).
+     *
+     * @param key the key
+     * @return the mixed hash
+     */
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,97 @@
+package h08;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The off-heap memory and the dictionaries shared by the {@link OffHeapHistoryStore stores} of the histories of one
+ * bank.
+ * <p>
+ * Stores take their columns as slices of direct slabs of {@value #SLAB_BYTES} bytes instead of allocating a direct
+ * buffer each, and their slices go back to a free list of their size once the store is unreachable, so histories
+ * of the same capacity reuse each other's memory. Slabs are kept for reuse and not returned to the operating system.
+ * Accounts and descriptions are interned once per arena, so an account or description that appears in many
+ * histories has one entry. Allocation and interning are thread-safe; interned values are read without locking.
+ */
+final class OffHeapArena {
+
+    /**
+     * The size of a slab; a store whose columns are larger gets a slab of its own.
+     */
+    static final int SLAB_BYTES = 1 << 22;
+
+    /**
+     * The arena of histories created outside a bank.
+     */
+    private static final OffHeapArena SHARED = new OffHeapArena();
+
+    private final Interner<Account> accountIds = new Interner<>(new IdentityHashMap<>());
+    private final Interner<String> descriptionIds = new Interner<>(new HashMap<>());
+
+    /**
+     * The released slices by size.
+     */
+    private final Map<Integer, ArrayDeque<ByteBuffer>> free = new HashMap<>();
+    private ByteBuffer slab = ByteBuffer.allocateDirect(0);
+
+    /**
+     * Returns the arena of histories created outside a bank.
+     *
+     * @return the shared arena
+     */
+    static OffHeapArena shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the ids of the accounts of the stores of this arena.
+     *
+     * @return the account interner
+     */
+    Interner<Account> accountIds() {
+        return accountIds;
+    }
+
+    /**
+     * Returns the ids of the descriptions of the stores of this arena.
+     *
+     * @return the description interner
+     */
+    Interner<String> descriptionIds() {
+        return descriptionIds;
+    }
+
+    /**
+     * Returns a slice of the specified size in native byte order, reusing a released slice of that size if there
+     * is one. A new slice is zeroed; a reused one holds what its previous store left in it.
+     *
+     * @param bytes the size
+     * @return the slice
+     */
+    synchronized ByteBuffer allocate(int bytes) {
+        ArrayDeque<ByteBuffer> released = free.get(bytes);
+        ByteBuffer slice = released == null ? null : released.poll();
+        if (slice != null) {
+            return slice;
+        }
+        if (slab.remaining() < bytes) {
+            slab = ByteBuffer.allocateDirect(Math.max(SLAB_BYTES, bytes));
+        }
+        slice = slab.slice(slab.position(), bytes).order(ByteOrder.nativeOrder());
+        slab.position(slab.position() + bytes);
+        return slice;
+    }
+
+    /**
+     * Takes back a slice returned by {@link #allocate(int)} for reuse.
+     *
+     * @param slice the slice
+     */
+    synchronized void release(ByteBuffer slice) {
+        free.computeIfAbsent(slice.capacity(), bytes -> new ArrayDeque<>()).push(slice);
+    }
+}
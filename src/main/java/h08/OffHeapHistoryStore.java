@@ -0,0 +1,178 @@
+package h08;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+
+/**
+ * A {@link HistoryStore} that keeps its entries in primitive columns in a slice of the direct memory of an
+ * {@link OffHeapArena}.
+ * <p>
+ * Each slot has a transaction number, an amount, a source and a target account id, a description id, an epoch day
+ * and a status. Accounts are interned by identity and descriptions by equality in the dictionaries of the arena,
+ * with reference counts, so the dictionaries only hold values that are still referenced by a slot. Amounts that are
+ * whole minor units are stored as fixed-point longs, any other amount as the bits of its double, which keeps
+ * floating-point balances exact. {@link #get(int)} builds a new {@link Transaction} from the columns, while
+ * {@link #copyTo(int, HistorySlice, int)} copies them without allocating. Once a store is unreachable, a cleaner
+ * releases the references of its slots and gives its slice back to the arena.
+ */
+class OffHeapHistoryStore implements HistoryStore {
+
+    /**
+     * The number of bytes per slot over all columns.
+     */
+    private static final int SLOT_BYTES = 8 + 8 + 4 + 4 + 4 + 4 + 1;
+
+    /**
+     * Set in the status column if the amount column holds the bits of a double instead of minor units.
+     */
+    private static final byte RAW_AMOUNT = (byte) 0x80;
+
+    private static final Status[] STATUSES = Status.values();
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final int capacity;
+    private final ByteBuffer columns;
+    private final int amounts;
+    private final int sources;
+    private final int targets;
+    private final int descriptions;
+    private final int days;
+    private final int statuses;
+    private final Interner<Account> accountIds;
+    private final Interner<String> descriptionIds;
+
+    /**
+     * Constructs an empty store in the specified arena.
+     *
+     * @param capacity the number of slots
+     * @param arena    the arena
+     * @throws IllegalArgumentException if the columns do not fit into one buffer
+     */
+    OffHeapHistoryStore(int capacity, OffHeapArena arena) {
+        if (capacity < 0 || capacity > Integer.MAX_VALUE / SLOT_BYTES) {
+            throw new IllegalArgumentException("Capacity too large for off-heap storage: " + capacity);
+        }
+        this.capacity = capacity;
+        this.columns = arena.allocate(capacity * SLOT_BYTES);
+        this.amounts = capacity * 8;
+        this.sources = amounts + capacity * 8;
+        this.targets = sources + capacity * 4;
+        this.descriptions = targets + capacity * 4;
+        this.days = descriptions + capacity * 4;
+        this.statuses = days + capacity * 4;
+        this.accountIds = arena.accountIds();
+        this.descriptionIds = arena.descriptionIds();
+        for (int slot = 0; slot < capacity; slot++) {
+            columns.put(statuses + slot, (byte) 0);
+        }
+        CLEANER.register(this, new Release(arena, columns, capacity));
+    }
+
+    @Override
+    public HistoryStorage storage() {
+        return HistoryStorage.OFF_HEAP;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public Transaction get(int slot) {
+        byte status = columns.get(statuses + slot);
+        if (status == 0) {
+            return null;
+        }
+        long amount = columns.getLong(amounts + slot * 8);
+        return new Transaction(
+            accountIds.get(columns.getInt(sources + slot * 4)),
+            accountIds.get(columns.getInt(targets + slot * 4)),
+            (status & RAW_AMOUNT) != 0 ? Double.longBitsToDouble(amount) : (double) amount / Account.MINOR_UNITS,
+            columns.getLong(slot * 8),
+            descriptionIds.get(columns.getInt(descriptions + slot * 4)),
+            LocalDate.ofEpochDay(columns.getInt(days + slot * 4)),
+            STATUSES[(status & ~RAW_AMOUNT) - 1]
+        );
+    }
+
+    @Override
+    public void set(int slot, Transaction transaction) {
+        // acquire before release, so values shared by the old and the new entry keep their ids
+        int source = accountIds.acquire(transaction.sourceAccount());
+        int target = accountIds.acquire(transaction.targetAccount());
+        int description = descriptionIds.acquire(transaction.description());
+        if (columns.get(statuses + slot) != 0) {
+            accountIds.release(columns.getInt(sources + slot * 4));
+            accountIds.release(columns.getInt(targets + slot * 4));
+            descriptionIds.release(columns.getInt(descriptions + slot * 4));
+        }
+        long minorUnits = Account.toMinorUnits(transaction.amount());
+        boolean exact = (double) minorUnits / Account.MINOR_UNITS == transaction.amount();
+        columns.putLong(slot * 8, transaction.transactionNumber());
+        columns.putLong(amounts + slot * 8, exact ? minorUnits : Double.doubleToRawLongBits(transaction.amount()));
+        columns.putInt(sources + slot * 4, source);
+        columns.putInt(targets + slot * 4, target);
+        columns.putInt(descriptions + slot * 4, description);
+        columns.putInt(days + slot * 4, (int) transaction.date().toEpochDay());
+        columns.put(statuses + slot, (byte) ((transaction.status().ordinal() + 1) | (exact ? 0 : RAW_AMOUNT)));
+    }
+
+    @Override
+    public long number(int slot) {
+        return columns.getLong(slot * 8);
+    }
+
+    @Override
+    public Status status(int slot) {
+        return STATUSES[(columns.get(statuses + slot) & ~RAW_AMOUNT) - 1];
+    }
+
+    @Override
+    public void copyTo(int slot, HistorySlice slice, int row) {
+        byte status = columns.get(statuses + slot);
+        long amount = columns.getLong(amounts + slot * 8);
+        slice.numbers[row] = columns.getLong(slot * 8);
+        slice.epochDays[row] = columns.getInt(days + slot * 4);
+        slice.sources[row] = accountIds.get(columns.getInt(sources + slot * 4));
+        slice.targets[row] = accountIds.get(columns.getInt(targets + slot * 4));
+        slice.amounts[row] = (status & RAW_AMOUNT) != 0 ? Double.longBitsToDouble(amount) : (double) amount / Account.MINOR_UNITS;
+        slice.statuses[row] = STATUSES[(status & ~RAW_AMOUNT) - 1];
+        slice.descriptions[row] = descriptionIds.get(columns.getInt(descriptions + slot * 4));
+    }
+
+    /**
+     * Releases the ids held by the slots of an unreachable store and gives its slice back to the arena. Refers to
+     * the slice, not to the store.
+     */
+    private static final class Release implements Runnable {
+
+        private final OffHeapArena arena;
+        private final ByteBuffer columns;
+        private final int capacity;
+
+        Release(OffHeapArena arena, ByteBuffer columns, int capacity) {
+            this.arena = arena;
+            this.columns = columns;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void run() {
+            int sources = capacity * 16;
+            int targets = sources + capacity * 4;
+            int descriptions = targets + capacity * 4;
+            int statuses = descriptions + capacity * 8;
+            for (int slot = 0; slot < capacity; slot++) {
+                if (columns.get(statuses + slot) != 0) {
+                    arena.accountIds().release(columns.getInt(sources + slot * 4));
+                    arena.accountIds().release(columns.getInt(targets + slot * 4));
+                    arena.descriptionIds().release(columns.getInt(descriptions + slot * 4));
+                }
+            }
+            arena.release(columns);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package h08;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tracks the open transactions in the transaction histories of one bank, ordered by date.
+ * <p>
+ * Transaction histories report every transaction that becomes OPEN and every transaction that stops being OPEN in
+ * them (closed, cancelled or overwritten). A transaction is tracked once, no matter how many histories of the bank
+ * contain it, and lives in a bucket for its day. {@link Bank#checkOpenTransactions()} then only visits the buckets
+ * past its age threshold instead of all histories. The tracker is split into shards by transaction number, each
+ * guarded by its own monitor, so histories of different accounts can report concurrently.
+ */
+class OpenTransactions {
+
+    /**
+     * The number of shards, a power of two.
+     */
+    private static final int SHARDS = 16;
+
+    private final Shard[] shards = new Shard[SHARDS];
+
+    /**
+     * Constructs a new, empty tracker.
+     */
+    OpenTransactions() {
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Registers an open transaction that has been added to one more history.
+     *
+     * @param transaction the open transaction
+     */
+    void open(Transaction transaction) {
+        shard(transaction.transactionNumber()).open(transaction, true);
+    }
+
+    /**
+     * Replaces an open transaction that is already registered for a history, for example after an update that kept
+     * it open.
+     *
+     * @param transaction the open transaction
+     */
+    void replace(Transaction transaction) {
+        shard(transaction.transactionNumber()).open(transaction, false);
+    }
+
+    /**
+     * Unregisters an open transaction from one history. The transaction stops being tracked once no history of the
+     * bank holds it as open anymore.
+     *
+     * @param transactionNumber the number of the transaction
+     */
+    void release(long transactionNumber) {
+        shard(transactionNumber).release(transactionNumber);
+    }
+
+    /**
+     * Returns all tracked transactions dated on or before the specified day, oldest first within each shard.
+     *
+     * @param epochDay the last day to include, as epoch day
+     * @return the tracked transactions up to the specified day
+     */
+    List<Transaction> until(long epochDay) {
+        List<Transaction> result = new ArrayList<>();
+        for (Shard shard : shards) {
+            shard.until(epochDay, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of tracked transactions.
+     *
+     * @return the number of tracked transactions
+     */
+    int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    private Shard shard(long transactionNumber) {
+        return shards[(int) (transactionNumber ^ (transactionNumber >>> 32)) & (SHARDS - 1)];
+    }
+
+    /**
+     * The transactions of one day within a shard, as entry ids.
+     */
+    private static final class Bucket {
+        private int[] ids = new int[4];
+        private int size;
+    }
+
+    /**
+     * One shard of the tracker. Entries live in parallel arrays and are addressed by id.
+     */
+    private static final class Shard {
+
+        private final LongIntMap ids = new LongIntMap();
+        private final TreeMap<Integer, Bucket> days = new TreeMap<>();
+        private Transaction[] transactions = new Transaction[16];
+        private int[] entryDays = new int[16];
+        private int[] references = new int[16];
+        private int[] positions = new int[16];
+        private int[] free = new int[16];
+        private int freeCount;
+        private int entries;
+
+        /**
+         * The most recently used bucket; most transactions are opened and closed on the same day.
+         */
+        private Bucket lastBucket;
+        private int lastDay;
+
+        synchronized void open(Transaction transaction, boolean reference) {
+            long number = transaction.transactionNumber();
+            int day = (int) transaction.date().toEpochDay();
+            int id = ids.get(number);
+            if (id == LongIntMap.NO_VALUE) {
+                id = allocate();
+                ids.put(number, id);
+                transactions[id] = transaction;
+                references[id] = 1;
+                link(id, day);
+                return;
+            }
+            transactions[id] = transaction;
+            if (reference) {
+                references[id]++;
+            }
+            if (entryDays[id] != day) {
+                unlink(id);
+                link(id, day);
+            }
+        }
+
+        synchronized void release(long number) {
+            int id = ids.get(number);
+            if (id == LongIntMap.NO_VALUE || --references[id] > 0) {
+                return;
+            }
+            unlink(id);
+            ids.remove(number);
+            transactions[id] = null;
+            free[freeCount++] = id;
+        }
+
+        synchronized void until(long epochDay, List<Transaction> result) {
+            Iterator<Map.Entry<Integer, Bucket>> it = days.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Bucket> entry = it.next();
+                if (entry.getKey() > epochDay) {
+                    break;
+                }
+                Bucket bucket = entry.getValue();
+                if (bucket.size == 0) {
+                    it.remove();
+                    if (lastBucket == bucket) {
+                        lastBucket = null;
+                    }
+                    continue;
+                }
+                for (int i = 0; i < bucket.size; i++) {
+                    result.add(transactions[bucket.ids[i]]);
+                }
+            }
+        }
+
+        synchronized int size() {
+            return ids.size();
+        }
+
+        private int allocate() {
+            if (freeCount > 0) {
+                return free[--freeCount];
+            }
+            if (entries == transactions.length) {
+                int length = entries << 1;
+                transactions = Arrays.copyOf(transactions, length);
+                entryDays = Arrays.copyOf(entryDays, length);
+                references = Arrays.copyOf(references, length);
+                positions = Arrays.copyOf(positions, length);
+                free = Arrays.copyOf(free, length);
+            }
+            return entries++;
+        }
+
+        private void link(int id, int day) {
+            Bucket bucket = bucket(day, true);
+            if (bucket.size == bucket.ids.length) {
+                bucket.ids = Arrays.copyOf(bucket.ids, bucket.size << 1);
+            }
+            entryDays[id] = day;
+            positions[id] = bucket.size;
+            bucket.ids[bucket.size++] = id;
+        }
+
+        private void unlink(int id) {
+            int day = entryDays[id];
+            Bucket bucket = bucket(day, false);
+            int position = positions[id];
+            int last = bucket.ids[--bucket.size];
+            bucket.ids[position] = last;
+            positions[last] = position;
+            // empty buckets are kept for reuse and dropped by until()
+        }
+
+        private Bucket bucket(int day, boolean create) {
+            if (lastBucket != null && lastDay == day) {
+                return lastBucket;
+            }
+            Bucket bucket = days.get(day);
+            if (bucket == null && create) {
+                bucket = new Bucket();
+                days.put(day, bucket);
+            }
+            lastBucket = bucket;
+            lastDay = day;
+            return bucket;
+        }
+    }
+}
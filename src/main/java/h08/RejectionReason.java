@@ -0,0 +1,48 @@
+package h08;
+
+/**
+ * The reason a transfer was cancelled.
+ */
+public enum RejectionReason {
+
+    /**
+     * The sender's IBAN is not an account of the bank.
+     */
+    UNKNOWN_SENDER,
+
+    /**
+     * The receiver's BIC is neither the bank's own nor that of a transferable bank.
+     */
+    UNKNOWN_BANK,
+
+    /**
+     * The receiver's IBAN is not an account of the receiving bank.
+     */
+    UNKNOWN_RECEIVER,
+
+    /**
+     * The sender's or the receiver's account was removed while the transfer waited for its locks.
+     */
+    ACCOUNT_REMOVED,
+
+    /**
+     * The amount is not positive, or rounds to zero minor units in {@link BalanceMode#FIXED_POINT}.
+     */
+    INVALID_AMOUNT,
+
+    /**
+     * The sender's balance does not cover the amount.
+     */
+    INSUFFICIENT_FUNDS,
+
+    /**
+     * The receiver's balance would exceed the largest balance {@link BalanceMode#FIXED_POINT} can hold.
+     */
+    BALANCE_OVERFLOW,
+
+    /**
+     * A transaction history rejected the transaction, for example because it already holds its number.
+     */
+    HISTORY_COLLISION,
+
+}
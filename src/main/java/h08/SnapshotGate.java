@@ -0,0 +1,81 @@
+package h08;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the mutations in flight on a bank so a snapshot can start at a point where none of them is half done.
+ * <p>
+ * A mutation enters the gate before it touches an account and exits it once all of its accounts are updated.
+ * Closing the gate holds back new mutations at the entry and returns as soon as the ones that entered before have
+ * exited; the snapshot then fixes its point in time and opens the gate again, so traffic only waits for the
+ * mutations that were already running. The mutations are counted in padded stripes chosen by thread, and a thread
+ * exits the stripe it entered, so each stripe is exact on its own and entering costs one mostly uncontended atomic
+ * increment.
+ */
+final class SnapshotGate {
+
+    /**
+     * The distance between two stripes in longs, so that no two stripes share a cache line.
+     */
+    private static final int PADDING = 16;
+
+    private final AtomicLongArray counts;
+    private final int mask;
+    private volatile boolean closed;
+
+    /**
+     * Constructs an open gate with two stripes per processor.
+     */
+    SnapshotGate() {
+        int stripes = Integer.highestOneBit(Math.max(2, 2 * Runtime.getRuntime().availableProcessors()) - 1) << 1;
+        counts = new AtomicLongArray(stripes * PADDING);
+        mask = stripes - 1;
+    }
+
+    /**
+     * Enters the gate, waiting while it is closed.
+     *
+     * @return the ticket to exit with
+     */
+    int enter() {
+        int ticket = (Thread.currentThread().hashCode() & mask) * PADDING;
+        while (true) {
+            counts.getAndIncrement(ticket);
+            if (!closed) {
+                return ticket;
+            }
+            counts.getAndDecrement(ticket);
+            while (closed) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Exits the gate.
+     *
+     * @param ticket the ticket returned by {@link #enter()}
+     */
+    void exit(int ticket) {
+        counts.getAndDecrement(ticket);
+    }
+
+    /**
+     * Closes the gate and waits until every mutation that entered it has exited. Calls must not overlap.
+     */
+    void close() {
+        closed = true;
+        for (int ticket = 0; ticket < counts.length(); ticket += PADDING) {
+            while (counts.get(ticket) != 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Opens the gate again.
+     */
+    void open() {
+        closed = false;
+    }
+}
@@ -0,0 +1,442 @@
+package h08;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * Writes account statements, the transaction histories of accounts oldest first, to a {@link WritableByteChannel}.
+ * <p>
+ * The entries of each history are copied {@value #SLICE_ENTRIES} at a time into a reusable columnar slice under the
+ * lock of its account and encoded after releasing the lock into one reusable direct buffer, which is written to the
+ * channel whenever it is full. Transfers never wait for the channel, and an export takes the same memory however
+ * long the histories are. The statement of an account holds the entries its history held when the export of the
+ * account started, each as it is when its slice is copied; entries evicted before that are left out. Numbers,
+ * dates and amounts of whole minor units are formatted digit by digit and descriptions are encoded character by
+ * character; no intermediate objects are built per entry.
+ * An exporter is not thread-safe, but may be reused for any number of exports.
+ * <p>
+ * In {@link Format#CSV} every export starts with a header line. In {@link Format#BINARY} every export starts with
+ * the int {@code 0x48385354} and the format version, followed by one record per entry: the IBAN of the exported
+ * account, the transaction number, the epoch day, the BIC and IBAN of the source and of the target account, the
+ * amount, a status byte and the description as an int length and UTF-8 bytes. Amounts of whole minor units are
+ * longs in minor units; any other amount is the bits of its double, marked by bit {@code 0x80} in the status byte,
+ * whose low bits are the status ordinal plus one. All values are big-endian.
+ */
+public final class StatementExporter {
+
+    /**
+     * The encodings of an export.
+     */
+    public enum Format {
+
+        /**
+         * Comma-separated values with a header line, UTF-8 encoded.
+         */
+        CSV,
+
+        /**
+         * Fixed-width big-endian records with length-prefixed descriptions.
+         */
+        BINARY,
+
+    }
+
+    /**
+     * The first int of a binary export.
+     */
+    static final int MAGIC = 0x48385354;
+
+    /**
+     * The current version of the binary format.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Set in the status byte of a binary record if the amount holds the bits of a double instead of minor units.
+     */
+    private static final byte RAW_AMOUNT = (byte) 0x80;
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The number of entries copied under one acquisition of an account lock.
+     */
+    static final int SLICE_ENTRIES = 1024;
+
+    /**
+     * The largest number of bytes a CSV row needs apart from its description.
+     */
+    private static final int MAX_ROW_BYTES = 256;
+
+    private static final byte[] HEADER = ("account,transaction_number,date,source_bic,source_iban,target_bic,"
+        + "target_iban,amount,status,description\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final Status[] STATUSES = Status.values();
+    private static final byte[][] STATUS_NAMES = new byte[STATUSES.length][];
+
+    static {
+        for (Status status : STATUSES) {
+            STATUS_NAMES[status.ordinal()] = status.name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final Format format;
+    private final ByteBuffer buffer;
+    private final HistorySlice slice = new HistorySlice(SLICE_ENTRIES);
+
+    /**
+     * The channel of the running export.
+     */
+    private WritableByteChannel channel;
+
+    /**
+     * Constructs a new exporter with a 64 KiB buffer.
+     *
+     * @param format the format of the exports
+     */
+    public StatementExporter(Format format) {
+        this(format, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs a new exporter.
+     *
+     * @param format     the format of the exports
+     * @param bufferSize the size of the buffer in bytes
+     * @throws IllegalArgumentException if the buffer cannot hold a row without its description
+     */
+    public StatementExporter(Format format, int bufferSize) {
+        if (bufferSize < MAX_ROW_BYTES) {
+            throw new IllegalArgumentException("Buffer too small: " + bufferSize);
+        }
+        this.format = format;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Returns the format of the exports.
+     *
+     * @return the format
+     */
+    public Format format() {
+        return format;
+    }
+
+    /**
+     * Exports the statement of the specified account.
+     *
+     * @param account the account
+     * @param channel the channel to write to, left open
+     * @return the number of exported entries
+     * @throws IOException if the channel cannot be written
+     */
+    public long export(Account account, WritableByteChannel channel) throws IOException {
+        begin(channel);
+        try {
+            long entries = write(account);
+            flush();
+            return entries;
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Exports the statements of all accounts of the specified bank, one account after the other.
+     *
+     * @param bank    the bank
+     * @param channel the channel to write to, left open
+     * @return the number of exported entries
+     * @throws IOException if the channel cannot be written
+     */
+    public long export(Bank bank, WritableByteChannel channel) throws IOException {
+        begin(channel);
+        try {
+            long entries = 0;
+            for (Account account : bank.accounts()) {
+                entries += write(account);
+            }
+            flush();
+            return entries;
+        } finally {
+            end();
+        }
+    }
+
+    private void begin(WritableByteChannel channel) throws IOException {
+        this.channel = channel;
+        buffer.clear();
+        if (format == Format.CSV) {
+            buffer.put(HEADER);
+        } else {
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+        }
+    }
+
+    private void end() {
+        channel = null;
+        buffer.clear();
+    }
+
+    /**
+     * Copies the history of an account slice by slice under its lock and encodes each slice after releasing the
+     * lock, so transfers do not wait for the channel.
+     */
+    private long write(Account account) throws IOException {
+        Bank bank = account.getBank();
+        long iban = account.getIban();
+        long next;
+        long end;
+        bank.lockAccount(iban);
+        try {
+            TransactionHistory history = account.getHistory();
+            end = history.added();
+            next = end - history.size();
+        } finally {
+            bank.unlockAccount(iban);
+        }
+        long entries = 0;
+        try {
+            while (next < end) {
+                bank.lockAccount(iban);
+                try {
+                    next = account.getHistory().copyTo(next, end, slice);
+                } finally {
+                    bank.unlockAccount(iban);
+                }
+                for (int row = 0; row < slice.size; row++) {
+                    if (format == Format.CSV) {
+                        writeCsv(iban, row);
+                    } else {
+                        writeBinary(iban, row);
+                    }
+                }
+                entries += slice.size;
+            }
+        } finally {
+            slice.clear();
+        }
+        return entries;
+    }
+
+    private void writeCsv(long iban, int row) throws IOException {
+        ensure(MAX_ROW_BYTES);
+        putDecimal(iban);
+        buffer.put((byte) ',');
+        putDecimal(slice.numbers[row]);
+        buffer.put((byte) ',');
+        putDate(slice.epochDays[row]);
+        buffer.put((byte) ',');
+        putDecimal(slice.sources[row].getBank().getBic());
+        buffer.put((byte) ',');
+        putDecimal(slice.sources[row].getIban());
+        buffer.put((byte) ',');
+        putDecimal(slice.targets[row].getBank().getBic());
+        buffer.put((byte) ',');
+        putDecimal(slice.targets[row].getIban());
+        buffer.put((byte) ',');
+        putAmount(slice.amounts[row]);
+        buffer.put((byte) ',');
+        buffer.put(STATUS_NAMES[slice.statuses[row].ordinal()]);
+        buffer.put((byte) ',');
+        putCsvField(slice.descriptions[row]);
+        ensure(1);
+        buffer.put((byte) '\n');
+    }
+
+    private void writeBinary(long iban, int row) throws IOException {
+        String description = slice.descriptions[row];
+        ensure(8 + 8 + 4 + 4 + 8 + 4 + 8 + 8 + 1 + 4);
+        buffer.putLong(iban);
+        buffer.putLong(slice.numbers[row]);
+        buffer.putInt(slice.epochDays[row]);
+        buffer.putInt(slice.sources[row].getBank().getBic());
+        buffer.putLong(slice.sources[row].getIban());
+        buffer.putInt(slice.targets[row].getBank().getBic());
+        buffer.putLong(slice.targets[row].getIban());
+        double amount = slice.amounts[row];
+        long minorUnits = Account.toMinorUnits(amount);
+        boolean exact = (double) minorUnits / Account.MINOR_UNITS == amount;
+        buffer.putLong(exact ? minorUnits : Double.doubleToRawLongBits(amount));
+        buffer.put((byte) ((slice.statuses[row].ordinal() + 1) | (exact ? 0 : RAW_AMOUNT)));
+        buffer.putInt(utf8Length(description));
+        putUtf8(description);
+    }
+
+    /**
+     * Writes a non-negative or negative long in decimal. The caller ensures 20 bytes of space.
+     */
+    private void putDecimal(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                buffer.put("-9223372036854775808".getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int end = buffer.position() + digits;
+        for (int position = end - 1; position >= buffer.position(); position--) {
+            buffer.put(position, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+    /**
+     * Writes the date with the specified epoch day as {@code yyyy-MM-dd}, or in {@link LocalDate#toString()} form
+     * outside years 0 to 9999. The civil date is computed without building a {@link LocalDate}.
+     */
+    private void putDate(int epochDay) {
+        // days since 0000-03-01, split into 400-year eras, years starting in March
+        long days = epochDay + 719_468L;
+        long era = Math.floorDiv(days, 146_097);
+        int dayOfEra = (int) (days - era * 146_097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthFromMarch = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * monthFromMarch + 2) / 5 + 1;
+        int month = monthFromMarch < 10 ? monthFromMarch + 3 : monthFromMarch - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            buffer.put(LocalDate.ofEpochDay(epochDay).toString().getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        putDigits((int) year, 4);
+        buffer.put((byte) '-');
+        putDigits(month, 2);
+        buffer.put((byte) '-');
+        putDigits(day, 2);
+    }
+
+    private void putDigits(int value, int digits) {
+        int position = buffer.position();
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer.put(position + i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(position + digits);
+    }
+
+    /**
+     * Writes an amount of whole minor units with two decimals, and any other amount as {@link Double#toString()}.
+     */
+    private void putAmount(double amount) {
+        long minorUnits = Account.toMinorUnits(amount);
+        if ((double) minorUnits / Account.MINOR_UNITS != amount || minorUnits == Long.MIN_VALUE) {
+            buffer.put(Double.toString(amount).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (minorUnits < 0) {
+            buffer.put((byte) '-');
+            minorUnits = -minorUnits;
+        }
+        putDecimal(minorUnits / Account.MINOR_UNITS);
+        buffer.put((byte) '.');
+        putDigits((int) (minorUnits % Account.MINOR_UNITS), 2);
+    }
+
+    /**
+     * Writes a CSV field, quoted if it contains a separator, a quote or a line break.
+     */
+    private void putCsvField(String value) throws IOException {
+        boolean quoted = false;
+        for (int i = 0; i < value.length() && !quoted; i++) {
+            char c = value.charAt(i);
+            quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quoted) {
+            putUtf8(value);
+            return;
+        }
+        ensure(1);
+        buffer.put((byte) '"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                ensure(2);
+                buffer.put((byte) '"').put((byte) '"');
+            } else {
+                i = putUtf8(value, i);
+            }
+        }
+        ensure(1);
+        buffer.put((byte) '"');
+    }
+
+    private void putUtf8(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            i = putUtf8(value, i);
+        }
+    }
+
+    /**
+     * Writes the character at the specified index, or the surrogate pair starting there, and returns the index of
+     * its last char. Unpaired surrogates are written as {@code ?}, as {@link String#getBytes} does.
+     */
+    private int putUtf8(String value, int index) throws IOException {
+        ensure(4);
+        char c = value.charAt(index);
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+        } else if (!Character.isSurrogate(c)) {
+            buffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length()
+            && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(++index));
+            buffer.put((byte) (0xF0 | codePoint >> 18)).put((byte) (0x80 | codePoint >> 12 & 0x3F))
+                .put((byte) (0x80 | codePoint >> 6 & 0x3F)).put((byte) (0x80 | codePoint & 0x3F));
+        } else {
+            buffer.put((byte) '?');
+        }
+        return index;
+    }
+
+    /**
+     * Returns the number of bytes {@link #putUtf8(String)} writes for the specified string.
+     */
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (!Character.isSurrogate(c)) {
+                length += 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,50 @@
+package h08;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+/**
+ * Caches the current date in the default time zone.
+ * <p>
+ * {@link LocalDate#now()} resolves the time zone rules and builds a new date on every call, which dominates the
+ * validation of customers and transactions when millions of them are created. The cached date is replaced once the
+ * current time leaves the day it was computed for, so a change of the default time zone takes effect at the next
+ * day boundary.
+ */
+final class Today {
+
+    private static volatile Day day = day(System.currentTimeMillis());
+
+    private Today() {
+    }
+
+    /**
+     * Returns the current date.
+     *
+     * @return the current date
+     */
+    static LocalDate get() {
+        Day day = Today.day;
+        long now = System.currentTimeMillis();
+        if (now < day.start || now >= day.end) {
+            day = day(now);
+            Today.day = day;
+        }
+        return day.date;
+    }
+
+    private static Day day(long millis) {
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate date = LocalDate.ofInstant(Instant.ofEpochMilli(millis), zone);
+        long start = date.atStartOfDay(zone).toInstant().toEpochMilli();
+        long end = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        return new Day(date, start, end);
+    }
+
+    /**
+     * A date and the epoch milliseconds it starts at, inclusive, and ends at, exclusive.
+     */
+    private record Day(LocalDate date, long start, long end) {
+    }
+}
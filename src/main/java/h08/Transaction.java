@@ -39,7 +39,7 @@ public record Transaction(
      */
     public Transaction {
 assert sourceAccount!=null && targetAccount!=null && description!=null && date!=null && status!=null;
-if (date.isAfter(LocalDate.now())){
+if (date.isAfter(Today.get())){
     throw new BadTimestampException(date);
 }
 
@@ -1,5 +1,8 @@
 package h08;
 
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Arrays;
 
@@ -7,78 +10,313 @@ public class TransactionHistory {
 
     private static final int DEFAULT_CAPACITY = 10;
     private final int capacity;
-    private final Transaction[] transactions;
+    /**
+     * The slots of the ring.
+     */
+    private final HistoryStore transactions;
+    /**
+     * Maps transaction numbers to their slot in {@link #transactions}.
+     */
+    private final LongIntMap index;
     private int nextIndex = 0;
     private int size = 0;
+    /**
+     * The number of transactions added to this history and to the histories it was resized or moved from; the
+     * entries it holds are the last {@link #size} of them.
+     */
+    private long added;
+    /**
+     * The tracker of the owning bank that is told about transactions entering and leaving the OPEN state, or null.
+     */
+    private OpenTransactions tracker;
+    /**
+     * The archive evicted entries are appended to, or null.
+     */
+    private HistoryArchive archive;
+    /**
+     * The account this history belongs to, whose lock guards it in a concurrent bank, or null for a detached copy.
+     */
+    private Account owner;
+    /**
+     * Indexes the slots by date and status; built by the first range query under the account lock and maintained
+     * from then on.
+     */
+    private DayIndex dayIndex;
+    /**
+     * The arena the off-heap stores of this history and of its resized and moved copies allocate from.
+     */
+    private final OffHeapArena arena;
 
     public TransactionHistory(int capacity) {
+        this(capacity, HistoryStorage.HEAP);
+    }
+
+    public TransactionHistory(int capacity, HistoryStorage storage) {
+        this(capacity, storage, OffHeapArena.shared());
+    }
+
+    /**
+     * Creates an empty history whose off-heap store allocates from the given arena, usually that of its bank.
+     */
+    TransactionHistory(int capacity, HistoryStorage storage, OffHeapArena arena) {
         this.capacity = capacity;
-        this.transactions = new Transaction[capacity];
+        this.arena = arena;
+        this.transactions = HistoryStore.create(storage, capacity, arena);
+        this.index = new LongIntMap(capacity);
     }
 
     TransactionHistory(TransactionHistory history, int capacity) {
+        this(history, capacity, history.storage());
+    }
+
+    /**
+     * Copies the newest entries of a history that fit into the new capacity, oldest first, and takes over its
+     * tracker.
+     */
+    TransactionHistory(TransactionHistory history, int capacity, HistoryStorage storage) {
         this.capacity = capacity;
-        this.transactions = new Transaction[capacity];
-        System.arraycopy(history.transactions, 0, this.transactions, 0, Math.min(capacity, history.size));
+        this.arena = history.arena;
+        this.transactions = HistoryStore.create(storage, capacity, arena);
+        this.index = new LongIntMap(capacity);
         this.size = Math.min(capacity, history.size);
         this.nextIndex = this.size % capacity;
+        this.added = history.added;
+        int dropped = history.size - size;
+        for (int i = 0; i < size; i++) {
+            transactions.set(i, history.get(dropped + i));
+            index.put(transactions.number(i), i);
+        }
+        this.tracker = history.tracker;
+        history.tracker = null;
+        this.archive = history.archive;
+        this.owner = history.owner;
+        if (tracker != null || archive != null) {
+            // the oldest transactions that did not fit into the new history are no longer held by it
+            for (int i = 0; i < dropped; i++) {
+                Transaction transaction = history.get(i);
+                if (archive != null) {
+                    archive.append(owner, transaction);
+                }
+                if (tracker != null && transaction.status() == Status.OPEN) {
+                    tracker.release(transaction.transactionNumber());
+                }
+            }
+        }
     }
 
     public TransactionHistory() {
         this(DEFAULT_CAPACITY);
     }
 
+    /**
+     * Moves a history into another storage, slot by slot, and takes over its tracker.
+     */
+    TransactionHistory(TransactionHistory history, HistoryStorage storage) {
+        this.capacity = history.capacity;
+        this.arena = history.arena;
+        this.transactions = HistoryStore.create(storage, capacity, arena);
+        this.index = new LongIntMap(capacity);
+        this.nextIndex = history.nextIndex;
+        this.size = history.size;
+        this.added = history.added;
+        for (int slot = 0; slot < capacity; slot++) {
+            Transaction transaction = history.transactions.get(slot);
+            if (transaction != null) {
+                transactions.set(slot, transaction);
+                index.put(transaction.transactionNumber(), slot);
+            }
+        }
+        this.tracker = history.tracker;
+        history.tracker = null;
+        this.archive = history.archive;
+        this.owner = history.owner;
+    }
+
+    /**
+     * Restores a history from its raw ring, as written by {@link BankSnapshot}.
+     */
+    TransactionHistory(Transaction[] slots, int nextIndex, int size, HistoryStorage storage, OffHeapArena arena) {
+        this.capacity = slots.length;
+        this.arena = arena;
+        if (storage == HistoryStorage.HEAP) {
+            this.transactions = new HeapHistoryStore(slots);
+        } else {
+            this.transactions = HistoryStore.create(storage, capacity, arena);
+            for (int slot = 0; slot < capacity; slot++) {
+                if (slots[slot] != null) transactions.set(slot, slots[slot]);
+            }
+        }
+        this.index = new LongIntMap(capacity);
+        this.nextIndex = nextIndex;
+        this.size = size;
+        this.added = size;
+        for (int i = 0; i < size; i++) {
+            int slot = Math.floorMod(nextIndex - size + i, capacity);
+            index.put(transactions.number(slot), slot);
+        }
+    }
+
     public void add(Transaction transaction) {
-        for (int x = 0; x < size; x++) {
-            if (transaction.transactionNumber() == transactions[x].transactionNumber()) {
-                throw new IllegalArgumentException("This transaction already exists!");
+        if (index.containsKey(transaction.transactionNumber())) {
+            throw new IllegalArgumentException("This transaction already exists!");
+        }
+        if (size == capacity) {
+            // the oldest transaction is overwritten, so it leaves the index
+            if (archive != null) {
+                archive.append(owner, transactions.get(nextIndex));
+            }
+            long evicted = transactions.number(nextIndex);
+            index.remove(evicted);
+            if (dayIndex != null) dayIndex.remove(nextIndex);
+            if (tracker != null && transactions.status(nextIndex) == Status.OPEN) {
+                tracker.release(evicted);
             }
         }
-        transactions[nextIndex] = transaction;
+        transactions.set(nextIndex, transaction);
+        index.put(transaction.transactionNumber(), nextIndex);
+        if (dayIndex != null) dayIndex.add(nextIndex, day(transaction.date()), transaction.status());
+        if (tracker != null && transaction.status() == Status.OPEN) {
+            tracker.open(transaction);
+        }
         nextIndex = (nextIndex + 1) % capacity;
+        added++;
         if (size < capacity) {
             size++;
         }
     }
 
     public void update(Transaction transaction) throws TransactionException {
-        boolean transactionFinder = false;
-        for (int x = 0; x < size; x++) {
-            if (transaction.transactionNumber() == transactions[x].transactionNumber()) {
-                transactions[x] = transaction;
-                transactionFinder = true;
-                break;
+        int slot = index.get(transaction.transactionNumber());
+        if (slot == LongIntMap.NO_VALUE) {
+            throw new TransactionException("Transaction does not exist!", transaction.transactionNumber());
+        }
+        boolean wasOpen = transactions.status(slot) == Status.OPEN;
+        transactions.set(slot, transaction);
+        if (dayIndex != null) dayIndex.update(slot, day(transaction.date()), transaction.status(), this::age);
+        if (tracker != null) {
+            if (transaction.status() == Status.OPEN) {
+                if (wasOpen) tracker.replace(transaction);
+                else tracker.open(transaction);
+            } else if (wasOpen) {
+                tracker.release(transaction.transactionNumber());
             }
         }
-        if (!transactionFinder) {
-            throw new TransactionException("Transaction does not exist!", transaction.transactionNumber());
+    }
+
+    /**
+     * Reports the open transactions of this history to the specified tracker from now on.
+     */
+    void track(OpenTransactions tracker) {
+        assert this.tracker == null;
+        this.tracker = tracker;
+        for (int i = 0; i < size; i++) {
+            if (transactions.status(i) == Status.OPEN) tracker.open(transactions.get(i));
         }
     }
 
-    public Transaction get(long transactionNumber) {
+    /**
+     * Appends the transactions this history evicts to the specified archive from now on, as the history of the
+     * specified account. A null archive stops archiving.
+     */
+    void archive(HistoryArchive archive, Account owner) {
+        this.archive = archive;
+        this.owner = owner;
+    }
+
+    /**
+     * Makes the specified account the owner of this history, whose lock range queries take.
+     */
+    void own(Account owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Stops reporting to the tracker and releases all open transactions of this history from it.
+     */
+    void untrack() {
+        if (tracker == null) return;
         for (int i = 0; i < size; i++) {
-            Transaction transaction = transactions[i];
-            if (transaction.transactionNumber() == transactionNumber) {
-                return transaction;
+            if (transactions.status(i) == Status.OPEN) tracker.release(transactions.number(i));
+        }
+        tracker = null;
+    }
+
+    /**
+     * Returns the transaction with the given number, from the archive if it has been evicted into one.
+     */
+    public Transaction get(long transactionNumber) {
+        int slot = index.get(transactionNumber);
+        if (slot == LongIntMap.NO_VALUE) {
+            Transaction archived = archive == null ? null : archive.get(owner, transactionNumber);
+            if (archived == null) {
+                throw new NoSuchElementException(String.valueOf(transactionNumber));
             }
+            return archived;
         }
-        throw new NoSuchElementException(String.valueOf(transactionNumber));
+        return transactions.get(slot);
     }
 
     public Transaction get(int index) {
         if (index < 0 || index >= size) throw new IndexOutOfBoundsException(String.valueOf(index));
         // oldest-first order: transactions[(nextIndex - size + index + capacity) % capacity]
         int realIndex = Math.floorMod(nextIndex - size + index, capacity);
-        return transactions[realIndex];
+        return transactions.get(realIndex);
     }
 
     public int size() { return size; }
     public int capacity() { return capacity; }
+    public HistoryStorage storage() { return transactions.storage(); }
+
+    /**
+     * Returns the transaction in the given slot of the ring in storage order, or null if the slot is empty.
+     */
+    Transaction slot(int slot) { return transactions.get(slot); }
+
+    /**
+     * Returns the slot the next transaction is stored in.
+     */
+    int nextIndex() { return nextIndex; }
+
+    /**
+     * Returns the number of transactions added to this history and to the histories it was resized or moved from.
+     * The entry with sequence number {@code s}, counting from 0, is held as long as {@code s >= added() - size()}.
+     */
+    long added() { return added; }
+
+    /**
+     * Copies the entries with sequence numbers from {@code from} up to {@code to}, oldest first, into the slice until
+     * it is full, skipping the ones that are no longer held. The caller holds the account lock.
+     *
+     * @return the sequence number after the last entry copied or skipped
+     */
+    long copyTo(long from, long to, HistorySlice slice) {
+        slice.clear();
+        long first = Math.max(from, added - size);
+        int rows = (int) Math.min(Math.max(0, Math.min(to, added) - first), slice.capacity());
+        for (int row = 0; row < rows; row++) {
+            transactions.copyTo(Math.floorMod(nextIndex - (int) (added - first - row), capacity), slice, row);
+        }
+        slice.size = rows;
+        return rows == 0 ? to : first + rows;
+    }
+
+    /**
+     * Returns a detached copy of this history on the heap, slot for slot. The copy neither tracks open transactions
+     * nor reads the archive.
+     */
+    TransactionHistory copy() {
+        Transaction[] slots = new Transaction[capacity];
+        for (int i = 0; i < size; i++) {
+            int slot = Math.floorMod(nextIndex - size + i, capacity);
+            slots[slot] = transactions.get(slot);
+        }
+        return new TransactionHistory(slots, nextIndex, size, HistoryStorage.HEAP, arena);
+    }
 
     public Transaction getLatestTransaction() {
         if (size == 0) throw new IllegalStateException("No transactions yet!");
         int idx = Math.floorMod(nextIndex - 1, capacity);
-        return transactions[idx];
+        return transactions.get(idx);
     }
 
     public Transaction[] getTransactions() {
@@ -92,16 +330,97 @@ public class TransactionHistory {
     public Transaction[] getTransactions(Status status) {
         int length = 0;
         for (int i = 0; i < size; i++) {
-            Transaction t = get(i);
-            if (t.status() == status) length++;
+            if (transactions.status(Math.floorMod(nextIndex - size + i, capacity)) == status) length++;
         }
         Transaction[] available = new Transaction[length];
         int pos = 0;
         for (int i = 0; i < size; i++) {
-            Transaction t = get(i);
-            if (t.status() == status) available[pos++] = t;
+            int slot = Math.floorMod(nextIndex - size + i, capacity);
+            if (transactions.status(slot) == status) available[pos++] = transactions.get(slot);
         }
         return available;
     }
-}
 
+    /**
+     * Returns the transactions dated between the given dates, inclusive, including those evicted into the archive.
+     * Archived transactions come first, in the order they were evicted, followed by the ones in this history by
+     * date and then oldest first. Costs O(matches) apart from archive reads.
+     */
+    public Transaction[] getTransactions(LocalDate from, LocalDate to) {
+        return getTransactions(from, to, null, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Returns the transactions with the given status dated between the given dates, inclusive, in the order of
+     * {@link #getTransactions(LocalDate, LocalDate)}.
+     */
+    public Transaction[] getTransactions(LocalDate from, LocalDate to, Status status) {
+        return getTransactions(from, to, status, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Returns the transactions with the given status, or any status if it is null, dated between the given dates
+     * and with an amount between the given bounds, all inclusive, in the order of
+     * {@link #getTransactions(LocalDate, LocalDate)}. The amount bounds filter the matches of date and status.
+     * <p>
+     * The history is read under the lock of its account, so the query may run while other threads transfer from or
+     * to the account; the archive is read afterwards without the lock. Archived entries that are among the matches
+     * of the history are dropped: they were evicted after the history was read, or archived by a mutation that was
+     * lost in a crash.
+     */
+    public Transaction[] getTransactions(LocalDate from, LocalDate to, Status status, double minAmount, double maxAmount) {
+        if (from.isAfter(to)) return new Transaction[0];
+        List<Transaction> held = new ArrayList<>();
+        Account owner = this.owner;
+        Bank bank = owner == null ? null : owner.getBank();
+        if (bank != null) bank.lockAccount(owner.getIban());
+        HistoryArchive archive;
+        try {
+            archive = this.archive;
+            if (dayIndex == null) {
+                dayIndex = new DayIndex(capacity);
+                for (int i = 0; i < size; i++) {
+                    int slot = Math.floorMod(nextIndex - size + i, capacity);
+                    Transaction transaction = transactions.get(slot);
+                    dayIndex.add(slot, day(transaction.date()), transaction.status());
+                }
+            }
+            dayIndex.forEach(day(from), day(to), status, this::age, slot -> {
+                Transaction transaction = transactions.get(slot);
+                if (transaction.amount() >= minAmount && transaction.amount() <= maxAmount) held.add(transaction);
+            });
+        } finally {
+            if (bank != null) bank.unlockAccount(owner.getIban());
+        }
+        if (archive == null) return held.toArray(new Transaction[0]);
+        List<Transaction> archived = new ArrayList<>();
+        archive.range(owner, from, to, archived);
+        LongIntMap numbers = new LongIntMap(held.size());
+        for (int i = 0; i < held.size(); i++) {
+            numbers.put(held.get(i).transactionNumber(), i);
+        }
+        List<Transaction> available = new ArrayList<>(archived.size() + held.size());
+        for (Transaction transaction : archived) {
+            if (!numbers.containsKey(transaction.transactionNumber()) && (status == null || transaction.status() == status)
+                && transaction.amount() >= minAmount && transaction.amount() <= maxAmount) {
+                available.add(transaction);
+            }
+        }
+        available.addAll(held);
+        return available.toArray(new Transaction[0]);
+    }
+
+    /**
+     * Returns the position of the given slot from the oldest entry.
+     */
+    private int age(int slot) {
+        return Math.floorMod(slot - nextIndex + size, capacity);
+    }
+
+    /**
+     * Returns the epoch day of a date, clamped to the int range.
+     */
+    private static int day(LocalDate date) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, date.toEpochDay()));
+    }
+}
@@ -0,0 +1,75 @@
+package h08;
+
+/**
+ * The result of a transfer: its status and, if it was cancelled, why.
+ * <p>
+ * Results are cached, one per status and rejection reason, so returning a result never allocates. Results should be
+ * obtained with {@link #of(Status)} and {@link #rejected(RejectionReason)}.
+ *
+ * @param status the status of the transfer
+ * @param reason the reason the transfer was cancelled, or null if it was not
+ */
+public record TransferResult(Status status, RejectionReason reason) {
+
+    private static final TransferResult[] BY_STATUS = new TransferResult[Status.values().length];
+    private static final TransferResult[] BY_REASON = new TransferResult[RejectionReason.values().length];
+
+    static {
+        for (Status status : Status.values()) {
+            if (status != Status.CANCELLED) {
+                BY_STATUS[status.ordinal()] = new TransferResult(status, null);
+            }
+        }
+        for (RejectionReason reason : RejectionReason.values()) {
+            BY_REASON[reason.ordinal()] = new TransferResult(Status.CANCELLED, reason);
+        }
+    }
+
+    /**
+     * Constructs a new result.
+     *
+     * @param status the status of the transfer
+     * @param reason the reason the transfer was cancelled, or null if it was not
+     * @throws IllegalArgumentException if a reason is given for a transfer that was not cancelled or none for one
+     *                                  that was
+     */
+    public TransferResult {
+        if (status == null || (status == Status.CANCELLED) != (reason != null)) {
+            throw new IllegalArgumentException(status + ": " + reason);
+        }
+    }
+
+    /**
+     * Returns the result of a transfer that was not cancelled.
+     *
+     * @param status the status of the transfer
+     * @return the cached result
+     * @throws IllegalArgumentException if the status is {@link Status#CANCELLED}
+     */
+    public static TransferResult of(Status status) {
+        TransferResult result = BY_STATUS[status.ordinal()];
+        if (result == null) {
+            throw new IllegalArgumentException("A cancelled transfer needs a reason");
+        }
+        return result;
+    }
+
+    /**
+     * Returns the result of a cancelled transfer.
+     *
+     * @param reason the reason the transfer was cancelled
+     * @return the cached result
+     */
+    public static TransferResult rejected(RejectionReason reason) {
+        return BY_REASON[reason.ordinal()];
+    }
+
+    /**
+     * Returns whether the transfer was cancelled.
+     *
+     * @return whether the transfer was cancelled
+     */
+    public boolean isRejected() {
+        return reason != null;
+    }
+}
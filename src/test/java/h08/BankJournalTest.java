@@ -0,0 +1,181 @@
+package h08;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that {@link BankJournal#replay(Path, Bank...)} restores the banks a journal was written for, and that it
+ * stops at a torn or corrupt last frame.
+ */
+public class BankJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path file = directory.resolve("bank.log");
+        Bank first = new Bank("first", 1, 4);
+        Bank second = new Bank("second", 2);
+        try (BankJournal journal = new BankJournal(file, false)) {
+            first.setJournal(journal);
+            second.setJournal(journal);
+            first.add(second);
+            second.add(first);
+            for (int i = 0; i < 12; i++) {
+                first.add(new Customer("a" + i, "b", "c", LocalDate.of(1990, 1, 1 + i)));
+                second.add(new Customer("x" + i, "y", "z", LocalDate.of(1980, 1, 1 + i)));
+            }
+            first.setTransactionHistoryCapacity(3);
+            for (Account account : first.getAccounts()) {
+                first.deposit(account.getIban(), 100);
+            }
+            Random random = new Random(1);
+            for (int i = 0; i < 300; i++) {
+                Account sender = first.getAccounts()[random.nextInt(first.size())];
+                Bank receiverBank = random.nextBoolean() ? first : second;
+                Account receiver = receiverBank.getAccounts()[random.nextInt(receiverBank.size())];
+                if (sender != receiver) {
+                    first.transfer(sender.getIban(), receiver.getIban(), receiverBank.getBic(), 1 + random.nextInt(30), "t" + i);
+                }
+                if (i == 100) first.setClearing(true);
+                if (i == 200) first.settle();
+                if (i == 250) second.remove(second.getAccounts()[0].getIban());
+            }
+            first.withdraw(first.getAccounts()[0].getIban(), first.getAccounts()[0].getBalance() / 2);
+            first.remove(first.getAccounts()[1].getIban());
+        }
+
+        Map<Integer, Bank> replayed = BankJournal.replay(file);
+        assertEquals(2, replayed.size());
+        assertEquals(describe(first), describe(replayed.get(1)));
+        assertEquals(describe(second), describe(replayed.get(2)));
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        Path file = directory.resolve("bank.log");
+        long iban;
+        long beforeLastFrame;
+        try (BankJournal journal = new BankJournal(file, true)) {
+            Bank bank = new Bank("bank", 1);
+            bank.setJournal(journal);
+            bank.add(new Customer("a", "b", "c", LocalDate.of(1990, 1, 1)));
+            iban = bank.getAccounts()[0].getIban();
+            bank.deposit(iban, 10);
+            beforeLastFrame = Files.size(file);
+            bank.deposit(iban, 20);
+        }
+        long size = Files.size(file);
+        assertEquals(30, BankJournal.replay(file).get(1).findAccount(iban).getBalance());
+
+        for (long length = beforeLastFrame; length < size; length++) {
+            Path torn = directory.resolve("torn" + length + ".log");
+            Files.copy(file, torn);
+            try (FileChannel channel = FileChannel.open(torn, StandardOpenOption.WRITE)) {
+                channel.truncate(length);
+            }
+            assertEquals(10, BankJournal.replay(torn).get(1).findAccount(iban).getBalance(), 0, "cut at " + length);
+        }
+    }
+
+    @Test
+    public void testCorruptTail() throws IOException {
+        Path file = directory.resolve("bank.log");
+        long iban;
+        try (BankJournal journal = new BankJournal(file, true)) {
+            Bank bank = new Bank("bank", 1);
+            bank.setJournal(journal);
+            bank.add(new Customer("a", "b", "c", LocalDate.of(1990, 1, 1)));
+            iban = bank.getAccounts()[0].getIban();
+            bank.deposit(iban, 10);
+            bank.deposit(iban, 20);
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(file, bytes);
+        assertEquals(10, BankJournal.replay(file).get(1).findAccount(iban).getBalance());
+    }
+
+    @Test
+    public void testClosedJournal() throws IOException {
+        Path file = directory.resolve("bank.log");
+        BankJournal journal = new BankJournal(file, false);
+        Bank bank = new Bank("bank", 1);
+        bank.setJournal(journal);
+        bank.add(new Customer("a", "b", "c", LocalDate.of(1990, 1, 1)));
+        bank.add(new Customer("d", "e", "f", LocalDate.of(1990, 1, 1)));
+        Account sender = bank.getAccounts()[0];
+        Account receiver = bank.getAccounts()[1];
+        bank.deposit(sender.getIban(), 10);
+        journal.close();
+
+        // mutations fail before they change anything
+        assertThrows(IllegalStateException.class, () -> bank.deposit(sender.getIban(), 5));
+        assertThrows(IllegalStateException.class, () -> bank.transfer(sender.getIban(), receiver.getIban(), 1, 5, "t"));
+        Customer customer = new Customer("g", "h", "i", LocalDate.of(1990, 1, 1));
+        assertThrows(IllegalStateException.class, () -> bank.insertAll(new Customer[]{customer, customer}, new long[]{-1, -1}, new double[]{0, 5}));
+        assertEquals(2, bank.size());
+        assertEquals(10, sender.getBalance());
+        assertEquals(0, receiver.getBalance());
+        assertEquals(0, sender.getHistory().size());
+
+        // a frame appended once the journal is closed is dropped and reported at the commit
+        journal.balance(true, 1, sender.getIban(), 5);
+        assertThrows(IllegalStateException.class, journal::commit);
+        assertEquals(10, BankJournal.replay(file).get(1).findAccount(sender.getIban()).getBalance());
+    }
+
+    @Test
+    public void testReopenedTransactionsAreCommitted() throws IOException {
+        Path file = directory.resolve("bank.log");
+        try (BankJournal journal = new BankJournal(file, true)) {
+            Bank bank = new Bank("bank", 1);
+            bank.setJournal(journal);
+            bank.add(new Customer("a", "b", "c", LocalDate.of(1990, 1, 1)));
+            bank.add(new Customer("d", "e", "f", LocalDate.of(1990, 1, 1)));
+            Account sender = bank.getAccounts()[0];
+            Account receiver = bank.getAccounts()[1];
+            LocalDate today = LocalDate.now();
+            for (Transaction open : new Transaction[]{
+                new Transaction(sender, receiver, 1, 1, "r", today.minusDays(20), Status.OPEN),
+                new Transaction(sender, receiver, 2, 2, "o", today.minusDays(30), Status.OPEN),
+            }) {
+                sender.getHistory().add(open);
+                receiver.getHistory().add(open);
+            }
+
+            // the transaction older than four weeks is reported after the other one was reopened, and the reopened
+            // one is on disk by then
+            assertThrows(TransactionException.class, bank::checkOpenTransactions);
+            Transaction reopened = sender.getHistory().getLatestTransaction();
+            assertEquals(today, reopened.date());
+            Path copy = directory.resolve("copy.log");
+            Files.copy(file, copy);
+            Account replayed = BankJournal.replay(copy).get(1).findAccount(sender.getIban());
+            assertEquals(reopened.toString(), replayed.getHistory().get(reopened.transactionNumber()).toString());
+        }
+    }
+
+    private static String describe(Bank bank) {
+        StringBuilder builder = new StringBuilder(bank.toString()).append('\n');
+        for (Account account : bank.getAccounts()) {
+            builder.append(account.getIban()).append(' ').append(account.getBalance()).append('\n');
+            for (Transaction transaction : account.getHistory().getTransactions()) {
+                builder.append("  ").append(transaction).append('\n');
+            }
+        }
+        return builder.append(bank.pendingClearingAmount()).toString();
+    }
+}
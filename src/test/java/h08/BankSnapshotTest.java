@@ -0,0 +1,132 @@
+package h08;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that {@link BankSnapshot#read(Path)} restores what {@link BankSnapshot#write(Path, Bank...)} wrote.
+ */
+public class BankSnapshotTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Bank first = new Bank("first", 1, 4);
+        Bank second = new Bank("second", 2);
+        first.add(second);
+        second.add(first);
+        second.setBalanceMode(BalanceMode.FIXED_POINT);
+        second.setHistoryStorage(HistoryStorage.OFF_HEAP);
+        for (int i = 0; i < 10; i++) {
+            first.add(new Customer("a" + i, "b", "c", LocalDate.of(1990, 1, 1 + i)));
+            second.add(new Customer("x" + i, "y", "z", LocalDate.of(1980, 1, 1 + i)));
+        }
+        first.setTransactionHistoryCapacity(5);
+        for (Account account : first.getAccounts()) {
+            first.deposit(account.getIban(), 100);
+        }
+        Random random = new Random(2);
+        for (int i = 0; i < 200; i++) {
+            Account sender = first.getAccounts()[random.nextInt(first.size())];
+            Bank receiverBank = random.nextBoolean() ? first : second;
+            Account receiver = receiverBank.getAccounts()[random.nextInt(receiverBank.size())];
+            if (sender != receiver) {
+                first.transfer(sender.getIban(), receiver.getIban(), receiverBank.getBic(), 1 + random.nextInt(20), "t" + i);
+            }
+            if (i == 150) first.setClearing(true);
+        }
+        // transactions still refer to the removed account
+        second.remove(second.getAccounts()[0].getIban());
+
+        Path file = directory.resolve("banks.snap");
+        BankSnapshot.write(file, first, second);
+        Map<Integer, Bank> restored = BankSnapshot.read(file);
+
+        assertEquals(2, restored.size());
+        Bank restoredFirst = restored.get(1);
+        Bank restoredSecond = restored.get(2);
+        assertEquals(describe(first), describe(restoredFirst));
+        assertEquals(describe(second), describe(restoredSecond));
+        assertTrue(restoredFirst.isClearing());
+        assertEquals(BalanceMode.FIXED_POINT, restoredSecond.getBalanceMode());
+        assertEquals(HistoryStorage.OFF_HEAP, restoredSecond.getHistoryStorage());
+        assertSame(restoredSecond, restoredFirst.findBank(2));
+        assertSame(restoredFirst, restoredSecond.findBank(1));
+        Customer customer = first.getAccounts()[3].getCustomer();
+        assertEquals(1, restoredFirst.findAccounts(customer).size());
+
+        // the restored clearing queue settles like the original one
+        first.settle();
+        restoredFirst.settle();
+        assertEquals(describe(first), describe(restoredFirst));
+        assertEquals(describe(second), describe(restoredSecond));
+    }
+
+    @Test
+    public void testPartialNetwork() throws IOException {
+        Bank first = new Bank("first", 1);
+        Bank second = new Bank("second", 2);
+        first.add(second);
+        second.add(first);
+        first.add(new Customer("a", "b", "c", LocalDate.of(1990, 1, 1)));
+        second.add(new Customer("x", "y", "z", LocalDate.of(1980, 1, 1)));
+        Account sender = first.getAccounts()[0];
+        Account receiver = second.getAccounts()[0];
+        first.deposit(sender.getIban(), 100);
+        first.transfer(sender.getIban(), receiver.getIban(), second.getBic(), 10, "t");
+        first.setClearing(true);
+        first.transfer(sender.getIban(), receiver.getIban(), second.getBic(), 20, "c");
+
+        // only the first bank is written, so its link to the second one cannot be restored
+        Path file = directory.resolve("first.snap");
+        BankSnapshot.write(file, first);
+        Map<Integer, Bank> restored = BankSnapshot.read(file);
+
+        assertEquals(1, restored.size());
+        Bank restoredFirst = restored.get(1);
+        assertEquals(0, restoredFirst.getTransferableBanks().length);
+        Account restoredSender = restoredFirst.findAccount(sender.getIban());
+        assertEquals(70, restoredSender.getBalance());
+        Transaction[] transactions = restoredSender.getHistory().getTransactions();
+        assertEquals(2, transactions.length);
+        for (Transaction transaction : transactions) {
+            assertEquals(receiver.getIban(), transaction.targetAccount().getIban());
+            assertEquals(2, transaction.targetAccount().getBank().getBic());
+        }
+
+        // the transfer queued for the missing bank is refunded
+        restoredFirst.settle();
+        assertEquals(0, restoredFirst.pendingClearingAmount());
+        assertEquals(90, restoredSender.getBalance());
+    }
+
+    @Test
+    public void testNotASnapshot() throws IOException {
+        Path file = directory.resolve("other.bin");
+        Files.write(file, new byte[64]);
+        assertThrows(IllegalArgumentException.class, () -> BankSnapshot.read(file));
+    }
+
+    private static String describe(Bank bank) {
+        StringBuilder builder = new StringBuilder(bank.toString()).append('\n');
+        builder.append(bank.capacity()).append(' ').append(bank.transactionCapacity()).append('\n');
+        for (Account account : bank.getAccounts()) {
+            builder.append(account.getIban()).append(' ').append(account.getBalance()).append('\n');
+            for (Transaction transaction : account.getHistory().getTransactions()) {
+                builder.append("  ").append(transaction).append('\n');
+            }
+        }
+        return builder.append(bank.pendingClearingAmount()).toString();
+    }
+}
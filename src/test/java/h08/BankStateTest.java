@@ -0,0 +1,126 @@
+package h08;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that {@link Bank#snapshot()} sees every transfer either entirely or not at all while transfers run
+ * concurrently.
+ */
+public class BankStateTest {
+
+    private static final int ACCOUNTS = 200;
+    private static final double DEPOSIT = 1000;
+
+    @Test
+    public void testTotalBalanceUnderConcurrentTransfers() throws InterruptedException {
+        Bank bank = bank("bank", 1);
+        Account[] accounts = bank.getAccounts();
+        runWhileSnapshotting(bank, random -> {
+            if (random.nextInt(10) == 0) {
+                long[] senders = new long[8];
+                long[] receivers = new long[8];
+                int[] bics = new int[8];
+                double[] amounts = new double[8];
+                String[] descriptions = new String[8];
+                for (int i = 0; i < 8; i++) {
+                    senders[i] = accounts[random.nextInt(ACCOUNTS)].getIban();
+                    receivers[i] = accounts[random.nextInt(ACCOUNTS)].getIban();
+                    bics[i] = bank.getBic();
+                    amounts[i] = 1 + random.nextInt(50);
+                    descriptions[i] = "b";
+                }
+                bank.transferBatch(senders, receivers, bics, amounts, descriptions);
+            } else {
+                Account sender = accounts[random.nextInt(ACCOUNTS)];
+                Account receiver = accounts[random.nextInt(ACCOUNTS)];
+                bank.transfer(sender.getIban(), receiver.getIban(), bank.getBic(), 1 + random.nextInt(50), "t");
+            }
+        }, state -> assertEquals(ACCOUNTS * DEPOSIT, state.totalBalance(), 0, "epoch " + state.epoch()));
+
+        BankState state = bank.snapshot();
+        for (Account account : accounts) {
+            assertEquals(account.getBalance(), state.getBalance(account.getIban()));
+            assertArrayEquals(account.getHistory().getTransactions(), state.getHistory(account.getIban()).getTransactions());
+        }
+    }
+
+    @Test
+    public void testPendingClearingAmountUnderConcurrentTransfers() throws InterruptedException {
+        Bank bank = bank("bank", 1);
+        Bank other = bank("other", 2);
+        bank.add(other);
+        other.add(bank);
+        bank.setClearing(true);
+        Account[] accounts = bank.getAccounts();
+        Account[] otherAccounts = other.getAccounts();
+        runWhileSnapshotting(bank, random -> {
+            Account sender = accounts[random.nextInt(ACCOUNTS)];
+            if (random.nextBoolean()) {
+                bank.transfer(sender.getIban(), otherAccounts[random.nextInt(ACCOUNTS)].getIban(), other.getBic(), 1 + random.nextInt(20), "c");
+            } else {
+                bank.transfer(sender.getIban(), accounts[random.nextInt(ACCOUNTS)].getIban(), bank.getBic(), 1 + random.nextInt(20), "t");
+            }
+        }, state -> assertEquals(ACCOUNTS * DEPOSIT, state.totalBalance() + state.pendingClearingAmount(), 0, "epoch " + state.epoch()));
+    }
+
+    /**
+     * Runs the transfers on three threads and checks snapshots of the bank until one second has passed.
+     */
+    private static void runWhileSnapshotting(Bank bank, Consumer<Random> transfers, Consumer<BankState> check) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            Random random = new Random(t);
+            Thread thread = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        transfers.accept(random);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        int snapshots = 0;
+        try {
+            long end = System.nanoTime() + 1_000_000_000L;
+            while (System.nanoTime() < end && failure.get() == null) {
+                check.accept(bank.snapshot());
+                snapshots++;
+            }
+        } finally {
+            stop.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        assertNull(failure.get());
+        assertTrue(snapshots > 0);
+    }
+
+    private static Bank bank(String name, int bic) {
+        Bank bank = new Bank(name, bic, 4);
+        bank.setConcurrent(true);
+        bank.setBalanceMode(BalanceMode.FIXED_POINT);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            bank.add(new Customer(name + i, "b", "c", LocalDate.of(1990, 1, 1)));
+        }
+        for (Account account : bank.getAccounts()) {
+            bank.deposit(account.getIban(), DEPOSIT);
+        }
+        return bank;
+    }
+}
@@ -0,0 +1,87 @@
+package h08;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that settling the clearing queues of a network moves money between banks without creating or destroying
+ * any.
+ */
+public class ClearingTest {
+
+    private static final double[] AMOUNTS = {0.1, 0.7, 0.35, 0.015, 1.005, 2.675, 0.29};
+
+    @Test
+    public void testSettlementKeepsTotal() {
+        Bank first = bank("first", 1);
+        Bank second = bank("second", 2);
+        link(first, second);
+        long total = totalMinorUnits(first, second);
+
+        Random random = new Random(3);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 2000; i++) {
+                Bank senderBank = random.nextBoolean() ? first : second;
+                Bank receiverBank = senderBank == first ? second : first;
+                Account sender = senderBank.getAccounts()[random.nextInt(senderBank.size())];
+                Account receiver = receiverBank.getAccounts()[random.nextInt(receiverBank.size())];
+                senderBank.transfer(sender.getIban(), receiver.getIban(), receiverBank.getBic(), AMOUNTS[random.nextInt(AMOUNTS.length)], "c");
+            }
+            first.settle();
+            assertEquals(0, first.pendingClearingAmount());
+            assertEquals(0, second.pendingClearingAmount());
+            assertEquals(total, totalMinorUnits(first, second), "round " + round);
+        }
+    }
+
+    @Test
+    public void testSettlementRefundsUnreachableReceivers() {
+        Bank first = bank("first", 1);
+        Bank second = bank("second", 2);
+        link(first, second);
+        Account sender = first.getAccounts()[0];
+        Account receiver = second.getAccounts()[0];
+        for (double amount : AMOUNTS) {
+            first.transfer(sender.getIban(), receiver.getIban(), second.getBic(), amount, "c");
+        }
+        first.remove(second.getBic());
+        first.settle();
+        assertEquals(100, sender.getBalance());
+        assertEquals(100, receiver.getBalance());
+        for (Transaction transaction : sender.getHistory().getTransactions()) {
+            assertEquals(Status.CANCELLED, transaction.status());
+        }
+    }
+
+    private static Bank bank(String name, int bic) {
+        Bank bank = new Bank(name, bic);
+        bank.setBalanceMode(BalanceMode.FIXED_POINT);
+        bank.setClearing(true);
+        for (int i = 0; i < 20; i++) {
+            bank.add(new Customer(name + i, "b", "c", LocalDate.of(1990, 1, 1)));
+        }
+        for (Account account : bank.getAccounts()) {
+            bank.deposit(account.getIban(), 100);
+        }
+        return bank;
+    }
+
+    private static void link(Bank first, Bank second) {
+        first.add(second);
+        second.add(first);
+    }
+
+    private static long totalMinorUnits(Bank... banks) {
+        long total = 0;
+        for (Bank bank : banks) {
+            for (Account account : bank.getAccounts()) {
+                total += Account.toMinorUnits(account.getBalance());
+            }
+        }
+        return total;
+    }
+}
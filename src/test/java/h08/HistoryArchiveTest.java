@@ -0,0 +1,164 @@
+package h08;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that a {@link HistoryArchive} serves the entries evicted from the histories of its bank, also after it is
+ * closed and opened again.
+ */
+public class HistoryArchiveTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testReopen() throws IOException {
+        Bank bank = new Bank("bank", 1);
+        bank.setTransactionHistoryCapacity(8);
+        Customer customer = new Customer("a", "b", "c", LocalDate.of(1980, 1, 1));
+        bank.add(customer);
+        bank.add(customer);
+        Account sender = bank.getAccounts()[0];
+        Account receiver = bank.getAccounts()[1];
+        bank.deposit(sender.getIban(), 1e6);
+
+        List<Long> numbers = new ArrayList<>();
+        long archived;
+        try (HistoryArchive archive = new HistoryArchive(directory)) {
+            bank.setHistoryArchive(archive);
+            transfer(bank, sender, receiver, 0, 1000, numbers);
+            archived = archive.size();
+            assertTrue(archived > 0);
+        }
+        assertNull(bank.getHistoryArchive());
+
+        try (HistoryArchive archive = new HistoryArchive(directory)) {
+            assertEquals(archived, archive.size());
+            bank.setHistoryArchive(archive);
+            checkHistory(sender, receiver, numbers);
+            // entries archived after reopening go after the ones already on disk
+            transfer(bank, sender, receiver, 1000, 1500, numbers);
+            archived = archive.size();
+        }
+
+        try (HistoryArchive archive = new HistoryArchive(directory)) {
+            assertEquals(archived, archive.size());
+            bank.setHistoryArchive(archive);
+            checkHistory(sender, receiver, numbers);
+        }
+    }
+
+    @Test
+    public void testUnknownNumber() throws IOException {
+        Bank bank = new Bank("bank", 1);
+        bank.setTransactionHistoryCapacity(2);
+        Customer customer = new Customer("a", "b", "c", LocalDate.of(1980, 1, 1));
+        bank.add(customer);
+        bank.add(customer);
+        Account sender = bank.getAccounts()[0];
+        bank.deposit(sender.getIban(), 100);
+        try (HistoryArchive archive = new HistoryArchive(directory)) {
+            bank.setHistoryArchive(archive);
+            transfer(bank, sender, bank.getAccounts()[1], 0, 10, new ArrayList<>());
+            assertThrows(NoSuchElementException.class, () -> sender.getHistory().get(-5L));
+        }
+    }
+
+    @Test
+    public void testRemovedCounterparties() throws IOException {
+        Bank bank = new Bank("bank", 1);
+        Bank other = new Bank("other", 2);
+        bank.add(other);
+        bank.setTransactionHistoryCapacity(2);
+        Customer customer = new Customer("a", "b", "c", LocalDate.of(1980, 1, 1));
+        bank.add(customer);
+        bank.add(customer);
+        other.add(customer);
+        Account sender = bank.getAccounts()[0];
+        Account receiver = bank.getAccounts()[1];
+        Account foreign = other.getAccounts()[0];
+        bank.deposit(sender.getIban(), 100);
+        List<Long> local = new ArrayList<>();
+        List<Long> remote = new ArrayList<>();
+        try (HistoryArchive archive = new HistoryArchive(directory)) {
+            bank.setHistoryArchive(archive);
+            for (int i = 0; i < 10; i++) {
+                bank.transfer(sender.getIban(), receiver.getIban(), bank.getBic(), 1, "l" + i);
+                local.add(sender.getHistory().getLatestTransaction().transactionNumber());
+                bank.transfer(sender.getIban(), foreign.getIban(), other.getBic(), 1, "r" + i);
+                remote.add(sender.getHistory().getLatestTransaction().transactionNumber());
+            }
+        }
+
+        // neither counterparty can be found once the archive is opened again
+        bank.remove(receiver.getIban());
+        bank.remove(other.getBic());
+        try (HistoryArchive archive = new HistoryArchive(directory)) {
+            bank.setHistoryArchive(archive);
+            for (int i = 0; i < 8; i++) {
+                Transaction transaction = sender.getHistory().get(local.get(i));
+                assertEquals("l" + i, transaction.description());
+                assertSame(sender, transaction.sourceAccount());
+                assertEquals(receiver.getIban(), transaction.targetAccount().getIban());
+                assertSame(bank, transaction.targetAccount().getBank());
+                transaction = sender.getHistory().get(remote.get(i));
+                assertEquals("r" + i, transaction.description());
+                assertEquals(foreign.getIban(), transaction.targetAccount().getIban());
+                assertEquals(other.getBic(), transaction.targetAccount().getBank().getBic());
+            }
+            assertEquals(20, sender.getHistory().getTransactions(LocalDate.MIN, LocalDate.MAX).length);
+        }
+    }
+
+    @Test
+    public void testTransferRejectedByArchive() throws IOException {
+        Bank bank = new Bank("bank", 1);
+        bank.setTransactionHistoryCapacity(1);
+        Customer customer = new Customer("a", "b", "c", LocalDate.of(1980, 1, 1));
+        bank.add(customer);
+        bank.add(customer);
+        Account sender = bank.getAccounts()[0];
+        Account receiver = bank.getAccounts()[1];
+        bank.deposit(sender.getIban(), 100);
+        assertEquals(Status.CLOSED, bank.transfer(sender.getIban(), receiver.getIban(), bank.getBic(), 10, "t"));
+        HistoryArchive archive = new HistoryArchive(directory);
+        archive.close();
+
+        // the receiver's history evicts into a closed archive, which rejects the entry after the sender took it
+        receiver.getHistory().archive(archive, receiver);
+        assertEquals(Status.CANCELLED, bank.transfer(sender.getIban(), receiver.getIban(), bank.getBic(), 10, "t"));
+        assertEquals(90, sender.getBalance());
+        assertEquals(10, receiver.getBalance());
+        assertEquals(Status.CANCELLED, sender.getHistory().getLatestTransaction().status());
+        assertEquals(Status.CLOSED, receiver.getHistory().getLatestTransaction().status());
+    }
+
+    private static void transfer(Bank bank, Account sender, Account receiver, int from, int to, List<Long> numbers) {
+        for (int i = from; i < to; i++) {
+            assertEquals(Status.CLOSED, bank.transfer(sender.getIban(), receiver.getIban(), bank.getBic(), 1, "t" + i));
+            numbers.add(sender.getHistory().getLatestTransaction().transactionNumber());
+        }
+    }
+
+    private static void checkHistory(Account sender, Account receiver, List<Long> numbers) {
+        for (int i = 0; i < numbers.size(); i++) {
+            assertEquals("t" + i, sender.getHistory().get(numbers.get(i)).description());
+            assertEquals("t" + i, receiver.getHistory().get(numbers.get(i)).description());
+        }
+        Transaction[] all = sender.getHistory().getTransactions(LocalDate.MIN, LocalDate.MAX);
+        assertEquals(numbers.size(), all.length);
+        for (int i = 0; i < all.length; i++) {
+            assertEquals((long) numbers.get(i), all[i].transactionNumber());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package h08;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests {@link LongIntMap}, in particular that removals keep the probe runs of the remaining keys intact.
+ */
+public class LongIntMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        LongIntMap map = new LongIntMap();
+        assertEquals(LongIntMap.NO_VALUE, map.get(42));
+        assertEquals(LongIntMap.NO_VALUE, map.put(42, 1));
+        assertEquals(1, map.put(42, 2));
+        assertEquals(2, map.get(42));
+        assertTrue(map.containsKey(42));
+        assertEquals(2, map.remove(42));
+        assertEquals(LongIntMap.NO_VALUE, map.remove(42));
+        assertFalse(map.containsKey(42));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testZeroKey() {
+        LongIntMap map = new LongIntMap();
+        assertFalse(map.containsKey(0));
+        map.put(0, 7);
+        map.put(1, 8);
+        assertEquals(7, map.get(0));
+        assertEquals(2, map.size());
+        assertEquals(7, map.remove(0));
+        assertFalse(map.containsKey(0));
+        assertEquals(8, map.get(1));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testDeleteAndReinsert() {
+        LongIntMap map = new LongIntMap();
+        for (int key = 1; key <= 1000; key++) {
+            map.put(key, key);
+        }
+        for (int key = 2; key <= 1000; key += 2) {
+            assertEquals(key, map.remove(key));
+        }
+        for (int key = 1; key <= 1000; key++) {
+            assertEquals(key % 2 == 0 ? LongIntMap.NO_VALUE : key, map.get(key), "after removal of " + key);
+        }
+        for (int key = 2; key <= 1000; key += 2) {
+            assertEquals(LongIntMap.NO_VALUE, map.put(key, key * 3));
+        }
+        for (int key = 1; key <= 1000; key++) {
+            assertEquals(key % 2 == 0 ? key * 3 : key, map.get(key), "after reinsertion of " + key);
+        }
+        assertEquals(1000, map.size());
+    }
+
+    @Test
+    public void testMatchesHashMap() {
+        Random random = new Random(1);
+        LongIntMap map = new LongIntMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            // few distinct keys, so that removals and reinsertions keep hitting the same probe runs
+            long key = random.nextInt(10) == 0 ? 0 : random.nextInt(2000) - 100;
+            switch (random.nextInt(3)) {
+                case 0 -> {
+                    int value = random.nextInt(1000);
+                    assertEquals(orNoValue(expected.get(key)), map.put(key, value));
+                    expected.put(key, value);
+                }
+                case 1 -> assertEquals(orNoValue(expected.remove(key)), map.remove(key));
+                default -> assertEquals(orNoValue(expected.get(key)), map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    private static int orNoValue(Integer value) {
+        return value == null ? LongIntMap.NO_VALUE : value;
+    }
+}
@@ -0,0 +1,115 @@
+package h08;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests {@link StatementExporter} on dates across the calendar and on a large history.
+ */
+public class StatementExporterTest {
+
+    private static final LocalDate[] DATES = {
+        LocalDate.of(-5, 3, 1), LocalDate.of(0, 2, 29), LocalDate.of(1, 1, 1), LocalDate.of(1600, 2, 29),
+        LocalDate.of(1899, 12, 31), LocalDate.of(1969, 12, 31), LocalDate.of(1970, 1, 1), LocalDate.of(2000, 2, 29),
+        LocalDate.of(2024, 12, 31), LocalDate.of(-10000, 1, 1),
+    };
+
+    @Test
+    public void testCsvDates() throws IOException {
+        Account[] accounts = accounts();
+        TransactionHistory history = new TransactionHistory(DATES.length);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < DATES.length; i++) {
+            history.add(new Transaction(accounts[0], accounts[1], 1.5, i + 1, "d", DATES[i], Status.CLOSED));
+            expected.append(accounts[0].getIban()).append(',').append(i + 1).append(',').append(DATES[i]).append(",1,")
+                .append(accounts[0].getIban()).append(",1,").append(accounts[1].getIban()).append(",1.50,CLOSED,d\n");
+        }
+        accounts[0].setHistory(history);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(DATES.length, new StatementExporter(StatementExporter.Format.CSV).export(accounts[0], Channels.newChannel(out)));
+        String csv = out.toString(StandardCharsets.UTF_8);
+        assertEquals(expected.toString(), csv.substring(csv.indexOf('\n') + 1));
+    }
+
+    @Test
+    public void testLargeHistoryOnHeap() throws IOException {
+        checkLargeHistory(HistoryStorage.HEAP);
+    }
+
+    @Test
+    public void testLargeHistoryOffHeap() throws IOException {
+        checkLargeHistory(HistoryStorage.OFF_HEAP);
+    }
+
+    /**
+     * Exports a history many times longer than a slice and checks that every entry is written while the export
+     * allocates far less than one object per entry.
+     */
+    private static void checkLargeHistory(HistoryStorage storage) throws IOException {
+        int entries = 200_000;
+        Account[] accounts = accounts();
+        TransactionHistory history = new TransactionHistory(entries, storage);
+        LocalDate date = LocalDate.of(2024, 1, 1);
+        for (int i = 0; i < entries; i++) {
+            history.add(new Transaction(accounts[0], accounts[1], i % 1000, i + 1, "row", date, Status.CLOSED));
+        }
+        accounts[0].setHistory(history);
+        StatementExporter exporter = new StatementExporter(StatementExporter.Format.CSV);
+        LineCounter lines = new LineCounter();
+        // warms up, so class loading and compilation are not measured
+        assertEquals(entries, exporter.export(accounts[0], lines));
+        assertEquals(entries + 1, lines.count);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        assertEquals(entries, exporter.export(accounts[0], lines));
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        assertEquals(2L * (entries + 1), lines.count);
+        assertTrue(allocated < entries, allocated + " bytes allocated for " + entries + " entries");
+    }
+
+    private static Account[] accounts() {
+        Bank bank = new Bank("bank", 1);
+        Customer customer = new Customer("a", "b", "c", LocalDate.of(1980, 1, 1));
+        bank.add(customer);
+        bank.add(customer);
+        return bank.getAccounts();
+    }
+
+    /**
+     * Counts the lines written to it and discards them.
+     */
+    private static final class LineCounter implements WritableByteChannel {
+
+        private long count;
+
+        @Override
+        public int write(ByteBuffer source) {
+            int written = source.remaining();
+            while (source.hasRemaining()) {
+                if (source.get() == '\n') count++;
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
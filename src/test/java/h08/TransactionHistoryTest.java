@@ -0,0 +1,97 @@
+package h08;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the date, status and amount queries of {@link TransactionHistory} against a scan of the whole history.
+ */
+public class TransactionHistoryTest {
+
+    private static final LocalDate BASE = LocalDate.of(2020, 1, 1);
+
+    @Test
+    public void testRangeQueriesOnHeap() throws TransactionException {
+        for (int capacity : new int[]{1, 3, 10, 64}) {
+            checkRangeQueries(new TransactionHistory(capacity, HistoryStorage.HEAP), capacity);
+        }
+    }
+
+    @Test
+    public void testRangeQueriesOffHeap() throws TransactionException {
+        for (int capacity : new int[]{1, 3, 10, 64}) {
+            checkRangeQueries(new TransactionHistory(capacity, HistoryStorage.OFF_HEAP), capacity);
+        }
+    }
+
+    @Test
+    public void testEmptyRange() {
+        TransactionHistory history = new TransactionHistory(4);
+        Account[] accounts = accounts();
+        history.add(new Transaction(accounts[0], accounts[1], 1, 1, "t", BASE, Status.CLOSED));
+        assertEquals(0, history.getTransactions(BASE.plusDays(1), BASE).length);
+        assertEquals(0, history.getTransactions(BASE.plusDays(1), BASE.plusDays(2)).length);
+        assertEquals(1, history.getTransactions(BASE, BASE, Status.CLOSED).length);
+        assertEquals(0, history.getTransactions(BASE, BASE, Status.OPEN).length);
+    }
+
+    /**
+     * Adds and updates random transactions, moving some of them to other days and statuses, and compares every
+     * query with a scan of the history.
+     */
+    private static void checkRangeQueries(TransactionHistory history, int capacity) throws TransactionException {
+        Account[] accounts = accounts();
+        Random random = new Random(capacity);
+        long number = 1;
+        for (int operation = 0; operation < 20_000; operation++) {
+            int kind = random.nextInt(10);
+            if (kind < 6 || history.size() == 0) {
+                // mostly in date order, sometimes backdated
+                LocalDate date = BASE.plusDays(operation / 50 - (random.nextInt(10) == 0 ? random.nextInt(30) : 0));
+                history.add(new Transaction(accounts[0], accounts[1], random.nextInt(100), number++, "a", date, randomStatus(random)));
+            } else if (kind < 8) {
+                Transaction old = history.get(random.nextInt(history.size()));
+                LocalDate date = random.nextBoolean() ? old.date() : old.date().plusDays(random.nextInt(7) - 3);
+                history.update(new Transaction(accounts[0], accounts[1], old.amount(), old.transactionNumber(), "u", date, randomStatus(random)));
+            } else {
+                LocalDate from = BASE.plusDays(random.nextInt(450) - 20);
+                LocalDate to = from.plusDays(random.nextInt(20));
+                Status status = random.nextBoolean() ? null : randomStatus(random);
+                double min = random.nextBoolean() ? Double.NEGATIVE_INFINITY : random.nextInt(50);
+                double max = random.nextBoolean() ? Double.POSITIVE_INFINITY : 50 + random.nextInt(50);
+                List<Transaction> expected = new ArrayList<>();
+                for (int i = 0; i < history.size(); i++) {
+                    Transaction transaction = history.get(i);
+                    if (!transaction.date().isBefore(from) && !transaction.date().isAfter(to)
+                        && (status == null || transaction.status() == status)
+                        && transaction.amount() >= min && transaction.amount() <= max) {
+                        expected.add(transaction);
+                    }
+                }
+                // stable, so transactions of the same day stay oldest first
+                expected.sort(Comparator.comparing(Transaction::date));
+                assertArrayEquals(expected.toArray(), history.getTransactions(from, to, status, min, max),
+                    "capacity " + capacity + ", operation " + operation);
+            }
+        }
+    }
+
+    private static Status randomStatus(Random random) {
+        return Status.values()[random.nextInt(Status.values().length)];
+    }
+
+    private static Account[] accounts() {
+        Bank bank = new Bank("bank", 1);
+        Customer customer = new Customer("a", "b", "c", LocalDate.of(1980, 1, 1));
+        bank.add(customer);
+        bank.add(customer);
+        return bank.getAccounts();
+    }
+}